@@ -1,7 +1,6 @@
 package ch.fhnw.geiger.cysec;
 
 import ch.fhnw.geiger.localstorage.StorageController;
-import ch.fhnw.geiger.localstorage.StorageException;
 import ch.fhnw.geiger.localstorage.db.data.Node;
 import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
 import ch.fhnw.geiger.localstorage.db.data.NodeValueImpl;
@@ -43,10 +42,8 @@ public class DummyStorageFeeder {
           ":plugins:dummyFeeder:data:dummyBooleanValue",
           ":plugins:dummyFeeder:data:flippingBooleanValue",
           ":plugins:dummyFeeder:config"}) {
-        try {
+        if (!controller.find(nodeName).isPresent()) {
           controller.add(new NodeImpl(nodeName));
-        } catch (StorageException se) {
-          // we ignore storage exceptions assuming that the nodes do already exist
         }
       }
       // feeding template values into the nodes
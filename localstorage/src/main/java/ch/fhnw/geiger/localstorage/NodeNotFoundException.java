@@ -0,0 +1,39 @@
+package ch.fhnw.geiger.localstorage;
+
+/**
+ * <p>Exception raised if a requested node does not exist.</p>
+ *
+ * <p>A missing node is an expected outcome for many callers. The exception therefore does not
+ * capture a stack trace. Callers not wanting to handle an exception at all should use
+ * {@link StorageController#find(String)} instead.</p>
+ */
+public class NodeNotFoundException extends StorageException {
+
+  private final String path;
+
+  /**
+   * <p>Creates an exception for a missing node.</p>
+   *
+   * @param path the fully qualified path of the missing node
+   */
+  public NodeNotFoundException(String path) {
+    super("Node \"" + path + "\" does not exist");
+    this.path = path;
+  }
+
+  /**
+   * <p>Gets the path of the missing node.</p>
+   *
+   * @return the fully qualified path
+   */
+  public String getPath() {
+    return path;
+  }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    // the stack trace is the expensive part of an exception and carries no information here
+    return this;
+  }
+
+}
@@ -3,6 +3,7 @@ package ch.fhnw.geiger.localstorage;
 import ch.fhnw.geiger.localstorage.db.data.Node;
 import ch.fhnw.geiger.localstorage.db.data.NodeValue;
 import java.util.List;
+import java.util.Optional;
 
 /**
  * <p>Generic implementation of a convenient storage controller providing persistence to a
@@ -15,9 +16,20 @@ public interface StorageController {
    *
    * @param path the path of the node to be fetched
    * @return The requested node
+   * @throws NodeNotFoundException if the node does not exist
    */
   Node get(String path) throws StorageException;
 
+  /**
+   * <p>Fetches a node by its path if it exists.</p>
+   *
+   * <p>Unlike {@link #get(String)} a missing node is not reported by an exception.</p>
+   *
+   * @param path the path of the node to be fetched
+   * @return the requested node or an empty optional if the node does not exist
+   */
+  Optional<Node> find(String path) throws StorageException;
+
   /**
    * <p>Add StorageNode to data.</p>
    *
@@ -40,6 +52,18 @@ public interface StorageController {
    */
   Node delete(String path) throws StorageException;
 
+  /**
+   * <p>Remove a StorageNode and optionally its whole subtree from the data.</p>
+   *
+   * <p>A recursive delete is executed by the backend in one pass. Listeners receive a single
+   * DELETE event carrying the removed node as root of the removed subtree.</p>
+   *
+   * @param path      the name of the storage node to be removed
+   * @param recursive true if all child nodes should be removed as well
+   * @return the removed node
+   */
+  Node delete(String path, boolean recursive) throws StorageException;
+
   /**
    * <p>Rename a node identified by a path.</p>
    *
@@ -13,6 +13,7 @@ import ch.fhnw.geiger.localstorage.db.data.NodeValueImpl;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.Vector;
 
@@ -66,9 +67,7 @@ public class GenericController implements StorageController, ChangeRegistrar {
         "", ":Devices", ":Users", ":Enterprise", ":Keys", ":Global", ":Local"
       };
     for (String nodeName : baseNodes) {
-      try {
-        Node n = mapper.get(nodeName);
-      } catch (StorageException e) {
+      if (!mapper.exists(nodeName)) {
         // node does not exist and therefore we create it
         mapper.add(new NodeImpl(nodeName));
       }
@@ -86,9 +85,7 @@ public class GenericController implements StorageController, ChangeRegistrar {
 
     // check if current user node exists
     String userNodeName = ":Users:" + uuid.getValue();
-    try {
-      mapper.get(userNodeName);
-    } catch (StorageException se) {
+    if (!mapper.exists(userNodeName)) {
       mapper.add(new NodeImpl(userNodeName));
     }
 
@@ -104,9 +101,7 @@ public class GenericController implements StorageController, ChangeRegistrar {
 
     // check if current device node exists
     String deviceNodeName = ":Devices:" + uuid.getValue();
-    try {
-      mapper.get(deviceNodeName);
-    } catch (StorageException se) {
+    if (!mapper.exists(deviceNodeName)) {
       mapper.add(new NodeImpl(deviceNodeName));
     }
 
@@ -117,6 +112,11 @@ public class GenericController implements StorageController, ChangeRegistrar {
     return mapper.get(path);
   }
 
+  @Override
+  public Optional<Node> find(String path) throws StorageException {
+    return mapper.find(path);
+  }
+
   @Override
   public void add(Node node) throws StorageException {
     // make sure that there is an owner set
@@ -148,11 +148,11 @@ public class GenericController implements StorageController, ChangeRegistrar {
     // any child that is not a skeleton will be handled as new or changed
     for (Node child : node.getChildren().values()) {
       if (!child.isSkeleton()) {
-        try {
-          add(child);
-        } catch (StorageException e) {
+        if (mapper.exists(child.getPath())) {
           // node already exists, therefore it was changed
           update(child);
+        } else {
+          add(child);
         }
       }
     }
@@ -160,7 +160,12 @@ public class GenericController implements StorageController, ChangeRegistrar {
 
   @Override
   public Node delete(String path) throws StorageException {
-    Node ret = mapper.remove(path);
+    return delete(path, false);
+  }
+
+  @Override
+  public Node delete(String path, boolean recursive) throws StorageException {
+    Node ret = mapper.remove(path, recursive);
     checkListeners(EventType.DELETE, ret, null, null, null);
     return ret;
   }
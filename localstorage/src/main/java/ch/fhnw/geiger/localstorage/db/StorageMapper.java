@@ -1,11 +1,13 @@
 package ch.fhnw.geiger.localstorage.db;
 
+import ch.fhnw.geiger.localstorage.NodeNotFoundException;
 import ch.fhnw.geiger.localstorage.SearchCriteria;
 import ch.fhnw.geiger.localstorage.StorageController;
 import ch.fhnw.geiger.localstorage.StorageException;
 import ch.fhnw.geiger.localstorage.db.data.Node;
 import ch.fhnw.geiger.localstorage.db.data.NodeValue;
 import java.util.List;
+import java.util.Optional;
 
 /**
  * <p>Generic interface to define the common methods between databases.</p>
@@ -26,10 +28,39 @@ public interface StorageMapper {
    *
    * @param path the fully qualified node name
    * @return the requested node
-   * @throws StorageException if node is not found or an error in the storage API happens
+   * @throws NodeNotFoundException if the node is not found
+   * @throws StorageException if an error in the storage API happens
    */
   Node get(String path) throws StorageException;
 
+  /**
+   * <p>Get a node by node name from the storage backend if it exists.</p>
+   *
+   * @param path the fully qualified node name
+   * @return the requested node or an empty optional if the node does not exist
+   * @throws StorageException if an error in the storage API happens
+   */
+  Optional<Node> find(String path) throws StorageException;
+
+  /**
+   * <p>Checks whether a node exists without materializing it.</p>
+   *
+   * @param path the fully qualified node name
+   * @return true if the node exists
+   * @throws StorageException if an error in the storage API happens
+   */
+  boolean exists(String path) throws StorageException;
+
+  /**
+   * <p>Checks whether a node contains a value without materializing it.</p>
+   *
+   * @param path the fully qualified node name
+   * @param key  the key of the value
+   * @return true if the node exists and contains a value with the given key
+   * @throws StorageException if an error in the storage API happens
+   */
+  boolean existsValue(String path, String key) throws StorageException;
+
   /**
    * <p>Add a non existing node to the storage backend.</p>
    *
@@ -63,6 +94,17 @@ public interface StorageMapper {
    */
   Node remove(String path) throws StorageException;
 
+  /**
+   * <p>Remove the named node and optionally its whole subtree.</p>
+   *
+   * @param path      the fully qualified path of the node to be removed
+   * @param recursive true if all child nodes should be removed as well
+   * @return A representation of the removed node
+   * @throws StorageException if the node does not exist, the node contains at least one child
+   *                          and recursive is false, or an error happened on the backend
+   */
+  Node remove(String path, boolean recursive) throws StorageException;
+
   /**
    * <p>Fetch a value from a node.</p>
    *
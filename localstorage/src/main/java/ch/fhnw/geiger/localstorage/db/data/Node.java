@@ -97,7 +97,10 @@ public interface Node {
   NodeValue removeValue(String key);
 
   /**
-   * <p>Get a deep copy of all values stored in the node.</p>
+   * <p>Get all values stored in the node.</p>
+   *
+   * <p>The map is read-only and its values must not be modified; use
+   * {@link #getValue(String)} to get a copy of a value for modification.</p>
    *
    * @return a map of all values
    */
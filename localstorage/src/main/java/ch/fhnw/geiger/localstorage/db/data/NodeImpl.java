@@ -4,9 +4,9 @@ import ch.fhnw.geiger.localstorage.StorageController;
 import ch.fhnw.geiger.localstorage.StorageException;
 import ch.fhnw.geiger.localstorage.Visibility;
 import ch.fhnw.geiger.localstorage.db.GenericController;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>The implementation of the node interface.</p>
@@ -16,24 +16,35 @@ import java.util.concurrent.ConcurrentHashMap;
  * mapper), or may be materialized (contains all data). Typically when fetching a node, the node
  * is materialized but its sub-nodes are skeleton-only nodes. All skeleton nodes materialize
  * automatically if their data is accessed.</p>
+ *
+ * <p>Nodes are copy-on-write. A clone shares the maps holding ordinals, values and children
+ * with the original; a shared map is copied by the first change of either node, so a change
+ * copies only the map it modifies. Values and children held by a node are never modified and
+ * may be shared as well; they are copied when handed out for modification. Cloning a node
+ * therefore allocates the node object only.</p>
  */
 public class NodeImpl implements Node {
 
-  /* an indicator whether the current object is a skeleton */
+  /* an indicator whether the current object is a skeleton; guards all fields below */
   private final SwitchableBoolean skeleton = new SwitchableBoolean(false);
 
   /* Contains the mapper for a skeleton to fetch any subsequent  data */
   private StorageController controller = null;
 
   /* contains the ordinals of a node */
-  private final Map<Field, String> ordinals = new HashMap<>();
+  private Map<Field, String> ordinals = Collections.emptyMap();
 
   /* contains the key/value pairs of a node */
-  private final Map<String, NodeValue> values = new HashMap<>();
+  private Map<String, NodeValue> values = Collections.emptyMap();
 
   /* Holds all child nodes as tuples, where the name is used as a key and
      the value is of type StorageNode */
-  private final Map<String, Node> childNodes = new ConcurrentHashMap<>();
+  private Map<String, Node> childNodes = Collections.emptyMap();
+
+  /* true if the map may be shared with another node and must be copied before a change */
+  private boolean ordinalsShared = true;
+  private boolean valuesShared = true;
+  private boolean childNodesShared = true;
 
   /**
    * <p>Constructor creating a skeleton node.</p>
@@ -51,8 +62,18 @@ public class NodeImpl implements Node {
     this.controller = controller;
   }
 
-  private NodeImpl(Node node) {
-    update(node);
+  /* creates a clone sharing all maps with the given node */
+  private NodeImpl(NodeImpl node) {
+    synchronized (node.skeleton) {
+      node.ordinalsShared = true;
+      node.valuesShared = true;
+      node.childNodesShared = true;
+      this.skeleton.set(node.skeleton.get());
+      this.controller = node.controller;
+      this.ordinals = node.ordinals;
+      this.values = node.values;
+      this.childNodes = node.childNodes;
+    }
   }
 
   /**
@@ -138,56 +159,89 @@ public class NodeImpl implements Node {
     return path.substring(0, path.lastIndexOf(GenericController.PATH_DELIMITER));
   }
 
+  /* the following methods return the maps for a change; the caller must hold the lock */
+
+  private Map<Field, String> ownOrdinals() {
+    if (ordinalsShared) {
+      ordinals = new HashMap<>(ordinals);
+      ordinalsShared = false;
+    }
+    return ordinals;
+  }
+
+  private Map<String, NodeValue> ownValues() {
+    if (valuesShared) {
+      values = new HashMap<>(values);
+      valuesShared = false;
+    }
+    return values;
+  }
+
+  private Map<String, Node> ownChildNodes() {
+    if (childNodesShared) {
+      childNodes = new HashMap<>(childNodes);
+      childNodesShared = false;
+    }
+    return childNodes;
+  }
+
   @Override
   public NodeValue getValue(String key) {
     init();
-    synchronized (values) {
-      NodeValue ret = values.get(key);
-      if (ret != null) {
-        ret = ret.deepClone();
-      }
-      return ret;
+    NodeValue ret;
+    synchronized (skeleton) {
+      ret = values.get(key);
     }
+    return ret == null ? null : ret.deepClone();
   }
 
   @Override
   public NodeValue updateValue(NodeValue value) throws StorageException {
     init();
-    NodeValue ret = getValue(value.getKey());
-    if (ret == null) {
-      throw new StorageException("Value " + value.getKey() + " not found in node " + getName());
-    }
-    synchronized (values) {
-      values.put(value.getKey(), value);
+    NodeValue copy = value.deepClone();
+    NodeValue ret;
+    synchronized (skeleton) {
+      ret = values.get(value.getKey());
+      if (ret == null) {
+        throw new StorageException("Value " + value.getKey() + " not found in node " + getName());
+      }
+      ownValues().put(value.getKey(), copy);
     }
-    return ret;
+    return ret.deepClone();
   }
 
   @Override
   public void addValue(NodeValue value) throws StorageException {
     init();
-    if (getValue(value.getKey()) != null) {
-      throw new StorageException("value does already exist");
-    }
-    synchronized (values) {
-      values.put(value.getKey(), value);
+    NodeValue copy = value.deepClone();
+    synchronized (skeleton) {
+      if (values.containsKey(value.getKey())) {
+        throw new StorageException("value does already exist");
+      }
+      ownValues().put(value.getKey(), copy);
     }
   }
 
   @Override
   public NodeValue removeValue(String key) {
     init();
-    synchronized (values) {
-      return values.remove(key);
+    NodeValue ret;
+    synchronized (skeleton) {
+      if (!values.containsKey(key)) {
+        return null;
+      }
+      ret = ownValues().remove(key);
     }
+    return ret.deepClone();
   }
 
   @Override
   public void addChild(Node node) {
     init();
-    synchronized (childNodes) {
+    Node copy = node.deepClone();
+    synchronized (skeleton) {
       if (!childNodes.containsKey(node.getName())) {
-        childNodes.put(node.getName(), node);
+        ownChildNodes().put(node.getName(), copy);
       }
     }
   }
@@ -262,10 +316,28 @@ public class NodeImpl implements Node {
     }
   }
 
+  /**
+   * <p>Gets all values stored in the node.</p>
+   *
+   * <p>The map is a snapshot which is not affected by later changes of the node. It holds
+   * copies of the values, so modifying them does not change this node or its clones.</p>
+   *
+   * @return a map of all values
+   */
   @Override
   public Map<String, NodeValue> getValues() {
-    // TODO do not expose inner objects
-    return values;
+    Map<String, NodeValue> snapshot;
+    synchronized (skeleton) {
+      valuesShared = true;
+      snapshot = values;
+    }
+
+    // hand out copies; the values of this node are never modified
+    Map<String, NodeValue> ret = new HashMap<>();
+    for (Map.Entry<String, NodeValue> entry : snapshot.entrySet()) {
+      ret.put(entry.getKey(), entry.getValue().deepClone());
+    }
+    return ret;
   }
 
   /**
@@ -281,16 +353,18 @@ public class NodeImpl implements Node {
         init();
       }
     }
-    switch (field) {
-      case OWNER:
-      case PATH:
-      case VISIBILITY:
-      case LAST_MODIFIED:
-        return ordinals.get(field);
-      case NAME:
-        return getNameFromPath(ordinals.get(Field.PATH));
-      default:
-        throw new ClassNotFoundException("unable to fetch field " + field);
+    synchronized (skeleton) {
+      switch (field) {
+        case OWNER:
+        case PATH:
+        case VISIBILITY:
+        case LAST_MODIFIED:
+          return ordinals.get(field);
+        case NAME:
+          return getNameFromPath(ordinals.get(Field.PATH));
+        default:
+          throw new ClassNotFoundException("unable to fetch field " + field);
+      }
     }
   }
 
@@ -308,66 +382,85 @@ public class NodeImpl implements Node {
       if (field != Field.PATH) {
         init();
       }
-    }
 
-    // Update last modified if needed
-    String current = ordinals.get(field);
-    if (field != Field.LAST_MODIFIED
-        && ((current != null && !current.equals(value))
-        || (current == null && value != null))) {
-      touch();
-    }
+      // Update last modified if needed
+      String current = ordinals.get(field);
+      if (field != Field.LAST_MODIFIED
+          && ((current != null && !current.equals(value))
+          || (current == null && value != null))) {
+        touch();
+      }
 
-    // return appropriate value
-    switch (field) {
-      case OWNER:
-      case PATH:
-      case VISIBILITY:
-      case LAST_MODIFIED:
-        return ordinals.put(field, value);
-      default:
-        throw new ClassNotFoundException("unable to set field " + field);
+      // return appropriate value
+      switch (field) {
+        case OWNER:
+        case PATH:
+        case VISIBILITY:
+        case LAST_MODIFIED:
+          return ownOrdinals().put(field, value);
+        default:
+          throw new ClassNotFoundException("unable to set field " + field);
+      }
     }
   }
 
+  /**
+   * <p>Adds a child node without materializing this node.</p>
+   *
+   * @param n the child node to be added
+   */
   public void addChildNode(NodeImpl n) {
-    childNodes.put(n.getName(), n);
+    Node copy = n.deepClone();
+    synchronized (skeleton) {
+      ownChildNodes().put(n.getName(), copy);
+    }
   }
 
   @Override
   public void removeChild(String name) {
-    childNodes.remove(name);
+    synchronized (skeleton) {
+      if (childNodes.containsKey(name)) {
+        ownChildNodes().remove(name);
+      }
+    }
   }
 
   @Override
   public Map<String, Node> getChildren() {
     init();
+    Map<String, Node> children;
+    synchronized (skeleton) {
+      childNodesShared = true;
+      children = childNodes;
+    }
 
-    // copy inner structure
-    synchronized (childNodes) {
-      Map<String, Node> ret = new HashMap<>();
-      for (Map.Entry<String, Node> entry : childNodes.entrySet()) {
-        ret.put(entry.getKey(), entry.getValue().deepClone());
-      }
-
-      // return copy of structure
-      return ret;
+    // hand out copies; the children of this node are never modified
+    Map<String, Node> ret = new HashMap<>();
+    for (Map.Entry<String, Node> entry : children.entrySet()) {
+      ret.put(entry.getKey(), entry.getValue().deepClone());
     }
+    return ret;
   }
 
   @Override
   public Node getChild(String name) {
     init();
-    return childNodes.get(name);
+    Node ret;
+    synchronized (skeleton) {
+      ret = childNodes.get(name);
+    }
+    return ret == null ? null : ret.deepClone();
   }
 
   @Override
   public String getChildNodesCsv() {
     init();
-    if (childNodes.size() == 0) {
-      return "";
+    synchronized (skeleton) {
+      if (childNodes.size() == 0) {
+        return "";
+      }
+      return String.join(",", childNodes.keySet());
     }
-    return String.join(",", childNodes.keySet());
   }
 
   @Override
@@ -377,14 +470,18 @@ public class NodeImpl implements Node {
 
   @Override
   public StorageController getController() {
-    return controller;
+    synchronized (skeleton) {
+      return controller;
+    }
   }
 
   @Override
   public StorageController setController(StorageController controller) {
-    StorageController ret = this.controller;
-    this.controller = controller;
-    return ret;
+    synchronized (skeleton) {
+      StorageController ret = this.controller;
+      this.controller = controller;
+      return ret;
+    }
   }
 
   @Override
@@ -400,39 +497,17 @@ public class NodeImpl implements Node {
       init();
       n2.init();
 
-      // compare ordinals
-      if (ordinals.size() != n2.ordinals.size()) {
+      // compare snapshots of both nodes
+      NodeImpl a = new NodeImpl(this);
+      NodeImpl b = new NodeImpl(n2);
+      if (!a.ordinals.equals(b.ordinals) || !a.values.equals(b.values)) {
         return false;
       }
-      for (Map.Entry<Field, String> e : n2.ordinals.entrySet()) {
-        try {
-          if (!e.getValue().equals(get(e.getKey()))) {
-            return false;
-          }
-        } catch (Exception ex) {
-          throw new RuntimeException("Oops.... this should not happen... contact developer", ex);
-        }
-      }
-
-      // compare values
-      if (values.size() != n2.values.size()) {
-        return false;
-      }
-      for (Map.Entry<String, NodeValue> e : values.entrySet()) {
-        if (!e.getValue().equals(n2.getValue(e.getKey()))) {
-          return false;
-        }
-      }
 
       //compare child nodes
-      if (childNodes.size() != n2.childNodes.size()) {
+      if (!a.childNodes.keySet().equals(b.childNodes.keySet())) {
         return false;
       }
-      for (String n : childNodes.keySet()) {
-        if (n2.childNodes.get(n) == null) {
-          return false;
-        }
-      }
 
     } else {
       // compare just paths
@@ -450,43 +525,17 @@ public class NodeImpl implements Node {
 
   @Override
   public void update(Node n2) {
-
-    // copy basic values
-    this.controller = n2.getController();
-    this.skeleton.set(isSkeleton());
-
-    // copy just the name
-    this.ordinals.put(Field.NAME, ((NodeImpl) (n2)).ordinals.get(Field.NAME));
-
-    if (!n2.isSkeleton()) {
-
-      // copy ordinals
-      synchronized (ordinals) {
-        ordinals.clear();
-        for (Map.Entry<Field, String> e : ((NodeImpl) n2).ordinals.entrySet()) {
-          ordinals.put(e.getKey(), e.getValue());
-        }
-      }
-
-      // copy values
-      synchronized (values) {
-        values.clear();
-        for (Map.Entry<String, NodeValue> e : ((NodeImpl) n2).values.entrySet()) {
-          values.put(e.getKey(), e.getValue().deepClone());
-        }
-      }
-
-      // copy child nodes
-      synchronized (childNodes) {
-        childNodes.clear();
-        for (Map.Entry<String, Node> e : n2.getChildren().entrySet()) {
-          childNodes.put(e.getKey(), e.getValue().deepClone());
-        }
-      }
-    }
-    // copy last modified date (just to make sure that they are not touched
-    if (((NodeImpl) (n2)).ordinals.get(Field.LAST_MODIFIED) != null) {
-      this.ordinals.put(Field.LAST_MODIFIED, ((NodeImpl) (n2)).ordinals.get(Field.LAST_MODIFIED));
+    // take a snapshot first; holding the locks of both nodes at once could deadlock
+    NodeImpl source = new NodeImpl((NodeImpl) n2);
+    synchronized (skeleton) {
+      this.controller = source.controller;
+      this.skeleton.set(source.skeleton.get());
+      this.ordinals = source.ordinals;
+      this.values = source.values;
+      this.childNodes = source.childNodes;
+      ordinalsShared = true;
+      valuesShared = true;
+      childNodesShared = true;
     }
   }
 
@@ -508,8 +557,9 @@ public class NodeImpl implements Node {
     sb.append(";vis=" + getVisibility());
     sb.append("]{" + System.lineSeparator());
     int i = 0;
-    if (values != null) {
-      for (Map.Entry<String, NodeValue> e : values.entrySet()) {
+    Map<String, NodeValue> snapshot = getValues();
+    if (snapshot != null) {
+      for (Map.Entry<String, NodeValue> e : snapshot.entrySet()) {
         if (i > 0) {
           sb.append(", " + System.lineSeparator());
         }
@@ -1,5 +1,6 @@
 package ch.fhnw.geiger.localstorage.db.data;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -11,6 +12,10 @@ import java.util.Vector;
 /**
  * <p>This abstract class defines the common attributes for all NodeValueObjects.</p>
  *
+ * <p>The translations of value and description are held in maps which are never modified;
+ * every change replaces the map. Clones share the maps, so cloning a value allocates the
+ * value object only.</p>
+ *
  * @author Sacha
  * @version 0.1
  */
@@ -24,7 +29,7 @@ public class NodeValueImpl implements NodeValue {
    */
   private String key;
 
-  private Map<Locale, String> value = new HashMap<>();
+  private Map<Locale, String> value = Collections.emptyMap();
 
   /**
    * <p>The type of the value.</p>>
@@ -34,7 +39,7 @@ public class NodeValueImpl implements NodeValue {
   /**
    * Description of this value, can be used for translation.
    */
-  private Map<Locale, String> description = new HashMap<>();
+  private Map<Locale, String> description = Collections.emptyMap();
 
   /**
    * Defines the epoch when this value was last modified.
@@ -69,14 +74,23 @@ public class NodeValueImpl implements NodeValue {
       throw new NullPointerException();
     }
     this.key = key;
-    setLocalizedString(this.value, value, DEFAULT_LOCALE);
+    this.value = setLocalizedString(this.value, value, DEFAULT_LOCALE);
     this.type = type;
     if (description != null) {
-      setLocalizedString(this.description, description, DEFAULT_LOCALE);
+      this.description = setLocalizedString(this.description, description, DEFAULT_LOCALE);
     }
     this.lastModified = lastModified;
   }
 
+  /* creates a copy sharing the translations of the given value */
+  private NodeValueImpl(NodeValueImpl nv) {
+    this.key = nv.key;
+    this.value = nv.value;
+    this.type = nv.type;
+    this.description = nv.description;
+    this.lastModified = nv.lastModified;
+  }
+
   @Override
   public String getKey() {
     return key;
@@ -104,7 +118,7 @@ public class NodeValueImpl implements NodeValue {
 
   @Override
   public void setValue(String value, Locale locale) throws MissingResourceException {
-    setLocalizedString(this.value, value, locale);
+    this.value = setLocalizedString(this.value, value, locale);
     updateLastmodified();
   }
 
@@ -178,14 +192,18 @@ public class NodeValueImpl implements NodeValue {
     return map.get(lookupLocale(map, languageRange));
   }
 
-  private static void setLocalizedString(Map<Locale, String> map, String value, Locale locale)
+  /* returns a copy of the map with the string set; the map itself is not modified */
+  private static Map<Locale, String> setLocalizedString(Map<Locale, String> map, String value,
+                                                        Locale locale)
       throws MissingResourceException {
     if (getLocalizedString(map, DEFAULT_LOCALE.toLanguageTag()) == null
         && locale != DEFAULT_LOCALE) {
       throw new MissingResourceException("undefined string for locale " + DEFAULT_LOCALE, "Locale",
           locale.toLanguageTag());
     }
-    map.put(locale, value);
+    Map<Locale, String> ret = new HashMap<>(map);
+    ret.put(locale, value);
+    return ret;
   }
 
   @Override
@@ -194,7 +212,7 @@ public class NodeValueImpl implements NodeValue {
       throw new NullPointerException("description may not be null");
     }
     String ret = getLocalizedString(this.description, locale.toLanguageTag());
-    setLocalizedString(this.description, value, locale);
+    this.description = setLocalizedString(this.description, value, locale);
     updateLastmodified();
     return ret;
   }
@@ -213,15 +231,10 @@ public class NodeValueImpl implements NodeValue {
   public void update(NodeValue node) {
     NodeValueImpl n2 = (NodeValueImpl) (node);
     this.key = n2.getKey();
-    this.value.clear();
-    for (Map.Entry<Locale, String> e : n2.value.entrySet()) {
-      this.value.put(e.getKey(), e.getValue());
-    }
+    // the maps are never modified and may be shared
+    this.value = n2.value;
     this.type = n2.getType();
-    this.description.clear();
-    for (Map.Entry<Locale, String> e : n2.description.entrySet()) {
-      this.description.put(e.getKey(), e.getValue());
-    }
+    this.description = n2.description;
     updateLastmodified();
   }
 
@@ -231,9 +244,7 @@ public class NodeValueImpl implements NodeValue {
 
   @Override
   public NodeValue deepClone() {
-    NodeValue ret = new NodeValueImpl(getKey(), getValue());
-    ret.update(this);
-    return ret;
+    return new NodeValueImpl(this);
   }
 
   @Override
@@ -285,35 +296,16 @@ public class NodeValueImpl implements NodeValue {
     if (!getKey().equals(nv.getKey())) {
       return false;
     }
-    if (getValue() != null && !getValue().equals(nv.getValue())) {
+    // equal translations imply equal localized strings; clones share the same maps
+    if (!value.equals(nv.value)) {
       return false;
     }
-    synchronized (value) {
-      if (value.size() != nv.value.size()) {
-        return false;
-      }
-      for (Map.Entry<Locale, String> e : value.entrySet()) {
-        if (!e.getValue().equals(nv.value.get(e.getKey()))) {
-          return false;
-        }
-      }
-    }
     if (getType() != null && !getType().equals(nv.getType())) {
       return false;
     }
-    if (getDescription() != null && !getDescription().equals(nv.getDescription())) {
+    if (!description.equals(nv.description)) {
       return false;
     }
-    synchronized (description) {
-      if (description.size() != nv.description.size()) {
-        return false;
-      }
-      for (Map.Entry<Locale, String> e : description.entrySet()) {
-        if (!e.getValue().equals(nv.description.get(e.getKey()))) {
-          return false;
-        }
-      }
-    }
     return true;
   }
 }
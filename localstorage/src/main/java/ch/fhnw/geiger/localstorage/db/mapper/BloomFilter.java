@@ -0,0 +1,146 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>A bloom filter for paths.</p>
+ *
+ * <p>The filter answers whether a path may have been added. It never answers no for an added
+ * path; with ten bits per path about one percent of the other paths are reported as well. The
+ * bit positions are derived from a single 64 bit hash by double hashing.</p>
+ *
+ * <p>The filter is not thread safe.</p>
+ */
+final class BloomFilter {
+
+  private final long[] bits;
+  private final int hashes;
+
+  /**
+   * <p>Creates an empty filter.</p>
+   *
+   * @param expectedKeys the number of paths to be added
+   * @param bitsPerKey   the number of bits to be used per path
+   */
+  BloomFilter(int expectedKeys, int bitsPerKey) {
+    long size = Math.max(64L, (long) expectedKeys * bitsPerKey);
+    this.bits = new long[(int) Math.min(Integer.MAX_VALUE / 64, (size + 63) / 64)];
+    this.hashes = hashCount(bitsPerKey);
+  }
+
+  private BloomFilter(long[] bits, int hashes) {
+    this.bits = bits;
+    this.hashes = hashes;
+  }
+
+  /**
+   * <p>Calculates the hash of a path as used by the filter.</p>
+   *
+   * @param key the path
+   * @return the 64 bit hash
+   */
+  static long hash(String key) {
+    // FNV-1a followed by the finalizer of MurmurHash3 to spread the bits
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      h ^= key.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * <p>Gets the number of bits set per path.</p>
+   *
+   * @param bitsPerKey the number of bits used per path
+   * @return the number of bits minimizing false positives
+   */
+  static int hashCount(int bitsPerKey) {
+    return (int) Math.max(1, Math.min(30, Math.round(bitsPerKey * Math.log(2))));
+  }
+
+  /**
+   * <p>Gets the position of a bit of a path.</p>
+   *
+   * @param hash the hash as returned by {@link #hash(String)}
+   * @param i    the number of the bit between 0 and the number of hashes
+   * @param size the number of bits of the filter
+   * @return the position of the bit
+   */
+  static long bit(long hash, int i, long size) {
+    int combined = (int) hash + i * (int) (hash >>> 32);
+    return (combined & 0x7fffffff) % size;
+  }
+
+  void add(String key) {
+    addHash(hash(key));
+  }
+
+  /**
+   * <p>Adds a path by its hash.</p>
+   *
+   * @param hash the hash as returned by {@link #hash(String)}
+   */
+  void addHash(long hash) {
+    long size = (long) bits.length * 64;
+    for (int i = 0; i < hashes; i++) {
+      long bit = bit(hash, i, size);
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /**
+   * <p>Checks whether a path may have been added.</p>
+   *
+   * @param key the path to be checked
+   * @return false if the path has certainly not been added
+   */
+  boolean mightContain(String key) {
+    long hash = hash(key);
+    long size = (long) bits.length * 64;
+    for (int i = 0; i < hashes; i++) {
+      long bit = bit(hash, i, size);
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * <p>Writes the filter.</p>
+   *
+   * @param out the output to be written to
+   * @throws IOException if the output cannot be written
+   */
+  void write(DataOutput out) throws IOException {
+    out.writeInt(hashes);
+    out.writeInt(bits.length);
+    for (long l : bits) {
+      out.writeLong(l);
+    }
+  }
+
+  /**
+   * <p>Reads a filter written by {@link #write(DataOutput)}.</p>
+   *
+   * @param in the input to be read from
+   * @return the filter
+   * @throws IOException if the input cannot be read
+   */
+  static BloomFilter read(DataInput in) throws IOException {
+    int hashes = in.readInt();
+    long[] bits = new long[in.readInt()];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = in.readLong();
+    }
+    return new BloomFilter(bits, hashes);
+  }
+}
@@ -0,0 +1,386 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.NodeNotFoundException;
+import ch.fhnw.geiger.localstorage.SearchCriteria;
+import ch.fhnw.geiger.localstorage.StorageController;
+import ch.fhnw.geiger.localstorage.StorageException;
+import ch.fhnw.geiger.localstorage.db.GenericController;
+import ch.fhnw.geiger.localstorage.db.StorageMapper;
+import ch.fhnw.geiger.localstorage.db.data.Node;
+import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A read-through cache in front of any mapper.</p>
+ *
+ * <p>Materialized nodes and single values are cached, including lookups of missing nodes
+ * and values. The cache is bounded by the number of entries and evicts with W-TinyLFU (see
+ * {@link TinyLfuCache}), so frequently read nodes stay cached while scans pass through. All
+ * entries are copies; callers never see cached objects.</p>
+ *
+ * <p>Writes go to the wrapped mapper first. Afterwards exactly the entries they affect are
+ * invalidated: the node, its values and its parent (whose children changed), and the whole
+ * subtree for recursive removes and renames. Loads racing with writes are detected by version
+ * counters and not cached. Searches are not cached.</p>
+ */
+public class CachingMapper extends AbstractMapper {
+
+  /**
+   * <p>The default maximum number of cached entries.</p>
+   */
+  public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+  /* separates the path from the key in the keys of cached values; not allowed in paths */
+  private static final char VALUE_SEPARATOR = '|';
+  /* the character following the separator; ends the range of the values of a node */
+  private static final char VALUE_END = '}';
+  /* the character following the path delimiter; ends the range of a subtree */
+  private static final String SUBTREE_END = ";";
+
+  /* the number of version counters; paths sharing a counter are invalidated together */
+  private static final int VERSION_STRIPES = 1024;
+
+  /**
+   * <p>A cached node or value.</p>
+   *
+   * <p>The absence of a node or value is cached as {@link #MISSING_NODE} or
+   * {@link #MISSING_VALUE}.</p>
+   */
+  private static final class CachedEntry {
+
+    private final Node node;
+    private final NodeValue value;
+
+    private CachedEntry(Node node, NodeValue value) {
+      this.node = node;
+      this.value = value;
+    }
+  }
+
+  /* cached lookups of missing nodes and values */
+  private static final CachedEntry MISSING_NODE = new CachedEntry(null, null);
+  private static final CachedEntry MISSING_VALUE = new CachedEntry(null, null);
+
+  private final StorageMapper backend;
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+
+  /* all following fields are guarded by lock */
+  private final Object lock = new Object();
+  private final TinyLfuCache<String, CachedEntry> cache;
+  /* the keys of all entries in order; a subtree is a range of keys */
+  private final TreeSet<String> keys = new TreeSet<>();
+  private final long[] versions = new long[VERSION_STRIPES];
+  /* invalidates all loads; changed by subtree invalidations */
+  private long globalVersion = 0;
+
+  /**
+   * <p>Creates a cache of default size.</p>
+   *
+   * @param backend the mapper to be cached
+   */
+  public CachingMapper(StorageMapper backend) {
+    this(backend, DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * <p>Creates a cache.</p>
+   *
+   * @param backend     the mapper to be cached
+   * @param maximumSize the maximum number of cached nodes and values
+   */
+  public CachingMapper(StorageMapper backend, int maximumSize) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("maximum size must be positive");
+    }
+    this.backend = backend;
+    this.cache = new TinyLfuCache<>(maximumSize, keys::remove);
+  }
+
+  /**
+   * <p>Gets the number of reads answered by the cache.</p>
+   *
+   * @return the number of hits
+   */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * <p>Gets the number of reads passed to the wrapped mapper.</p>
+   *
+   * @return the number of misses
+   */
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  /**
+   * <p>Gets the share of reads answered by the cache.</p>
+   *
+   * @return the hit rate between 0 and 1; 0 if there were no reads
+   */
+  public double getHitRate() {
+    long hits = hitCount.sum();
+    long total = hits + missCount.sum();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * <p>Gets the number of entries evicted to keep the cache within its size.</p>
+   *
+   * <p>Entries removed because of writes are not counted.</p>
+   *
+   * @return the number of evictions
+   */
+  public long getEvictionCount() {
+    synchronized (lock) {
+      return cache.getEvictionCount();
+    }
+  }
+
+  /**
+   * <p>Gets the number of cached entries.</p>
+   *
+   * @return the number of cached nodes and values
+   */
+  public int getSize() {
+    synchronized (lock) {
+      return cache.size();
+    }
+  }
+
+  @Override
+  public void setController(StorageController controller) {
+    backend.setController(controller);
+  }
+
+  @Override
+  public Node get(String path) throws StorageException {
+    return find(path).orElseThrow(() -> new NodeNotFoundException(path));
+  }
+
+  @Override
+  public Optional<Node> find(String path) throws StorageException {
+    checkPath(path);
+    getSanity(path);
+    long[] version = new long[2];
+    CachedEntry entry = lookup(path, null, version);
+    record(entry != null);
+    if (entry != null) {
+      return entry.node == null ? Optional.empty() : Optional.of(entry.node.deepClone());
+    }
+    Optional<Node> ret = backend.find(path);
+    store(path, ret.isPresent() ? new CachedEntry(ret.get().deepClone(), null) : MISSING_NODE,
+        version);
+    return ret;
+  }
+
+  @Override
+  public boolean exists(String path) throws StorageException {
+    checkPath(path);
+    getSanity(path);
+    CachedEntry entry = lookup(path, null, null);
+    record(entry != null);
+    return entry == null ? backend.exists(path) : entry.node != null;
+  }
+
+  @Override
+  public boolean existsValue(String path, String key) throws StorageException {
+    checkPath(path);
+    getSanity(path);
+    CachedEntry entry = lookup(path, key == null ? null : valueKey(path, key), null);
+    record(entry != null);
+    if (entry == null) {
+      return backend.existsValue(path, key);
+    }
+    // a missing node has no values
+    return entry.node != null ? entry.node.getValue(key) != null : entry.value != null;
+  }
+
+  @Override
+  public NodeValue getValue(String path, String key) {
+    if (path == null || key == null || "".equals(path) || "".equals(key)) {
+      // illegal arguments are reported by the wrapped mapper
+      return backend.getValue(path, key);
+    }
+    checkPath(path);
+    String valueKey = valueKey(path, key);
+    long[] version = new long[2];
+    CachedEntry entry = lookup(path, valueKey, version);
+    if (entry == MISSING_NODE) {
+      // the wrapped mapper reports the missing node
+      record(false);
+      return backend.getValue(path, key);
+    }
+    record(entry != null);
+    if (entry != null) {
+      if (entry.node != null) {
+        return entry.node.getValue(key);
+      }
+      return entry.value == null ? null : entry.value.deepClone();
+    }
+    NodeValue ret = backend.getValue(path, key);
+    store(valueKey, ret == null ? MISSING_VALUE : new CachedEntry(null, ret.deepClone()),
+        version);
+    return ret;
+  }
+
+  @Override
+  public void add(Node node) throws StorageException {
+    checkPath(node);
+    backend.add(node);
+    invalidate(node.getPath(), false);
+  }
+
+  @Override
+  public void update(Node node) throws StorageException {
+    checkPath(node);
+    backend.update(node);
+    invalidate(node.getPath(), false);
+  }
+
+  @Override
+  public Node remove(String path) throws StorageException {
+    Node ret = backend.remove(path);
+    invalidate(path, true);
+    return ret;
+  }
+
+  @Override
+  public Node remove(String path, boolean recursive) throws StorageException {
+    Node ret = backend.remove(path, recursive);
+    invalidate(path, true);
+    return ret;
+  }
+
+  @Override
+  public void rename(String oldPath, String newPath) throws StorageException {
+    backend.rename(oldPath, newPath);
+    invalidate(oldPath, true);
+    invalidate(newPath, true);
+  }
+
+  @Override
+  public List<Node> search(SearchCriteria criteria) throws StorageException {
+    return backend.search(criteria);
+  }
+
+  @Override
+  public void close() {
+    clear();
+    backend.close();
+  }
+
+  @Override
+  public void flush() {
+    backend.flush();
+  }
+
+  @Override
+  public void zap() {
+    backend.zap();
+    clear();
+  }
+
+  private void clear() {
+    synchronized (lock) {
+      cache.clear();
+      keys.clear();
+      globalVersion++;
+    }
+  }
+
+  private static String valueKey(String path, String key) {
+    return path + VALUE_SEPARATOR + key;
+  }
+
+  private static int stripe(String path) {
+    return (path.hashCode() & 0x7fffffff) % VERSION_STRIPES;
+  }
+
+  /**
+   * <p>Looks up a node or one of its values.</p>
+   *
+   * <p>The value is looked up only if the node is not cached. On a miss, the versions to be
+   * passed to {@link #store(String, CachedEntry, long[])} by the following load are read in
+   * the same critical section.</p>
+   *
+   * @param path     the path of the node
+   * @param valueKey the key of the value or null
+   * @param version  receives the versions on a miss; may be null if nothing is loaded
+   * @return the entry of the node, the entry of the value or null if neither is cached
+   */
+  private CachedEntry lookup(String path, String valueKey, long[] version) {
+    synchronized (lock) {
+      CachedEntry entry = cache.get(path);
+      if (entry == null && valueKey != null) {
+        entry = cache.get(valueKey);
+      }
+      if (entry == null && version != null) {
+        version[0] = versions[stripe(path)];
+        version[1] = globalVersion;
+      }
+      return entry;
+    }
+  }
+
+  /* records whether a read was answered by the cache */
+  private void record(boolean hit) {
+    if (hit) {
+      hitCount.increment();
+    } else {
+      missCount.increment();
+    }
+  }
+
+  /**
+   * <p>Caches a loaded entry unless a write may have changed it during the load.</p>
+   *
+   * @param key     the key of the entry
+   * @param entry   the entry
+   * @param version the versions read before the load started
+   */
+  private void store(String key, CachedEntry entry, long[] version) {
+    int end = key.indexOf(VALUE_SEPARATOR);
+    String path = end < 0 ? key : key.substring(0, end);
+    synchronized (lock) {
+      if (versions[stripe(path)] == version[0] && globalVersion == version[1]) {
+        cache.put(key, entry);
+        keys.add(key);
+      }
+    }
+  }
+
+  /**
+   * <p>Removes the entries affected by a write.</p>
+   *
+   * @param path    the path of the written node
+   * @param subtree true if the subtree of the node changed as well
+   */
+  private void invalidate(String path, boolean subtree) {
+    String parent = NodeImpl.getParentFromPath(path);
+    synchronized (lock) {
+      versions[stripe(path)]++;
+      versions[stripe(parent)]++;
+      List<String> removed = new ArrayList<>();
+      removed.add(path);
+      removed.add(parent);
+      removed.addAll(keys.subSet(path + VALUE_SEPARATOR, path + VALUE_END));
+      if (subtree) {
+        globalVersion++;
+        removed.addAll(keys.subSet(path + GenericController.PATH_DELIMITER,
+            path + SUBTREE_END));
+      }
+      for (String key : removed) {
+        cache.remove(key);
+        keys.remove(key);
+      }
+    }
+  }
+}
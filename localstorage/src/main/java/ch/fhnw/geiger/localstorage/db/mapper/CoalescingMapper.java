@@ -0,0 +1,263 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.NodeNotFoundException;
+import ch.fhnw.geiger.localstorage.SearchCriteria;
+import ch.fhnw.geiger.localstorage.StorageController;
+import ch.fhnw.geiger.localstorage.StorageException;
+import ch.fhnw.geiger.localstorage.db.GenericController;
+import ch.fhnw.geiger.localstorage.db.StorageMapper;
+import ch.fhnw.geiger.localstorage.db.data.Node;
+import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A mapper sharing concurrent reads of the same node.</p>
+ *
+ * <p>The first thread reading a node fetches it from the wrapped mapper. Threads reading the
+ * same node while the fetch is in flight wait for it instead of fetching the node again, and
+ * every thread gets a copy of its own. A fetch is shared only while it is in flight; nothing
+ * is cached. Wrapping a {@link CachingMapper} around this mapper shares the misses of the
+ * cache.</p>
+ *
+ * <p>A read never joins a fetch started before a write to the node returned: writes detach
+ * the fetches of all nodes they affect (the node, its parent and for removes and renames its
+ * subtree). Only {@link #get(String)} and {@link #find(String)} are shared; all other
+ * operations are forwarded.</p>
+ */
+public class CoalescingMapper extends AbstractMapper {
+
+  /**
+   * <p>A fetch in flight together with its waiting followers.</p>
+   */
+  private static final class Flight {
+
+    /* all fields are guarded by this */
+    private boolean done = false;
+    private int followers = 0;
+    private Node node;
+    private RuntimeException error;
+
+    /**
+     * <p>Registers a follower.</p>
+     *
+     * @return false if the fetch is already done and cannot be joined anymore
+     */
+    synchronized boolean join() {
+      if (done) {
+        return false;
+      }
+      followers++;
+      return true;
+    }
+
+    /**
+     * <p>Publishes the result of the fetch.</p>
+     *
+     * @param node  the fetched node or null if the node does not exist or the fetch failed
+     * @param error the error of the fetch or null
+     * @return true if followers share the node; the leader must then use a copy as well
+     */
+    synchronized boolean complete(Node node, RuntimeException error) {
+      this.node = node;
+      this.error = error;
+      done = true;
+      notifyAll();
+      return followers > 0;
+    }
+
+    /* waits for the leader; the shared node must not be modified */
+    synchronized Node await() {
+      boolean interrupted = false;
+      while (!done) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (error != null) {
+        throw error;
+      }
+      return node;
+    }
+  }
+
+  private final StorageMapper backend;
+  /* fetches in flight by path */
+  private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+  private final AtomicLong fetchCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /**
+   * <p>Creates a coalescing mapper.</p>
+   *
+   * @param backend the mapper to be read
+   */
+  public CoalescingMapper(StorageMapper backend) {
+    this.backend = backend;
+  }
+
+  /**
+   * <p>Gets the number of reads passed to the wrapped mapper.</p>
+   *
+   * @return the number of fetches
+   */
+  public long getFetchCount() {
+    return fetchCount.get();
+  }
+
+  /**
+   * <p>Gets the number of reads answered by the fetch of another thread.</p>
+   *
+   * @return the number of shared reads
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  @Override
+  public void setController(StorageController controller) {
+    backend.setController(controller);
+  }
+
+  @Override
+  public Node get(String path) throws StorageException {
+    return find(path).orElseThrow(() -> new NodeNotFoundException(path));
+  }
+
+  @Override
+  public Optional<Node> find(String path) throws StorageException {
+    checkPath(path);
+    getSanity(path);
+    while (true) {
+      Flight flight = flights.get(path);
+      if (flight != null && flight.join()) {
+        coalescedCount.incrementAndGet();
+        Node node = flight.await();
+        return node == null ? Optional.empty() : Optional.of(node.deepClone());
+      }
+      Flight own = new Flight();
+      if (flight == null ? flights.putIfAbsent(path, own) != null
+          : !flights.replace(path, flight, own)) {
+        // another thread started a fetch meanwhile
+        continue;
+      }
+      return fetch(path, own);
+    }
+  }
+
+  /* fetches a node as leader of a flight */
+  private Optional<Node> fetch(String path, Flight flight) {
+    fetchCount.incrementAndGet();
+    Node node = null;
+    RuntimeException error = null;
+    try {
+      node = backend.find(path).orElse(null);
+    } catch (RuntimeException e) {
+      error = e;
+    }
+    flights.remove(path, flight);
+    boolean shared = flight.complete(node, error);
+    if (error != null) {
+      throw error;
+    }
+    if (node == null) {
+      return Optional.empty();
+    }
+    return Optional.of(shared ? node.deepClone() : node);
+  }
+
+  @Override
+  public boolean exists(String path) throws StorageException {
+    return backend.exists(path);
+  }
+
+  @Override
+  public boolean existsValue(String path, String key) throws StorageException {
+    return backend.existsValue(path, key);
+  }
+
+  @Override
+  public NodeValue getValue(String path, String key) {
+    return backend.getValue(path, key);
+  }
+
+  @Override
+  public void add(Node node) throws StorageException {
+    backend.add(node);
+    detach(node.getPath(), false);
+  }
+
+  @Override
+  public void update(Node node) throws StorageException {
+    backend.update(node);
+    detach(node.getPath(), false);
+  }
+
+  @Override
+  public Node remove(String path) throws StorageException {
+    Node ret = backend.remove(path);
+    detach(path, true);
+    return ret;
+  }
+
+  @Override
+  public Node remove(String path, boolean recursive) throws StorageException {
+    Node ret = backend.remove(path, recursive);
+    detach(path, true);
+    return ret;
+  }
+
+  @Override
+  public void rename(String oldPath, String newPath) throws StorageException {
+    backend.rename(oldPath, newPath);
+    detach(oldPath, true);
+    detach(newPath, true);
+  }
+
+  @Override
+  public List<Node> search(SearchCriteria criteria) throws StorageException {
+    return backend.search(criteria);
+  }
+
+  @Override
+  public void close() {
+    backend.close();
+  }
+
+  @Override
+  public void flush() {
+    backend.flush();
+  }
+
+  @Override
+  public void zap() {
+    backend.zap();
+    flights.clear();
+  }
+
+  /**
+   * <p>Stops sharing fetches which may have read a node before it was written.</p>
+   *
+   * <p>Threads already waiting for such a fetch still get its result; they started reading
+   * before the write returned.</p>
+   *
+   * @param path    the path of the written node
+   * @param subtree true if the subtree of the node changed as well
+   */
+  private void detach(String path, boolean subtree) {
+    flights.remove(path);
+    flights.remove(NodeImpl.getParentFromPath(path));
+    if (subtree) {
+      String prefix = path + GenericController.PATH_DELIMITER;
+      flights.keySet().removeIf(p -> p.startsWith(prefix));
+    }
+  }
+}
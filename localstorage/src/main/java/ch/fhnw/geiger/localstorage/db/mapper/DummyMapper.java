@@ -1,5 +1,6 @@
 package ch.fhnw.geiger.localstorage.db.mapper;
 
+import ch.fhnw.geiger.localstorage.NodeNotFoundException;
 import ch.fhnw.geiger.localstorage.SearchCriteria;
 import ch.fhnw.geiger.localstorage.StorageController;
 import ch.fhnw.geiger.localstorage.StorageException;
@@ -10,6 +11,7 @@ import ch.fhnw.geiger.localstorage.db.data.NodeValue;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Vector;
 
 /**
@@ -28,26 +30,47 @@ public class DummyMapper extends AbstractMapper {
 
   @Override
   public Node get(String path) throws StorageException {
+    return find(path).orElseThrow(() -> new NodeNotFoundException(path));
+  }
+
+  @Override
+  public Optional<Node> find(String path) throws StorageException {
     checkPath(path);
     getSanity(path);
     Node ret = nodes.get(path);
-    if (ret == null) {
-      throw new StorageException("Node not found");
+    return ret == null ? Optional.empty() : Optional.of(ret.deepClone());
+  }
+
+  @Override
+  public boolean exists(String path) {
+    checkPath(path);
+    getSanity(path);
+    synchronized (nodes) {
+      return nodes.containsKey(path);
+    }
+  }
+
+  @Override
+  public boolean existsValue(String path, String key) {
+    checkPath(path);
+    getSanity(path);
+    synchronized (nodes) {
+      Node node = nodes.get(path);
+      return node != null && node.getValue(key) != null;
     }
-    return ret.deepClone();
   }
 
   @Override
   public void add(Node node) throws StorageException {
     checkPath(node);
     synchronized (nodes) {
-      if (nodes.get(node.getPath()) != null) {
+      if (exists(node.getPath())) {
         throw new StorageException("Node does already exist");
       }
 
       // check if parent node is available
       if (node.getParentPath() != null && !"".equals(node.getParentPath())) {
-        if (nodes.get(node.getParentPath()) == null) {
+        if (!exists(node.getParentPath())) {
           throw new StorageException("Parent node \"" + node.getParentPath() + "\" does not exist");
         }
         nodes.get(node.getParentPath()).addChild(node);
@@ -60,8 +83,8 @@ public class DummyMapper extends AbstractMapper {
   public void update(Node node) throws StorageException {
     checkPath(node);
     synchronized (nodes) {
-      if (!"".equals(node.getParentPath()) && nodes.get(node.getParentPath()) == null) {
-        throw new StorageException("Node does not exist");
+      if (!exists(node.getPath())) {
+        throw new NodeNotFoundException(node.getPath());
       }
       nodes.get(node.getPath()).update(node);
     }
@@ -71,9 +94,12 @@ public class DummyMapper extends AbstractMapper {
   public void rename(String oldPath, String newPath) throws StorageException {
     checkPath(oldPath);
     checkPath(newPath);
+    if (newPath.startsWith(oldPath + GenericController.PATH_DELIMITER)) {
+      throw new StorageException("Cannot move node \"" + oldPath + "\" into its own subtree");
+    }
     synchronized (nodes) {
-      if (nodes.get(oldPath) == null) {
-        throw new StorageException("Node does not exist");
+      if (!exists(oldPath)) {
+        throw new NodeNotFoundException(oldPath);
       }
       Node oldNode = nodes.get(oldPath);
 
@@ -81,7 +107,9 @@ public class DummyMapper extends AbstractMapper {
       NodeImpl newNode = new NodeImpl(newPath);
 
       // copy ordinals
-      newNode.setOwner(oldNode.getOwner());
+      if (oldNode.getOwner() != null) {
+        newNode.setOwner(oldNode.getOwner());
+      }
       newNode.setVisibility(oldNode.getVisibility());
 
       // copy values
@@ -102,11 +130,32 @@ public class DummyMapper extends AbstractMapper {
     }
   }
 
+  @Override
+  public Node remove(String nodeName, boolean recursive) throws StorageException {
+    if (!recursive) {
+      return remove(nodeName);
+    }
+    synchronized (nodes) {
+      Node n = nodes.get(nodeName);
+      if (n == null) {
+        throw new NodeNotFoundException(nodeName);
+      }
+
+      // sweep all nodes with the path as prefix
+      String prefix = nodeName + GenericController.PATH_DELIMITER;
+      nodes.keySet().removeIf(path -> path.equals(nodeName) || path.startsWith(prefix));
+      if (n.getParentPath() != null && !"".equals(n.getParentPath())) {
+        nodes.get(n.getParentPath()).removeChild(n.getName());
+      }
+      return n;
+    }
+  }
+
   @Override
   public Node remove(String nodeName) throws StorageException {
     synchronized (nodes) {
-      if (nodes.get(nodeName) == null) {
-        throw new StorageException("Node does not exist");
+      if (!exists(nodeName)) {
+        throw new NodeNotFoundException(nodeName);
       }
       if (!"".equals(nodes.get(nodeName).getChildNodesCsv())) {
         throw new StorageException("Node does have childs... cannot remove " + nodeName);
@@ -121,7 +170,8 @@ public class DummyMapper extends AbstractMapper {
 
   @Override
   public NodeValue getValue(String path, String key) {
-    return nodes.get(path).getValues().get(key);
+    // a copy; the stored value must not be modified by the caller
+    return nodes.get(path).getValue(key);
   }
 
   @Override
@@ -129,7 +179,7 @@ public class DummyMapper extends AbstractMapper {
     List<Node> l = new Vector<>();
     for (Map.Entry<String, Node> e : nodes.entrySet()) {
       if (criteria.evaluate(e.getValue())) {
-        l.add(e.getValue());
+        l.add(e.getValue().deepClone());
       }
     }
     return l;
@@ -0,0 +1,88 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+/**
+ * <p>An approximate count of recent accesses per key.</p>
+ *
+ * <p>The sketch is a count-min sketch of four rows with 4 bit counters packed into longs.
+ * An estimate is the minimum of the four counters of a key and never lower than the true
+ * count. After a number of increments proportional to the width all counters are halved,
+ * so the counts reflect recent popularity. The sketch is not thread safe.</p>
+ */
+final class FrequencySketch {
+
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+      0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+  private static final int MAX_COUNT = 15;
+
+  /* each long holds 16 counters */
+  private final long[] table;
+  private final int sampleSize;
+  private int additions = 0;
+
+  /**
+   * <p>Creates a sketch.</p>
+   *
+   * @param maximumSize the number of keys to be tracked
+   */
+  FrequencySketch(int maximumSize) {
+    int width = Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 1;
+    table = new long[width];
+    sampleSize = 10 * Math.max(maximumSize, 16);
+  }
+
+  /**
+   * <p>Gets the estimated number of recent accesses.</p>
+   *
+   * @param hash the hash code of the key
+   * @return the estimate between 0 and 15
+   */
+  int frequency(int hash) {
+    int ret = MAX_COUNT;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int index = index(hash, i);
+      int shift = offset(hash, i) << 2;
+      ret = Math.min(ret, (int) ((table[index] >>> shift) & 0xf));
+    }
+    return ret;
+  }
+
+  /**
+   * <p>Records an access.</p>
+   *
+   * @param hash the hash code of the key
+   */
+  void increment(int hash) {
+    boolean added = false;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int index = index(hash, i);
+      int shift = offset(hash, i) << 2;
+      if (((table[index] >>> shift) & 0xf) < MAX_COUNT) {
+        table[index] += 1L << shift;
+        added = true;
+      }
+    }
+    if (added && ++additions == sampleSize) {
+      reset();
+    }
+  }
+
+  /* halves all counters */
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions /= 2;
+  }
+
+  private int index(int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h ^= h >>> 32;
+    return (int) h & (table.length - 1);
+  }
+
+  /* the counter within the long; each row uses its own 4 of the 16 counters */
+  private static int offset(int hash, int row) {
+    return (row << 2) + ((hash >>> (row << 3)) & 3);
+  }
+}
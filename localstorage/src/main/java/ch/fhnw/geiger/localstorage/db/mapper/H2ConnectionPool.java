@@ -0,0 +1,589 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.StorageException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A bounded pool of JDBC connections used by the H2SQL mapper.</p>
+ *
+ * <p>The pool holds one dedicated write connection and a bounded set of read connections.
+ * Connections are leased per thread. A thread asking for a connection while already holding
+ * one gets the held connection back, so mapper operations calling other mapper operations
+ * never drain the pool. A thread holding the write connection uses it for reads as well.</p>
+ *
+ * <p>Idle read connections above the minimum pool size are closed once they have not been
+ * used for the configured idle timeout.</p>
+ *
+ * <p>Each connection caches the prepared statements created through its lease. Cached
+ * statements are owned by the pool and closed together with their connection; callers must
+ * close the result sets they obtain but never the statements themselves.</p>
+ *
+ * <p>Every outermost write lease is one transaction. It is committed when the lease is
+ * closed after {@link Lease#commit()} has been called and rolled back otherwise. In group
+ * commit mode the transactions of concurrent writers are merged: each writer works within a
+ * savepoint of a shared transaction and waits until a leader has committed and synced all
+ * pending work with a single durable flush.</p>
+ */
+class H2ConnectionPool {
+
+  /**
+   * <p>A connection held by the pool together with its bookkeeping data.</p>
+   */
+  static class PooledConnection {
+
+    private final Connection connection;
+
+    /* prepared statements by SQL string; only accessed by the thread holding the lease */
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    private long lastUsed = System.currentTimeMillis();
+
+    PooledConnection(Connection connection) {
+      this.connection = connection;
+    }
+
+    Connection getConnection() {
+      return connection;
+    }
+
+    private void close() {
+      for (PreparedStatement ps : statements.values()) {
+        try {
+          ps.close();
+        } catch (SQLException e) {
+          // statement is discarded anyway
+        }
+      }
+      statements.clear();
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        // connection is discarded anyway
+      }
+    }
+  }
+
+  /**
+   * <p>The range of transaction sequence numbers lost by a failed group commit.</p>
+   */
+  private static class FailedGroup {
+
+    private final long from;
+    private final long to;
+    private final SQLException cause;
+
+    private FailedGroup(long from, long to, SQLException cause) {
+      this.from = from;
+      this.to = to;
+      this.cause = cause;
+    }
+  }
+
+  /**
+   * <p>A connection leased by a thread.</p>
+   *
+   * <p>Closing a lease hands the connection back to the pool as soon as the outermost lease
+   * of the thread is closed.</p>
+   */
+  final class Lease implements AutoCloseable {
+
+    private final PooledConnection pooledConnection;
+    private final boolean exclusive;
+    private final boolean write;
+    private final Lease outer;
+    private int depth = 1;
+    private Savepoint savepoint = null;
+    private boolean successful = false;
+
+    private Lease(PooledConnection pooledConnection, boolean exclusive, boolean write,
+                  Lease outer) {
+      this.pooledConnection = pooledConnection;
+      this.exclusive = exclusive;
+      this.write = write;
+      this.outer = outer;
+    }
+
+    /**
+     * <p>Gets the leased connection.</p>
+     *
+     * @return the connection to be used by the current thread
+     */
+    Connection getConnection() {
+      return pooledConnection.getConnection();
+    }
+
+    /**
+     * <p>Gets a prepared statement for the given SQL from the statement cache of the leased
+     * connection.</p>
+     *
+     * <p>The statement is prepared on first use only. It must not be closed by the caller and
+     * must not be executed again while a result set obtained from it is still in use.</p>
+     *
+     * @param sql the SQL statement to be prepared
+     * @return the cached prepared statement
+     * @throws SQLException if the statement cannot be prepared
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement ps = pooledConnection.statements.get(sql);
+      if (ps != null && !ps.isClosed()) {
+        statementCacheHits.incrementAndGet();
+        return ps;
+      }
+      statementCacheMisses.incrementAndGet();
+      ps = pooledConnection.getConnection().prepareStatement(sql);
+      pooledConnection.statements.put(sql, ps);
+      return ps;
+    }
+
+    /**
+     * <p>Returns true if the lease holds the write connection.</p>
+     *
+     * @return true if writes are allowed on this lease
+     */
+    boolean isWrite() {
+      return write;
+    }
+
+    /**
+     * <p>Marks the transaction of this lease as successful.</p>
+     *
+     * <p>The transaction is committed when the outermost lease of the thread is closed. Calls
+     * on nested leases have no effect, so the outermost operation alone decides on the
+     * outcome. Leases closed without calling this method are rolled back.</p>
+     */
+    void commit() {
+      if (depth == 1) {
+        successful = true;
+      }
+    }
+
+    @Override
+    public void close() {
+      release(this);
+    }
+  }
+
+  private final String jdbcUrl;
+  private final String jdbcUsername;
+  private final String jdbcPassword;
+  private final int minConnections;
+  private final int maxConnections;
+  private final long idleTimeout;
+
+  private final ReentrantLock writeLock = new ReentrantLock(true);
+  private final PooledConnection writeConnection;
+
+  /* idle read connections; most recently used first. Guarded by this. */
+  private final Deque<PooledConnection> idle = new ArrayDeque<>();
+  private int openConnections = 0;
+  private boolean closed = false;
+
+  private final ThreadLocal<Lease> leases = new ThreadLocal<>();
+
+  private final AtomicLong statementCacheHits = new AtomicLong();
+  private final AtomicLong statementCacheMisses = new AtomicLong();
+
+  /* group commit settings */
+  private volatile boolean groupCommit = false;
+  private volatile long groupCommitWindow = 0;
+
+  /* sequence number of the last transaction awaiting a group commit. Guarded by writeLock. */
+  private long pendingSequence = 0;
+
+  /* group commit state. Guarded by commitMonitor. */
+  private final Object commitMonitor = new Object();
+  private long committedSequence = 0;
+  private boolean committing = false;
+  private final Deque<FailedGroup> failedGroups = new ArrayDeque<>();
+
+  /**
+   * <p>Creates a new pool and opens the write connection and the minimum number of read
+   * connections.</p>
+   *
+   * @param jdbcUrl        the url to connect to
+   * @param jdbcUsername   the username of the database
+   * @param jdbcPassword   the password of the database
+   * @param minConnections the number of read connections kept open while idle
+   * @param maxConnections the maximum number of read connections (0 routes reads through the
+   *                       write connection)
+   * @param idleTimeout    the time in milliseconds after which idle read connections above
+   *                       the minimum are closed
+   * @throws SQLException if the connections cannot be opened
+   */
+  H2ConnectionPool(String jdbcUrl, String jdbcUsername, String jdbcPassword,
+                   int minConnections, int maxConnections, long idleTimeout)
+      throws SQLException {
+    if (minConnections < 0 || maxConnections < minConnections || idleTimeout < 0) {
+      throw new IllegalArgumentException("illegal pool sizing (min=" + minConnections
+          + ";max=" + maxConnections + ";idleTimeout=" + idleTimeout + ")");
+    }
+    this.jdbcUrl = jdbcUrl;
+    this.jdbcUsername = jdbcUsername;
+    this.jdbcPassword = jdbcPassword;
+    this.minConnections = minConnections;
+    // a private in-memory database is not shared between connections
+    this.maxConnections = isPrivateDatabase(jdbcUrl) ? 0 : maxConnections;
+    this.idleTimeout = idleTimeout;
+
+    writeConnection = new PooledConnection(
+        DriverManager.getConnection(jdbcUrl, jdbcUsername, jdbcPassword));
+    writeConnection.getConnection().setAutoCommit(false);
+    synchronized (this) {
+      while (openConnections < Math.min(minConnections, this.maxConnections)) {
+        idle.addLast(openReadConnection());
+        openConnections++;
+      }
+    }
+  }
+
+  private static boolean isPrivateDatabase(String jdbcUrl) {
+    return jdbcUrl.startsWith("jdbc:h2:mem:;") || "jdbc:h2:mem:".equals(jdbcUrl);
+  }
+
+  private PooledConnection openReadConnection() throws SQLException {
+    Connection c = DriverManager.getConnection(jdbcUrl, jdbcUsername, jdbcPassword);
+    c.setReadOnly(true);
+    return new PooledConnection(c);
+  }
+
+  /**
+   * <p>Leases a connection for the current thread.</p>
+   *
+   * <p>Write leases are exclusive and transactional. If the current thread already holds a
+   * suitable lease the same connection is returned.</p>
+   *
+   * @param write true if the connection is used for modifications
+   * @return the lease to be closed after use
+   * @throws SQLException if no connection could be obtained
+   */
+  Lease lease(boolean write) throws SQLException {
+    Lease current = leases.get();
+    if (current != null && (current.write || !write)) {
+      current.depth++;
+      return current;
+    }
+    Lease lease;
+    if (write || maxConnections == 0) {
+      writeLock.lock();
+      try {
+        if (closed) {
+          throw new SQLException("connection pool is closed");
+        }
+        lease = new Lease(writeConnection, true, write, current);
+        if (write && groupCommit) {
+          lease.savepoint = writeConnection.getConnection().setSavepoint();
+        }
+      } catch (SQLException e) {
+        writeLock.unlock();
+        throw e;
+      }
+    } else {
+      lease = new Lease(acquireReadConnection(), false, false, null);
+    }
+    leases.set(lease);
+    return lease;
+  }
+
+  private synchronized PooledConnection acquireReadConnection() throws SQLException {
+    while (true) {
+      if (closed) {
+        throw new SQLException("connection pool is closed");
+      }
+      if (!idle.isEmpty()) {
+        return idle.removeFirst();
+      }
+      if (openConnections < maxConnections) {
+        PooledConnection c = openReadConnection();
+        openConnections++;
+        return c;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("interrupted while waiting for a connection", e);
+      }
+    }
+  }
+
+  private void release(Lease lease) {
+    if (--lease.depth > 0) {
+      return;
+    }
+    if (lease.outer == null) {
+      leases.remove();
+    } else {
+      leases.set(lease.outer);
+    }
+    if (lease.exclusive) {
+      long sequence;
+      try {
+        sequence = endTransaction(lease);
+      } finally {
+        writeLock.unlock();
+      }
+      if (sequence > 0) {
+        awaitGroupCommit(sequence);
+      }
+      return;
+    }
+    synchronized (this) {
+      PooledConnection c = lease.pooledConnection;
+      if (closed) {
+        c.close();
+        openConnections--;
+      } else {
+        c.lastUsed = System.currentTimeMillis();
+        idle.addFirst(c);
+        evictIdle(c.lastUsed);
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * <p>Ends the transaction of an outermost write lease; callers hold the write lock.</p>
+   *
+   * @param lease the lease to be ended
+   * @return the sequence number to wait for if the transaction awaits a group commit or 0
+   */
+  private long endTransaction(Lease lease) {
+    if (!lease.write) {
+      return 0;
+    }
+    Connection c = writeConnection.getConnection();
+    try {
+      if (c.isClosed()) {
+        // database was shut down; nothing left to end
+        return 0;
+      }
+      if (lease.savepoint == null) {
+        if (lease.successful) {
+          c.commit();
+        } else {
+          c.rollback();
+        }
+        return 0;
+      }
+      if (lease.successful) {
+        c.releaseSavepoint(lease.savepoint);
+        return ++pendingSequence;
+      }
+      c.rollback(lease.savepoint);
+      return 0;
+    } catch (SQLException e) {
+      rollbackQuietly(c);
+      throw new StorageException("Could not end transaction", e);
+    }
+  }
+
+  private static void rollbackQuietly(Connection c) {
+    try {
+      c.rollback();
+    } catch (SQLException e) {
+      // the original problem is reported by the caller
+    }
+  }
+
+  /**
+   * <p>Waits until the transaction with the given sequence number has been committed.</p>
+   *
+   * <p>If no commit is in progress, the calling thread becomes the leader and commits all
+   * work pending at that time with one commit and one sync.</p>
+   */
+  private void awaitGroupCommit(long sequence) {
+    while (true) {
+      synchronized (commitMonitor) {
+        if (committedSequence >= sequence) {
+          checkGroupCommitFailure(sequence);
+          return;
+        }
+        if (committing) {
+          try {
+            commitMonitor.wait();
+          } catch (InterruptedException e) {
+            // keep waiting; the outcome of the transaction is not yet known
+            Thread.currentThread().interrupt();
+          }
+          continue;
+        }
+        committing = true;
+      }
+
+      // this thread leads the next group commit
+      long window = groupCommitWindow;
+      if (window > 0) {
+        try {
+          Thread.sleep(window);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      commitGroup();
+    }
+  }
+
+  /* commits all pending work of the group and publishes the outcome */
+  private void commitGroup() {
+    SQLException failure = null;
+    long upTo;
+    writeLock.lock();
+    try {
+      upTo = pendingSequence;
+      try {
+        Connection c = writeConnection.getConnection();
+        c.commit();
+        try (Statement st = c.createStatement()) {
+          st.execute("CHECKPOINT SYNC");
+        }
+      } catch (SQLException e) {
+        failure = e;
+        rollbackQuietly(writeConnection.getConnection());
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    synchronized (commitMonitor) {
+      if (failure != null) {
+        failedGroups.addLast(new FailedGroup(committedSequence + 1, upTo, failure));
+        while (failedGroups.size() > 16) {
+          failedGroups.removeFirst();
+        }
+      }
+      committedSequence = Math.max(committedSequence, upTo);
+      committing = false;
+      commitMonitor.notifyAll();
+    }
+  }
+
+  /* callers hold commitMonitor */
+  private void checkGroupCommitFailure(long sequence) {
+    for (FailedGroup group : failedGroups) {
+      if (sequence >= group.from && sequence <= group.to) {
+        throw new StorageException("Could not commit transaction", group.cause);
+      }
+    }
+  }
+
+  /**
+   * <p>Enables or disables group commits.</p>
+   *
+   * <p>Any work pending for a group commit is committed before the mode changes.</p>
+   *
+   * @param enabled true if concurrent transactions should be committed in groups
+   * @param window  the time in milliseconds a group leader waits for further writers before
+   *                committing (0 commits immediately)
+   * @throws SQLException if pending work could not be committed
+   */
+  void setGroupCommit(boolean enabled, long window) throws SQLException {
+    if (window < 0) {
+      throw new IllegalArgumentException("group commit window may not be negative");
+    }
+    writeLock.lock();
+    try {
+      groupCommitWindow = window;
+      if (groupCommit != enabled) {
+        flush();
+        groupCommit = enabled;
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * <p>Commits all work pending for a group commit and syncs the database to disk.</p>
+   *
+   * @throws SQLException if the database could not be flushed
+   */
+  void flush() throws SQLException {
+    if (leases.get() != null) {
+      throw new IllegalStateException("cannot flush while holding a lease");
+    }
+    writeLock.lock();
+    long upTo;
+    try {
+      upTo = pendingSequence;
+      Connection c = writeConnection.getConnection();
+      c.commit();
+      try (Statement st = c.createStatement()) {
+        st.execute("CHECKPOINT SYNC");
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    synchronized (commitMonitor) {
+      committedSequence = Math.max(committedSequence, upTo);
+      commitMonitor.notifyAll();
+    }
+  }
+
+  /* closes idle connections beyond the minimum pool size; callers hold the monitor */
+  private void evictIdle(long now) {
+    while (openConnections > minConnections && !idle.isEmpty()
+        && now - idle.peekLast().lastUsed > idleTimeout) {
+      idle.removeLast().close();
+      openConnections--;
+    }
+  }
+
+  /**
+   * <p>Gets the number of currently open read connections.</p>
+   *
+   * @return the number of read connections open (idle or leased)
+   */
+  synchronized int getOpenConnections() {
+    return openConnections;
+  }
+
+  /**
+   * <p>Gets the number of prepared statements served from the statement cache.</p>
+   *
+   * @return the number of cache hits since the pool was created
+   */
+  long getStatementCacheHits() {
+    return statementCacheHits.get();
+  }
+
+  /**
+   * <p>Gets the number of statements which had to be prepared.</p>
+   *
+   * @return the number of cache misses since the pool was created
+   */
+  long getStatementCacheMisses() {
+    return statementCacheMisses.get();
+  }
+
+  /**
+   * <p>Closes all connections of the pool.</p>
+   *
+   * <p>Read connections currently leased are closed as soon as they are returned.</p>
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+      while (!idle.isEmpty()) {
+        idle.removeFirst().close();
+        openConnections--;
+      }
+      notifyAll();
+    }
+    writeLock.lock();
+    try {
+      writeConnection.close();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package ch.fhnw.geiger.localstorage.db.mapper;
 
+import ch.fhnw.geiger.localstorage.NodeNotFoundException;
 import ch.fhnw.geiger.localstorage.SearchCriteria;
 import ch.fhnw.geiger.localstorage.StorageController;
 import ch.fhnw.geiger.localstorage.StorageException;
@@ -10,16 +11,20 @@ import ch.fhnw.geiger.localstorage.db.data.Node;
 import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
 import ch.fhnw.geiger.localstorage.db.data.NodeValue;
 import ch.fhnw.geiger.localstorage.db.data.NodeValueImpl;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.regex.Pattern;
 
 
 /**
@@ -31,6 +36,7 @@ public class H2SqlMapper extends AbstractMapper {
 
   private static final int MAXFIELDSIZE = 1024;
 
+  /* the schema of version 1; later versions are reached by the migrations below */
   private static final String initString = ""
       + "CREATE TABLE storage_node (\n"
       + "path VARCHAR(" + MAXFIELDSIZE + ") NULL PRIMARY KEY,\n"
@@ -64,10 +70,116 @@ public class H2SqlMapper extends AbstractMapper {
       + "ALTER TABLE translation ADD FOREIGN KEY(path, key) REFERENCES node_value(path,key);\n"
       + "";
 
-  private Connection conn;
-  private final String jdbcUrl;
-  private final String jdbcUsername;
-  private final String jdbcPassword;
+  /* schema migrations; entry i upgrades a database from version i + 1 to version i + 2 */
+  private static final String[] migrations = new String[]{
+      // 2: replace the children list by a parent column
+      ""
+          + "ALTER TABLE storage_node ADD COLUMN parent VARCHAR(" + MAXFIELDSIZE + ");\n"
+          + "UPDATE storage_node SET parent = "
+          + "SUBSTRING(path, 1, LENGTH(path) - LENGTH(name) - 1);\n"
+          + "ALTER TABLE storage_node ALTER COLUMN parent SET NOT NULL;\n"
+          + "ALTER TABLE storage_node DROP COLUMN children;\n"
+          + "CREATE INDEX IF NOT EXISTS storage_node_parent ON storage_node(parent);\n",
+      // 3: secondary indexes for searches
+      ""
+          + "CREATE INDEX IF NOT EXISTS storage_node_owner ON storage_node(owner);\n"
+          + "CREATE INDEX IF NOT EXISTS storage_node_visibility ON storage_node(visibility);\n"
+          + "CREATE INDEX IF NOT EXISTS node_value_type ON node_value(type);\n"
+          + "CREATE INDEX IF NOT EXISTS node_value_last_modified "
+          + "ON node_value(last_modified);\n"
+    };
+
+  /**
+   * the schema version this mapper works on.
+   */
+  public static final int SCHEMA_VERSION = migrations.length + 1;
+
+  /* selects nodes with all their values and translations (one row per translation) */
+  private static final String SQL_SELECT_NODES = "SELECT n.path, n.owner, n.visibility, "
+      + "v.key, v.value, v.type, v.last_modified, t.identifier, t.locale, t.translation "
+      + "FROM storage_node n "
+      + "LEFT JOIN node_value v ON v.path = n.path "
+      + "LEFT JOIN translation t ON t.path = v.path AND t.key = v.key ";
+  private static final String SQL_GET_NODE = SQL_SELECT_NODES + "WHERE n.path = ?";
+  /* selects the names of the children of a node */
+  private static final String SQL_GET_CHILDREN =
+      "SELECT parent, name FROM storage_node WHERE parent = ?";
+  private static final String SQL_HAS_CHILDREN =
+      "SELECT 1 FROM storage_node WHERE parent = ? LIMIT 1";
+  private static final String SQL_NODE_EXISTS = "SELECT 1 FROM storage_node WHERE path = ?";
+  private static final String SQL_VALUE_EXISTS =
+      "SELECT 1 FROM node_value WHERE path = ? AND key = ?";
+  /* selects a single value with all its translations (one row per translation) */
+  private static final String SQL_GET_VALUE = "SELECT v.key, v.value, v.type, v.last_modified, "
+      + "t.identifier, t.locale, t.translation "
+      + "FROM node_value v "
+      + "LEFT JOIN translation t ON t.path = v.path AND t.key = v.key "
+      + "WHERE v.path = ? AND v.key = ?";
+  private static final String SQL_INSERT_NODE = "INSERT INTO storage_node(path, owner, name, "
+      + "visibility, parent) VALUES (?,?,?,?,?)";
+  private static final String SQL_UPDATE_NODE = "UPDATE storage_node SET(owner, visibility) "
+      + "= (?,?) WHERE path = ?";
+  private static final String SQL_DELETE_NODE = "DELETE FROM storage_node WHERE path = ?";
+  private static final String SQL_INSERT_VALUE = "INSERT INTO node_value (path, key, value, "
+      + "type, locale, last_modified) VALUES (?,?,?,?,?,?)";
+  private static final String SQL_DELETE_VALUE =
+      "DELETE FROM node_value WHERE (path = ? AND key = ?)";
+  private static final String SQL_INSERT_TRANSLATION = "INSERT INTO translation (path, key, "
+      + "identifier, locale, translation) VALUES (?,?,?,?,?)";
+  private static final String SQL_DELETE_TRANSLATIONS =
+      "DELETE FROM translation WHERE (path = ? AND key = ?)";
+  private static final String SQL_UPDATE_VALUE = "UPDATE node_value SET(value, type, "
+      + "last_modified) = (?,?,?) WHERE (path = ? AND key = ?)";
+  private static final String SQL_UPDATE_TRANSLATION = "UPDATE translation SET translation = ? "
+      + "WHERE (path = ? AND key = ? AND identifier = ? AND locale = ?)";
+  private static final String SQL_DELETE_TRANSLATION = "DELETE FROM translation "
+      + "WHERE (path = ? AND key = ? AND identifier = ? AND locale = ?)";
+  /* copy a subtree to a new path; the subtree condition is appended */
+  private static final String SQL_RENAME_NODES = "INSERT INTO storage_node(path, owner, name, "
+      + "visibility, parent) SELECT CONCAT(?, SUBSTRING(path, ?)), owner, "
+      + "CASE WHEN path = ? THEN ? ELSE name END, visibility, "
+      + "CASE WHEN path = ? THEN ? ELSE CONCAT(?, SUBSTRING(parent, ?)) END "
+      + "FROM storage_node WHERE ";
+  private static final String SQL_RENAME_VALUES = "INSERT INTO node_value(path, key, value, "
+      + "type, locale, last_modified) SELECT CONCAT(?, SUBSTRING(path, ?)), key, value, type, "
+      + "locale, last_modified FROM node_value WHERE ";
+  private static final String SQL_RENAME_TRANSLATIONS = "INSERT INTO translation(path, key, "
+      + "identifier, locale, translation) SELECT CONCAT(?, SUBSTRING(path, ?)), key, "
+      + "identifier, locale, translation FROM translation WHERE ";
+  /* delete a subtree; the subtree condition is appended */
+  private static final String SQL_DELETE_SUBTREE_TRANSLATIONS = "DELETE FROM translation WHERE ";
+  private static final String SQL_DELETE_SUBTREE_VALUES = "DELETE FROM node_value WHERE ";
+  private static final String SQL_DELETE_SUBTREE_NODES = "DELETE FROM storage_node WHERE ";
+  /* selects the names of the children of all nodes matching a search condition */
+  private static final String SQL_SEARCH_CHILDREN = "SELECT parent, name FROM storage_node "
+      + "WHERE parent IN (SELECT n.path FROM storage_node n WHERE ";
+  /* read the paths for the path filter */
+  private static final String SQL_COUNT_NODES = "SELECT COUNT(*) FROM storage_node";
+  private static final String SQL_GET_PATHS = "SELECT path FROM storage_node";
+  private static final String SQL_GET_SUBTREE_PATHS = "SELECT path FROM storage_node WHERE ";
+
+  /* matches regular expressions which contain no meta characters */
+  private static final Pattern LITERAL = Pattern.compile("[^\\\\.\\[\\]{}()*+?^$|]*");
+
+  /**
+   * the default number of read connections kept open while idle.
+   */
+  public static final int DEFAULT_MIN_CONNECTIONS = 1;
+
+  /**
+   * the default maximum number of concurrently open read connections.
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS =
+      Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * the default time in milliseconds after which surplus idle read connections are closed.
+   */
+  public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+  private final H2ConnectionPool pool;
+  /* answers lookups of missing nodes without querying the database; null if disabled */
+  private volatile PathFilter pathFilter = null;
   private StorageController controller = null;
 
   /**
@@ -80,21 +192,43 @@ public class H2SqlMapper extends AbstractMapper {
    * @param jdbcPassword the password of the database
    */
   public H2SqlMapper(String jdbcUrl, String jdbcUsername, String jdbcPassword) {
-    // Connect to the database
-    this.jdbcUrl = jdbcUrl;
-    this.jdbcUsername = jdbcUsername;
-    this.jdbcPassword = jdbcPassword;
+    this(jdbcUrl, jdbcUsername, jdbcPassword, DEFAULT_MIN_CONNECTIONS, DEFAULT_MAX_CONNECTIONS,
+        DEFAULT_IDLE_TIMEOUT);
+  }
 
+  /**
+   * <p>Constructor for a generic, persisting data Mapper based on H2SQL with a sized
+   * connection pool.</p>
+   *
+   * <p>All modifications are serialized on a single write connection. Reads are served by a
+   * pool of read connections and scale with the number of concurrent readers.</p>
+   *
+   * @param jdbcUrl        the url to connect to
+   * @param jdbcUsername   the username of the database
+   * @param jdbcPassword   the password of the database
+   * @param minConnections the number of read connections kept open while idle
+   * @param maxConnections the maximum number of read connections
+   * @param idleTimeout    the time in milliseconds after which surplus idle read connections
+   *                       are closed
+   */
+  public H2SqlMapper(String jdbcUrl, String jdbcUsername, String jdbcPassword,
+                     int minConnections, int maxConnections, long idleTimeout) {
     try {
-      // connect only if database already exists
-      conn = DriverManager.getConnection(jdbcUrl + ";IFEXISTS=TRUE", jdbcUsername, jdbcPassword);
+      pool = new H2ConnectionPool(jdbcUrl, jdbcUsername, jdbcPassword, minConnections,
+          maxConnections, idleTimeout);
+    } catch (SQLException e) {
+      throw new StorageException("Could not connect to database", e);
+    }
+
+    try (H2ConnectionPool.Lease lease = lease(true)) {
       // check if database is already initialized
-      conn.prepareStatement("SELECT * FROM node_value LIMIT 1;").executeQuery();
+      lease.prepare("SELECT * FROM node_value LIMIT 1;").executeQuery().close();
     } catch (SQLException e) {
       // database does not exists it should be created
       System.out.println("## got exception " + e + "... initializing database");
       initialize();
     }
+    migrate();
   }
 
   @Override
@@ -102,345 +236,856 @@ public class H2SqlMapper extends AbstractMapper {
     this.controller = controller;
   }
 
-  private void initialize() {
+  /**
+   * <p>Gets the number of SQL statements served from the prepared statement cache.</p>
+   *
+   * @return the number of statement cache hits
+   */
+  public long getStatementCacheHits() {
+    return pool.getStatementCacheHits();
+  }
+
+  /**
+   * <p>Gets the number of SQL statements which had to be parsed and prepared.</p>
+   *
+   * @return the number of statement cache misses
+   */
+  public long getStatementCacheMisses() {
+    return pool.getStatementCacheMisses();
+  }
+
+  /**
+   * <p>Gets the number of node lookups answered by the path filter.</p>
+   *
+   * @return the number of lookups of missing nodes which did not query the database
+   */
+  public long getFilteredLookups() {
+    PathFilter filter = pathFilter;
+    return filter == null ? 0 : filter.getFilteredCount();
+  }
+
+  /**
+   * <p>Enables or disables the path filter.</p>
+   *
+   * <p>The filter is a bloom filter over the paths of all stored nodes, loaded from the
+   * database when enabled and kept up to date by the writes of this mapper. Lookups of nodes
+   * which do not exist are mostly answered by the filter without querying the database.</p>
+   *
+   * <p>The filter does not see nodes added by others. It must only be enabled if this mapper
+   * is the only writer of the database; it must not be enabled for databases shared with
+   * other processes or mappers (e.g. with AUTO_SERVER=TRUE or server URLs), as their nodes
+   * would be reported as missing. The filter is disabled by default.</p>
+   *
+   * @param enabled true if lookups should be filtered
+   */
+  public void setPathFilter(boolean enabled) {
+    if (enabled) {
+      rebuildPathFilter();
+    } else {
+      pathFilter = null;
+    }
+  }
+
+  /* true if the path filter is enabled and the node certainly does not exist */
+  private boolean isFiltered(String path) {
+    PathFilter filter = pathFilter;
+    return filter != null && !filter.mightContain(path);
+  }
+
+  /**
+   * <p>Builds the path filter from the stored nodes.</p>
+   *
+   * <p>The paths are read on the write connection; no node can be added meanwhile. Lookups
+   * use the old filter until the new one is complete.</p>
+   */
+  private void rebuildPathFilter() {
+    try (H2ConnectionPool.Lease lease = lease(true)) {
+      PathFilter filter = pathFilter == null ? new PathFilter() : pathFilter;
+      int count;
+      try (ResultSet rs = lease.prepare(SQL_COUNT_NODES).executeQuery()) {
+        rs.next();
+        count = rs.getInt(1);
+      }
+      PathFilter.Rebuild rebuild = filter.rebuild(count);
+      try (ResultSet rs = lease.prepare(SQL_GET_PATHS).executeQuery()) {
+        while (rs.next()) {
+          rebuild.add(rs.getString(1));
+        }
+      }
+      filter.install(rebuild);
+      pathFilter = filter;
+    } catch (SQLException e) {
+      throw new StorageException("Could not read the paths of the stored nodes", e);
+    }
+  }
+
+  /**
+   * <p>Enables or disables group commits.</p>
+   *
+   * <p>Each mapper operation runs in its own transaction. Without group commits every
+   * transaction is committed on its own. With group commits enabled, transactions of
+   * concurrent writers are merged and made durable by a single commit and disk sync. Each
+   * operation still returns only after its changes are committed, and a failing operation
+   * rolls back its own changes only.</p>
+   *
+   * @param enabled true if group commits should be used
+   * @param window  the time in milliseconds to wait for further writers before committing a
+   *                group (0 commits as soon as the previous group is done)
+   */
+  public void setGroupCommit(boolean enabled, long window) {
     try {
-      conn = DriverManager.getConnection(jdbcUrl, jdbcUsername, jdbcPassword);
-      conn.prepareStatement(initString).executeUpdate();
+      pool.setGroupCommit(enabled, window);
     } catch (SQLException e) {
-      try {
-        // delete malfunctioning database
-        conn.prepareStatement("drop all objects delete files").execute();
-      } catch (SQLException e2) {
-        throw new StorageException("Whoops... error while tearing down database", e2);
+      throw new StorageException("Could not switch group commit mode", e);
+    }
+  }
+
+  private H2ConnectionPool.Lease lease(boolean write) {
+    try {
+      return pool.lease(write);
+    } catch (SQLException e) {
+      throw new StorageException("Could not obtain a database connection", e);
+    }
+  }
+
+  private void initialize() {
+    try (H2ConnectionPool.Lease lease = lease(true)) {
+      try (Statement st = lease.getConnection().createStatement()) {
+        st.executeUpdate(initString);
+        lease.commit();
+      } catch (SQLException e) {
+        try (Statement st = lease.getConnection().createStatement()) {
+          // delete malfunctioning database
+          st.execute("drop all objects delete files");
+        } catch (SQLException e2) {
+          throw new StorageException("Whoops... error while tearing down database", e2);
+        }
+        throw new StorageException("Could not initialize database", e);
+      }
+    }
+  }
+
+  /**
+   * <p>Gets the schema version of the database.</p>
+   *
+   * <p>Databases created before versions were recorded are identified by their columns and
+   * get their version recorded.</p>
+   *
+   * @param lease the write lease to be used
+   * @return the current schema version
+   * @throws SQLException if the version cannot be determined
+   */
+  private int getSchemaVersion(H2ConnectionPool.Lease lease) throws SQLException {
+    try (Statement st = lease.getConnection().createStatement()) {
+      st.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version (version INT NOT NULL)");
+      try (ResultSet rs = st.executeQuery("SELECT MAX(version) FROM schema_version")) {
+        rs.next();
+        int version = rs.getInt(1);
+        if (!rs.wasNull()) {
+          return version;
+        }
+      }
+    }
+    PreparedStatement ps = lease.prepare("SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS "
+        + "WHERE TABLE_NAME = 'STORAGE_NODE' AND COLUMN_NAME = 'PARENT'");
+    int version;
+    try (ResultSet rs = ps.executeQuery()) {
+      rs.next();
+      version = rs.getInt(1) > 0 ? 2 : 1;
+    }
+    setSchemaVersion(lease, version);
+    return version;
+  }
+
+  private void setSchemaVersion(H2ConnectionPool.Lease lease, int version)
+      throws SQLException {
+    try (Statement st = lease.getConnection().createStatement()) {
+      st.executeUpdate("DELETE FROM schema_version");
+      st.executeUpdate("INSERT INTO schema_version (version) VALUES (" + version + ")");
+    }
+  }
+
+  /**
+   * <p>Applies all pending schema migrations in order.</p>
+   *
+   * <p>Each migration is recorded in the schema_version table as soon as it has been applied.
+   * As H2 commits DDL statements implicitly, migrations are written to be safely repeatable
+   * where they create objects.</p>
+   */
+  private void migrate() {
+    int version;
+    try (H2ConnectionPool.Lease lease = lease(true)) {
+      version = getSchemaVersion(lease);
+      lease.commit();
+    } catch (SQLException e) {
+      throw new StorageException("Could not determine database schema version", e);
+    }
+    if (version > SCHEMA_VERSION) {
+      throw new StorageException("Database schema version " + version
+          + " is newer than the supported version " + SCHEMA_VERSION);
+    }
+    for (; version < SCHEMA_VERSION; version++) {
+      try (H2ConnectionPool.Lease lease = lease(true)) {
+        try (Statement st = lease.getConnection().createStatement()) {
+          st.executeUpdate(migrations[version - 1]);
+        }
+        setSchemaVersion(lease, version + 1);
+        lease.commit();
+      } catch (SQLException e) {
+        throw new StorageException("Could not migrate database schema to version "
+            + (version + 1), e);
       }
-      throw new StorageException("Could not initialize database", e);
     }
   }
 
   @Override
   public NodeImpl get(String path) throws StorageException {
+    NodeImpl node = read(path);
+    if (node == null) {
+      throw new NodeNotFoundException(path);
+    }
+    return node;
+  }
+
+  @Override
+  public Optional<Node> find(String path) throws StorageException {
+    return Optional.ofNullable(read(path));
+  }
+
+  /**
+   * <p>Materializes a node including its values and the names of its children.</p>
+   *
+   * @param path the fully qualified path of the node
+   * @return the node or null if the node does not exist
+   */
+  private NodeImpl read(String path) {
     checkPath(path);
     getSanity(path);
-    NodeImpl res;
-    String sqlStatement = "SELECT path, owner, name, visibility, children "
-        + "FROM storage_node WHERE path = ?";
-    try {
-      PreparedStatement ps = conn.prepareStatement(sqlStatement);
+    if (isFiltered(path)) {
+      return null;
+    }
+    try (H2ConnectionPool.Lease lease = lease(false)) {
+      PreparedStatement ps = lease.prepare(SQL_GET_NODE);
       ps.setString(1, path);
-      ResultSet rs = ps.executeQuery();
-      if (!rs.next()) {
-        throw new StorageException("Node does not exist");
-      } else {
-        res = new NodeImpl(rs.getString("path"));
-        String owner = rs.getString("owner");
-        if (owner != null) {
-          res.setOwner(owner);
+      try (ResultSet rs = ps.executeQuery()) {
+        Map<String, NodeImpl> nodes = readNodes(rs);
+        if (nodes.isEmpty()) {
+          return null;
         }
-        res.setVisibility(Visibility.valueOf(rs.getString("visibility")));
-        String children = rs.getString("children");
-        // get children as skeleton
-        if (!"".equals(children)) {
-          for (String childName : children.split(",")) {
-            res.addChild(new NodeImpl(path + ":" + childName, controller));
-          }
+        ps = lease.prepare(SQL_GET_CHILDREN);
+        ps.setString(1, path);
+        try (ResultSet children = ps.executeQuery()) {
+          readChildren(children, nodes);
         }
+        return nodes.get(path);
       }
     } catch (SQLException e) {
-      e.printStackTrace();
-      throw new StorageException("Could not retrieve node \"" + path + "\"");
+      throw new StorageException("Could not retrieve node \"" + path + "\"", e);
     }
+  }
 
-    // get all values and add to node
-    sqlStatement = "SELECT path,key,value,type,locale,last_modified "
-        + "FROM node_value WHERE path = ?";
-    String key;
-    try {
-      PreparedStatement ps = conn.prepareStatement(sqlStatement);
-      ps.setString(1, path);
-      ResultSet rs = ps.executeQuery();
-      while (rs.next()) {
-        key = rs.getString("key");
-        NodeValue value = new NodeValueImpl(key, rs.getString("value"),
-            rs.getString("type"), "",
-            Long.parseLong(rs.getString("last_modified")));
-
-        // get translations and add to node_value
-        String sqlStatementTranslations = "SELECT path,key,identifier,locale,translation "
-                + "FROM translation WHERE (path = ? AND key = ?)";
-        try {
-          PreparedStatement psTranslations = conn.prepareStatement(sqlStatementTranslations);
-          psTranslations.setString(1, path);
-          psTranslations.setString(2, key);
-          ResultSet rsTranslations = psTranslations.executeQuery();
-          while (rsTranslations.next()) {
-            String identifier = rsTranslations.getString("identifier");
-            if (Identifier.valueOf(identifier).equals(Identifier.VALUE)) {
-              // the translation is for a value
-              value.setValue(rsTranslations.getString("translation"),
-                      java.util.Locale.forLanguageTag(rsTranslations.getString("locale")));
-            } else if (Identifier.valueOf(identifier).equals(Identifier.DESCRIPTION)) {
-              // the translation is for a description
-              value.setDescription(rsTranslations.getString("translation"),
-                      java.util.Locale.forLanguageTag(rsTranslations.getString("locale")));
-            }
-          }
-        } catch (SQLException e) {
-          throw new StorageException("Could not retrieve description for node \"" + path
-                  + "\" and key \"" + key + "\"", e);
+  /**
+   * <p>Materializes nodes from a joined node/value/translation result set.</p>
+   *
+   * <p>The result set is read in a single pass. Rows may arrive in any order; each row
+   * carries the node columns and optionally one value with one of its translations.</p>
+   *
+   * @param rs the result set to be read
+   * @return the materialized nodes in order of their first appearance
+   * @throws SQLException if reading the result set fails
+   */
+  private Map<String, NodeImpl> readNodes(ResultSet rs) throws SQLException {
+    Map<String, NodeImpl> nodes = new LinkedHashMap<>();
+    Map<String, Map<String, NodeValue>> values = new HashMap<>();
+    while (rs.next()) {
+      String path = rs.getString("path");
+      NodeImpl node = nodes.get(path);
+      if (node == null) {
+        node = new NodeImpl(path);
+        String owner = rs.getString("owner");
+        if (owner != null) {
+          node.setOwner(owner);
+        }
+        node.setVisibility(Visibility.valueOf(rs.getString("visibility")));
+        nodes.put(path, node);
+        values.put(path, new HashMap<>());
+      }
+      String key = rs.getString("key");
+      if (key != null) {
+        Map<String, NodeValue> nodeValues = values.get(path);
+        NodeValue value = nodeValues.get(key);
+        if (value == null) {
+          value = readValue(rs);
+          nodeValues.put(key, value);
         }
-        res.addValue(value);
+        readTranslation(rs, value);
       }
+    }
+
+    // attach values after all translations have been read
+    for (Map.Entry<String, Map<String, NodeValue>> e : values.entrySet()) {
+      NodeImpl node = nodes.get(e.getKey());
+      for (NodeValue value : e.getValue().values()) {
+        node.addValue(value);
+      }
+    }
+    return nodes;
+  }
+
+  /**
+   * <p>Attaches children as skeletons to the nodes they belong to.</p>
+   *
+   * @param rs    a result set listing parent path and name of each child
+   * @param nodes the nodes to be completed
+   * @throws SQLException if reading the result set fails
+   */
+  private void readChildren(ResultSet rs, Map<String, NodeImpl> nodes) throws SQLException {
+    while (rs.next()) {
+      NodeImpl node = nodes.get(rs.getString("parent"));
+      if (node != null) {
+        node.addChild(new NodeImpl(node.getPath() + GenericController.PATH_DELIMITER
+            + rs.getString("name"), controller));
+      }
+    }
+  }
+
+  @Override
+  public boolean exists(String path) {
+    checkPath(path);
+    getSanity(path);
+    try (H2ConnectionPool.Lease lease = lease(false)) {
+      return exists(lease, path);
     } catch (SQLException e) {
-      throw new StorageException("Could not retrieve values for node \"" + path + "\"", e);
+      throw new StorageException("Could not check existence of node \"" + path + "\"", e);
+    }
+  }
+
+  /**
+   * <p>Checks whether a node exists without materializing it.</p>
+   *
+   * @param lease the lease to be used for querying
+   * @param path  the path of the node
+   * @return true if the node exists
+   * @throws SQLException if querying fails
+   */
+  private boolean exists(H2ConnectionPool.Lease lease, String path) throws SQLException {
+    if (isFiltered(path)) {
+      return false;
+    }
+    PreparedStatement ps = lease.prepare(SQL_NODE_EXISTS);
+    ps.setString(1, path);
+    try (ResultSet rs = ps.executeQuery()) {
+      return rs.next();
     }
-    return res;
   }
 
   @Override
-  public void add(Node node) {
-    checkPath(node);
-    // TODO This seems like bad coding, as we expect an exception to be thrown from
-    // get as only node are added which do not exist yet
-    // how to do this cleaner?
-    try {
-      get(node.getPath());
-      // throw temporary exception
-      throw new NullPointerException("Node does already exist");
-    } catch (StorageException e) {
-      // it is supposed to throw a storage exception if the node does not exist
-      // this is the normal case, therefore, nothing is done here
-    } catch (NullPointerException n) {
-      throw new StorageException("Node already exists");
-    }
-    if (node.getParentPath() != null && !"".equals(node.getParentPath())) {
-      if (get(node.getParentPath()) == null) {
-        throw new StorageException("Parent node \"" + node.getParentPath() + "\" does not exist");
-      }
-      // add reference to parent
-      NodeImpl parent = get(node.getParentPath());
-      parent.addChild(node);
-      update(parent);
-    }
-    String sqlStatement = "INSERT INTO storage_node(path, owner, name, visibility, children) "
-        + "VALUES (?,?,?,?,?)";
-    try {
-      PreparedStatement ps = conn.prepareStatement(sqlStatement);
-      ps.setString(1, node.getPath());
-      ps.setString(2, node.getOwner());
-      ps.setString(3, node.getName());
-      ps.setInt(4, node.getVisibility().ordinal());
-      ps.setString(5, node.getChildNodesCsv());
-      ps.execute();
+  public boolean existsValue(String path, String key) {
+    checkPath(path);
+    getSanity(path);
+    if (isFiltered(path)) {
+      return false;
+    }
+    try (H2ConnectionPool.Lease lease = lease(false)) {
+      return existsValue(lease, path, key);
     } catch (SQLException e) {
-      throw new StorageException("Could not add new node", e);
+      throw new StorageException("Could not check existence of value \"" + key + "\" in node \""
+          + path + "\"", e);
+    }
+  }
+
+  /**
+   * <p>Checks whether a value exists by probing the primary key only.</p>
+   *
+   * @param lease the lease to be used for querying
+   * @param path  the path of the node
+   * @param key   the key of the value
+   * @return true if the value exists
+   * @throws SQLException if querying fails
+   */
+  private boolean existsValue(H2ConnectionPool.Lease lease, String path, String key)
+      throws SQLException {
+    PreparedStatement ps = lease.prepare(SQL_VALUE_EXISTS);
+    ps.setString(1, path);
+    ps.setString(2, key);
+    try (ResultSet rs = ps.executeQuery()) {
+      return rs.next();
+    }
+  }
+
+  private static NodeValue readValue(ResultSet rs) throws SQLException {
+    return new NodeValueImpl(rs.getString("key"), rs.getString("value"),
+        rs.getString("type"), "", Long.parseLong(rs.getString("last_modified")));
+  }
+
+  private static void readTranslation(ResultSet rs, NodeValue value) throws SQLException {
+    String identifier = rs.getString("identifier");
+    if (identifier == null) {
+      return;
     }
-    // check if values exists and add them
-    for (NodeValue nv : node.getValues().values()) {
-      addValue(node.getPath(), nv);
+    if (Identifier.valueOf(identifier).equals(Identifier.VALUE)) {
+      // the translation is for a value
+      value.setValue(rs.getString("translation"), Locale.forLanguageTag(rs.getString("locale")));
+    } else if (Identifier.valueOf(identifier).equals(Identifier.DESCRIPTION)) {
+      // the translation is for a description
+      value.setDescription(rs.getString("translation"),
+          Locale.forLanguageTag(rs.getString("locale")));
     }
   }
 
+  @Override
+  public void add(Node node) {
+    try (H2ConnectionPool.Lease lease = lease(true)) {
+      checkPath(node);
+      // the filter is only switched while holding the write connection
+      PathFilter filter = pathFilter;
+      try {
+        if (exists(lease, node.getPath())) {
+          throw new StorageException("Node already exists");
+        }
+        // the parent references its children through their parent column only
+        if (node.getParentPath() != null && !"".equals(node.getParentPath())
+            && !exists(lease, node.getParentPath())) {
+          throw new StorageException("Parent node \"" + node.getParentPath() + "\" does not exist");
+        }
+        // readers must find the path in the filter as soon as the node is visible
+        if (filter != null) {
+          filter.add(node.getPath());
+        }
+        PreparedStatement ps = lease.prepare(SQL_INSERT_NODE);
+        ps.setString(1, node.getPath());
+        ps.setString(2, node.getOwner());
+        ps.setString(3, node.getName());
+        ps.setInt(4, node.getVisibility().ordinal());
+        ps.setString(5, node.getParentPath() == null ? "" : node.getParentPath());
+        ps.execute();
+      } catch (SQLException e) {
+        throw new StorageException("Could not add new node", e);
+      }
+      // check if values exists and add them
+      for (NodeValue nv : node.getValues().values()) {
+        addValue(node.getPath(), nv);
+      }
+      if (filter != null && filter.isFull()) {
+        rebuildPathFilter();
+      }
+      lease.commit();
+    }
+  }
+
+  /**
+   * <p>The state of a value as stored in the database.</p>
+   */
+  private static class StoredValue {
+
+    private final String value;
+    private final String type;
+
+    /* translations by identifier and language tag */
+    private final Map<Identifier, Map<String, String>> translations =
+        new EnumMap<>(Identifier.class);
+
+    private StoredValue(ResultSet rs) throws SQLException {
+      value = rs.getString("value");
+      type = rs.getString("type");
+      for (Identifier identifier : Identifier.values()) {
+        translations.put(identifier, new HashMap<>());
+      }
+    }
+  }
+
+  /**
+   * <p>Updates a node by writing only the changes against its stored state.</p>
+   *
+   * <p>The stored node is read by a single query. Ordinals, values and translations are only
+   * written if they differ; values not present in the node are removed.</p>
+   *
+   * @param node the node with the values to be written
+   * @throws StorageException if the node does not exist or the database encounters an error
+   */
   @Override
   public void update(Node node) {
     checkPath(node);
-    get(node.getPath()); // checks if node exists, throws storage exception if not exists
-
-    String sqlStatement = "UPDATE storage_node SET(owner, visibility, children) = (?,?,?) "
-        + "WHERE path = ?";
-    try {
-      PreparedStatement ps = conn.prepareStatement(sqlStatement);
-      ps.setString(1, node.getOwner());
-      ps.setInt(2, node.getVisibility().ordinal());
-      ps.setString(3, node.getChildNodesCsv());
-      ps.setString(4, node.getPath());
-      ps.execute();
+    String path = node.getPath();
+    if (isFiltered(path)) {
+      throw new NodeNotFoundException(path);
+    }
+    try (H2ConnectionPool.Lease lease = lease(true)) {
+      // read the stored state
+      PreparedStatement ps = lease.prepare(SQL_GET_NODE);
+      ps.setString(1, path);
+      boolean found = false;
+      String owner = null;
+      String visibility = null;
+      Map<String, StoredValue> stored = new HashMap<>();
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          found = true;
+          owner = rs.getString("owner");
+          visibility = rs.getString("visibility");
+          String key = rs.getString("key");
+          if (key == null) {
+            continue;
+          }
+          StoredValue value = stored.get(key);
+          if (value == null) {
+            value = new StoredValue(rs);
+            stored.put(key, value);
+          }
+          String identifier = rs.getString("identifier");
+          if (identifier != null) {
+            value.translations.get(Identifier.valueOf(identifier))
+                .put(rs.getString("locale"), rs.getString("translation"));
+          }
+        }
+      }
+      if (!found) {
+        throw new NodeNotFoundException(path);
+      }
 
-      // Values are being created if they dont exist else updated
-      for (Map.Entry<String, NodeValue> entry : node.getValues().entrySet()) {
-        if (getValue(node.getPath(), entry.getKey()) == null) {
-          addValue(node.getPath(), entry.getValue());
+      // write changes only
+      if (!Objects.equals(owner, node.getOwner())
+          || !node.getVisibility().toString().equals(visibility)) {
+        ps = lease.prepare(SQL_UPDATE_NODE);
+        ps.setString(1, node.getOwner());
+        ps.setInt(2, node.getVisibility().ordinal());
+        ps.setString(3, path);
+        ps.execute();
+      }
+      for (NodeValue value : node.getValues().values()) {
+        StoredValue storedValue = stored.remove(value.getKey());
+        if (storedValue == null) {
+          addValue(path, value);
         } else {
-          updateValue(node.getPath(), entry.getValue());
+          updateValue(lease, path, storedValue, value);
         }
       }
+      for (String key : stored.keySet()) {
+        removeValue(path, key);
+      }
+      lease.commit();
     } catch (SQLException e) {
       throw new StorageException("Could not update node", e);
     }
   }
 
+  private void updateValue(H2ConnectionPool.Lease lease, String path, StoredValue stored,
+                           NodeValue value) throws SQLException {
+    boolean changed = updateTranslations(lease, path, value.getKey(), Identifier.VALUE,
+        stored.translations.get(Identifier.VALUE), value.getAllValueTranslations());
+    changed |= updateTranslations(lease, path, value.getKey(), Identifier.DESCRIPTION,
+        stored.translations.get(Identifier.DESCRIPTION), value.getAllDescriptionTranslations());
+
+    // like NodeValue.equals() the modification date alone does not make a value differ; it is
+    // written together with changed content
+    if (changed || !Objects.equals(stored.value, value.getValue())
+        || !Objects.equals(stored.type, value.getType())) {
+      PreparedStatement ps = lease.prepare(SQL_UPDATE_VALUE);
+      ps.setString(1, value.getValue());
+      ps.setString(2, value.getType());
+      ps.setString(3, String.valueOf(value.getLastModified()));
+      ps.setString(4, path);
+      ps.setString(5, value.getKey());
+      ps.execute();
+    }
+  }
+
+  /* writes the differences of the translations; returns true if any translation changed */
+  private boolean updateTranslations(H2ConnectionPool.Lease lease, String path, String key,
+                                     Identifier identifier, Map<String, String> stored,
+                                     Map<Locale, String> translations) throws SQLException {
+    boolean changed = false;
+    Map<String, String> remaining = new HashMap<>(stored);
+    for (Map.Entry<Locale, String> entry : translations.entrySet()) {
+      String locale = entry.getKey().toLanguageTag();
+      String storedTranslation = remaining.remove(locale);
+      if (entry.getValue().equals(storedTranslation)) {
+        continue;
+      }
+      if (storedTranslation == null && identifier == Identifier.DESCRIPTION
+          && "".equals(entry.getValue())) {
+        // values without a stored description are materialized with an empty one
+        continue;
+      }
+      changed = true;
+      PreparedStatement ps = lease.prepare(storedTranslation == null
+          ? SQL_INSERT_TRANSLATION : SQL_UPDATE_TRANSLATION);
+      if (storedTranslation == null) {
+        ps.setString(1, path);
+        ps.setString(2, key);
+        ps.setInt(3, identifier.ordinal());
+        ps.setString(4, locale);
+        ps.setString(5, entry.getValue());
+      } else {
+        ps.setString(1, entry.getValue());
+        ps.setString(2, path);
+        ps.setString(3, key);
+        ps.setInt(4, identifier.ordinal());
+        ps.setString(5, locale);
+      }
+      ps.execute();
+    }
+    for (String locale : remaining.keySet()) {
+      PreparedStatement ps = lease.prepare(SQL_DELETE_TRANSLATION);
+      ps.setString(1, path);
+      ps.setString(2, key);
+      ps.setInt(3, identifier.ordinal());
+      ps.setString(4, locale);
+      ps.execute();
+      changed = true;
+    }
+    return changed;
+  }
+
+  /**
+   * <p>Renames or moves an existing node together with its subtree.</p>
+   *
+   * <p>The subtree is copied to the new path and removed from the old path by a fixed number
+   * of set based statements within one transaction.</p>
+   *
+   * @param oldPath the old path of the node as fully qualified name
+   * @param newPath the new path of the node as fully qualified name
+   * @throws StorageException if the new node already exists, the old node does not exist, the
+   *                          new parent node does not exist or the new path is within the
+   *                          subtree of the old path
+   */
   @Override
   public void rename(String oldPath, String newPath) throws StorageException {
     checkPath(oldPath);
     checkPath(newPath);
-    NodeImpl oldNode = get(oldPath);
-    NodeImpl newNode = new NodeImpl(newPath);
-
-    // set missing properties
-    newNode.setOwner(oldNode.getOwner());
-    newNode.setVisibility(oldNode.getVisibility());
-
-    // copy values
-    for (NodeValue nv : oldNode.getValues().values()) {
-      newNode.addValue(nv);
+    if (newPath.startsWith(oldPath + GenericController.PATH_DELIMITER)) {
+      throw new StorageException("Cannot move node \"" + oldPath + "\" into its own subtree");
     }
+    String newParent = NodeImpl.getParentFromPath(newPath);
+    String offset = String.valueOf(oldPath.length() + 1);
+    try (H2ConnectionPool.Lease lease = lease(true)) {
+      if (!exists(lease, oldPath)) {
+        throw new NodeNotFoundException(oldPath);
+      }
+      if (exists(lease, newPath)) {
+        throw new StorageException("Node \"" + newPath + "\" does already exist");
+      }
+      if (!"".equals(newParent) && !exists(lease, newParent)) {
+        throw new StorageException("Parent node \"" + newParent + "\" does not exist");
+      }
 
-    // insert new node
-    add(newNode);
+      // copy the subtree; rows referenced by foreign keys are inserted first
+      execute(lease, SQL_RENAME_NODES, oldPath, newPath, offset, oldPath,
+          NodeImpl.getNameFromPath(newPath), oldPath, newParent, newPath, offset);
+      execute(lease, SQL_RENAME_VALUES, oldPath, newPath, offset);
+      execute(lease, SQL_RENAME_TRANSLATIONS, oldPath, newPath, offset);
+      PathFilter filter = pathFilter;
+      if (filter != null) {
+        PreparedStatement ps = lease.prepare(SQL_GET_SUBTREE_PATHS
+            + getSubtreeCondition("path"));
+        List<String> params = getSubtreeParameters(newPath);
+        for (int i = 0; i < params.size(); i++) {
+          ps.setString(i + 1, params.get(i));
+        }
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next()) {
+            filter.add(rs.getString(1));
+          }
+        }
+      }
 
-    // rename all children
-    for (Node n : oldNode.getChildren().values()) {
-      rename(n.getPath(), newNode.getPath() + GenericController.PATH_DELIMITER + n.getName());
+      // remove the old subtree; referencing rows are deleted first
+      execute(lease, SQL_DELETE_SUBTREE_TRANSLATIONS, oldPath);
+      execute(lease, SQL_DELETE_SUBTREE_VALUES, oldPath);
+      execute(lease, SQL_DELETE_SUBTREE_NODES, oldPath);
+      if (filter != null && filter.isFull()) {
+        rebuildPathFilter();
+      }
+      lease.commit();
+    } catch (SQLException e) {
+      throw new StorageException("Could not rename node \"" + oldPath + "\"", e);
     }
-
-    // remove old node
-    remove(oldPath);
   }
 
-  private void addValue(String path, NodeValue value) {
-    checkPath(path);
-    if (value == null) {
-      throw new NullPointerException();
+  /**
+   * <p>Executes a statement on a subtree.</p>
+   *
+   * @param lease   the lease to be used
+   * @param sql     the statement to which the subtree condition on its path column is appended
+   * @param path    the path of the subtree
+   * @param params  the parameters preceding those of the subtree condition
+   * @return the number of rows affected
+   * @throws SQLException if the statement fails
+   */
+  private int execute(H2ConnectionPool.Lease lease, String sql, String path, String... params)
+      throws SQLException {
+    PreparedStatement ps = lease.prepare(sql + getSubtreeCondition("path"));
+    int i = 1;
+    for (String param : params) {
+      ps.setString(i++, param);
     }
-    get(path); // check if node exists
-
-    if (getValue(path, value.getKey()) != null) {
-      throw new StorageException("Value already exists");
-    }
-    String sqlStatement = "INSERT INTO node_value (path, key, value, type, locale, "
-        + "last_modified) VALUES (?,?,?,?,?,?)";
-    try {
-      PreparedStatement ps = conn.prepareStatement(sqlStatement);
-      ps.setString(1, path);
-      ps.setString(2, value.getKey());
-      ps.setString(3, value.getValue());
-      ps.setString(4, value.getType());
-      ps.setString(5, java.util.Locale.ENGLISH.toLanguageTag()); // set default to english
-      ps.setString(6, String.valueOf(value.getLastModified()));
-      ps.execute();
-    } catch (SQLException e) {
-      throw new StorageException("Could not create value \"" + value.getKey() + "\"", e);
+    for (String param : getSubtreeParameters(path)) {
+      ps.setString(i++, param);
     }
+    return ps.executeUpdate();
+  }
 
-    // insert translations for value
-    String sqlStatementTrl = "INSERT INTO translation (path, key, identifier, locale, translation)"
-            + " VALUES (?,?,?,?,?)";
-    Map<java.util.Locale, String> valueMap = value.getAllValueTranslations();
-    for (Map.Entry<java.util.Locale, String> entry : valueMap.entrySet()) {
+  private void addValue(String path, NodeValue value) {
+    try (H2ConnectionPool.Lease lease = lease(true)) {
+      checkPath(path);
+      if (value == null) {
+        throw new NullPointerException();
+      }
       try {
-        PreparedStatement psTranslation = conn.prepareStatement(sqlStatementTrl);
-        psTranslation.setString(1, path);
-        psTranslation.setString(2, value.getKey());
-        psTranslation.setInt(3, Identifier.VALUE.ordinal());
-        psTranslation.setString(4, entry.getKey().toLanguageTag());
-        psTranslation.setString(5, entry.getValue());
-        psTranslation.execute();
+        if (!exists(lease, path)) {
+          throw new NodeNotFoundException(path);
+        }
+        if (existsValue(lease, path, value.getKey())) {
+          throw new StorageException("Value already exists");
+        }
+        PreparedStatement ps = lease.prepare(SQL_INSERT_VALUE);
+        ps.setString(1, path);
+        ps.setString(2, value.getKey());
+        ps.setString(3, value.getValue());
+        ps.setString(4, value.getType());
+        ps.setString(5, java.util.Locale.ENGLISH.toLanguageTag()); // set default to english
+        ps.setString(6, String.valueOf(value.getLastModified()));
+        ps.execute();
       } catch (SQLException e) {
-        throw new StorageException("Could not create translation \""
-                + entry.getKey().toLanguageTag() + "\" for value \"" + value.getKey() + "\"", e);
+        throw new StorageException("Could not create value \"" + value.getKey() + "\"", e);
       }
-    }
 
-    // insert translations for description
-    Map<Locale, String> descriptionMap = value.getAllDescriptionTranslations();
-    for (Map.Entry<Locale, String> entry : descriptionMap.entrySet()) {
-      try {
-        PreparedStatement psTranslation = conn.prepareStatement(sqlStatementTrl);
-        psTranslation.setString(1, path);
-        psTranslation.setString(2, value.getKey());
-        psTranslation.setInt(3, Identifier.DESCRIPTION.ordinal());
-        psTranslation.setString(4, entry.getKey().toLanguageTag());
-        psTranslation.setString(5, entry.getValue());
-        psTranslation.execute();
-      } catch (SQLException e) {
-        throw new StorageException("Could not create translation \""
-                + entry.getKey().toLanguageTag() + "\" for description in value \""
-                + value.getKey() + "\"", e);
+      // insert translations for value
+      Map<java.util.Locale, String> valueMap = value.getAllValueTranslations();
+      for (Map.Entry<java.util.Locale, String> entry : valueMap.entrySet()) {
+        try {
+          PreparedStatement psTranslation = lease.prepare(SQL_INSERT_TRANSLATION);
+          psTranslation.setString(1, path);
+          psTranslation.setString(2, value.getKey());
+          psTranslation.setInt(3, Identifier.VALUE.ordinal());
+          psTranslation.setString(4, entry.getKey().toLanguageTag());
+          psTranslation.setString(5, entry.getValue());
+          psTranslation.execute();
+        } catch (SQLException e) {
+          throw new StorageException("Could not create translation \""
+                  + entry.getKey().toLanguageTag() + "\" for value \"" + value.getKey() + "\"", e);
+        }
       }
+
+      // insert translations for description
+      Map<Locale, String> descriptionMap = value.getAllDescriptionTranslations();
+      for (Map.Entry<Locale, String> entry : descriptionMap.entrySet()) {
+        try {
+          PreparedStatement psTranslation = lease.prepare(SQL_INSERT_TRANSLATION);
+          psTranslation.setString(1, path);
+          psTranslation.setString(2, value.getKey());
+          psTranslation.setInt(3, Identifier.DESCRIPTION.ordinal());
+          psTranslation.setString(4, entry.getKey().toLanguageTag());
+          psTranslation.setString(5, entry.getValue());
+          psTranslation.execute();
+        } catch (SQLException e) {
+          throw new StorageException("Could not create translation \""
+                  + entry.getKey().toLanguageTag() + "\" for description in value \""
+                  + value.getKey() + "\"", e);
+        }
+      }
+      lease.commit();
     }
   }
 
-  private NodeValue removeValue(String path, String key) {
-    if (key == null || "".equals(path)) {
-      throw new NullPointerException();
-    }
-    get(path); // check if node exists
+  private void removeValue(String path, String key) {
+    try (H2ConnectionPool.Lease lease = lease(true)) {
+      if (key == null || "".equals(path)) {
+        throw new NullPointerException();
+      }
+      try {
+        if (!exists(lease, path)) {
+          throw new NodeNotFoundException(path);
+        }
+        if (!existsValue(lease, path, key)) {
+          throw new StorageException("Key \"" + key + "\" does not exist");
+        }
+      } catch (SQLException e) {
+        throw new StorageException("Could not check value \"" + key + "\" in node \"" + path
+            + "\"", e);
+      }
+      // remove translations
+      try {
+        PreparedStatement psDeleteTranslation = lease.prepare(SQL_DELETE_TRANSLATIONS);
+        psDeleteTranslation.setString(1, path);
+        psDeleteTranslation.setString(2, key);
+        psDeleteTranslation.execute();
+      } catch (SQLException e) {
+        throw new StorageException("Could not delete translations for key \"" + key
+            + "\" in node \"" + path + "\"", e);
+      }
 
-    // get value
-    NodeValue value = getValue(path, key);
-    if (value == null) {
-      throw new StorageException("Key \"" + key + "\" does not exist");
-    }
-    // remove translations
-    String sqlDeleteStatementTranslations = "DELETE FROM translation WHERE (path = ? AND key = ?)";
-    try {
-      PreparedStatement psDeleteTranslation = conn.prepareStatement(sqlDeleteStatementTranslations);
-      psDeleteTranslation.setString(1, path);
-      psDeleteTranslation.setString(2, key);
-      psDeleteTranslation.execute();
-    } catch (SQLException e) {
-      throw new StorageException("Could not delete translations for key \"" + key + "\" in node \""
-              + path + "\"", e);
-    }
+      // remove value
+      try {
+        PreparedStatement psDelete = lease.prepare(SQL_DELETE_VALUE);
+        psDelete.setString(1, path);
+        psDelete.setString(2, key);
+        psDelete.execute();
+      } catch (SQLException e) {
+        throw new StorageException("Could not delete value for key \"" + key + "\" in node \""
+                + path + "\"", e);
+      }
 
-    // remove value
-    String sqlDeleteStatement = "DELETE FROM node_value WHERE (path = ? AND key = ?)";
-    try {
-      PreparedStatement psDelete = conn.prepareStatement(sqlDeleteStatement);
-      psDelete.setString(1, path);
-      psDelete.setString(2, key);
-      psDelete.execute();
-    } catch (SQLException e) {
-      throw new StorageException("Could not delete value for key \"" + key + "\" in node \""
-              + path + "\"", e);
+      lease.commit();
     }
-
-    return value;
   }
 
-  private void updateValue(String path, NodeValue value) {
-    checkPath(path);
-    if (value == null || "".equals(path)) {
-      throw new NullPointerException();
-    }
-    if (get(path) == null) {
-      throw new StorageException("Node does not exist");
+  @Override
+  public NodeImpl remove(String path, boolean recursive) {
+    if (!recursive) {
+      return remove(path);
     }
-    if (getValue(path, value.getKey()) == null) {
-      throw new StorageException("Key \"" + value.getKey() + "\" does not exist");
+    try (H2ConnectionPool.Lease lease = lease(true)) {
+      NodeImpl oldNode = get(path);
+
+      // remove the subtree by range deletes; referencing rows are deleted first
+      try {
+        execute(lease, SQL_DELETE_SUBTREE_TRANSLATIONS, path);
+        execute(lease, SQL_DELETE_SUBTREE_VALUES, path);
+        execute(lease, SQL_DELETE_SUBTREE_NODES, path);
+      } catch (SQLException e) {
+        throw new StorageException("Could not remove subtree \"" + path + "\"", e);
+      }
+      lease.commit();
+      return oldNode;
     }
-    removeValue(path, value.getKey());
-    addValue(path, value);
   }
 
   @Override
   public NodeImpl remove(String path) {
-    NodeImpl oldNode = get(path);
-    if (!"".equals(oldNode.getChildNodesCsv())) {
-      throw new StorageException("Node does have childs... cannot remove " + oldNode.getName());
-    }
-
-    // remove values
-    for (NodeValue nv : oldNode.getValues().values()) {
-      removeValue(path, nv.getKey());
-    }
+    try (H2ConnectionPool.Lease lease = lease(true)) {
+      NodeImpl oldNode = get(path);
+      try {
+        PreparedStatement ps = lease.prepare(SQL_HAS_CHILDREN);
+        ps.setString(1, path);
+        try (ResultSet rs = ps.executeQuery()) {
+          if (rs.next()) {
+            throw new StorageException("Node does have childs... cannot remove "
+                + oldNode.getName());
+          }
+        }
+      } catch (SQLException e) {
+        throw new StorageException("Could not check children of node \"" + path + "\"", e);
+      }
 
-    // remove the node
-    String sqlStatement = "DELETE FROM storage_node WHERE path = ?";
-    try {
-      PreparedStatement ps = conn.prepareStatement(sqlStatement);
-      ps.setString(1, path);
-      ps.execute();
-    } catch (SQLException e) {
-      throw new StorageException("Could not remove Node", e);
-    }
+      // remove values
+      for (NodeValue nv : oldNode.getValues().values()) {
+        removeValue(path, nv.getKey());
+      }
 
-    // remove reference from parent
-    NodeImpl parentNode = get(oldNode.getParentPath());
-    parentNode.removeChild(oldNode.getName());
-    update(parentNode);
+      // remove the node; this implicitly removes the reference from the parent
+      try {
+        PreparedStatement ps = lease.prepare(SQL_DELETE_NODE);
+        ps.setString(1, path);
+        ps.execute();
+      } catch (SQLException e) {
+        throw new StorageException("Could not remove Node", e);
+      }
 
-    // return node
-    return oldNode;
+      // return node
+      lease.commit();
+      return oldNode;
+    }
   }
 
   @Override
@@ -449,150 +1094,196 @@ public class H2SqlMapper extends AbstractMapper {
       throw new NullPointerException();
     }
     checkPath(path);
-    get(path); // check if node exists
+    try (H2ConnectionPool.Lease lease = lease(false)) {
+      if (!exists(lease, path)) {
+        throw new NodeNotFoundException(path);
+      }
 
-    String sqlSelectStatement = "SELECT path,key,value,type,locale,last_modified "
-        + "FROM node_value WHERE (path = ? and key = ?)";
-    NodeValue value = null;
-    try {
-      PreparedStatement psSelect = conn.prepareStatement(sqlSelectStatement);
+      PreparedStatement psSelect = lease.prepare(SQL_GET_VALUE);
       psSelect.setString(1, path);
       psSelect.setString(2, key);
-      ResultSet rs = psSelect.executeQuery();
-
-      if (!rs.next()) {
-        return value; // returning a null value to use this method as an pseudo "contains"
+      NodeValue value = null;
+      try (ResultSet rs = psSelect.executeQuery()) {
+        while (rs.next()) {
+          if (value == null) {
+            value = readValue(rs);
+          }
+          readTranslation(rs, value);
+        }
       }
-
-      // add properties
-      value = new NodeValueImpl(rs.getString("key"), rs.getString("value"),
-          rs.getString("type"), "",
-          rs.getLong("last_modified"));
-
+      // returning a null value to use this method as an pseudo "contains"
+      return value;
     } catch (SQLException e) {
       throw new StorageException(
           "Something went wrong while trying to retrieve the value " + key + " from " + path, e);
     }
+  }
 
-    // add translations
-    String sqlStatementTranslations = "SELECT path,key,identifier,locale,translation "
-            + "FROM translation WHERE (path = ? AND key = ?)";
-    try {
-      PreparedStatement psTranslations = conn.prepareStatement(sqlStatementTranslations);
-      psTranslations.setString(1, path);
-      psTranslations.setString(2, key);
-      ResultSet rsTranslations = psTranslations.executeQuery();
-      while (rsTranslations.next()) {
-        String identifier = rsTranslations.getString("identifier");
-        if (Identifier.valueOf(identifier).equals(Identifier.VALUE)) {
-          // the translation is for a value
-          value.setValue(rsTranslations.getString("translation"),
-                  Locale.forLanguageTag(rsTranslations.getString("locale")));
-        } else if (Identifier.valueOf(identifier).equals(Identifier.DESCRIPTION)) {
-          // the translation is for a description
-          value.setDescription(rsTranslations.getString("translation"),
-                  Locale.forLanguageTag(rsTranslations.getString("locale")));
+  /**
+   * <p>Search all nodes matching the provided search criteria.</p>
+   *
+   * <p>The criteria are evaluated by the database. Criteria which are not set or empty match
+   * everything. The node path selects the node and its whole subtree; owner, name,
+   * visibility, value type and value are regular expressions matching the whole field. Key
+   * and last modified date of a value are compared exactly. If any value criterion is set,
+   * a node matches if at least one of its values satisfies all value criteria.</p>
+   *
+   * @param criteria the matching criteria
+   * @return the fully materialized nodes matching the criteria
+   */
+  @Override
+  public List<Node> search(SearchCriteria criteria) {
+    List<String> params = new ArrayList<>();
+    String condition = getSearchCondition(criteria, params);
+    try (H2ConnectionPool.Lease lease = lease(false)) {
+      PreparedStatement ps = lease.prepare(SQL_SELECT_NODES + "WHERE " + condition);
+      for (int i = 0; i < params.size(); i++) {
+        ps.setString(i + 1, params.get(i));
+      }
+      Map<String, NodeImpl> nodes;
+      try (ResultSet rs = ps.executeQuery()) {
+        nodes = readNodes(rs);
+      }
+      if (!nodes.isEmpty()) {
+        ps = lease.prepare(SQL_SEARCH_CHILDREN + condition + ")");
+        for (int i = 0; i < params.size(); i++) {
+          ps.setString(i + 1, params.get(i));
+        }
+        try (ResultSet rs = ps.executeQuery()) {
+          readChildren(rs, nodes);
         }
       }
+      return new ArrayList<>(nodes.values());
     } catch (SQLException e) {
-      throw new StorageException("Could not retrieve description for node \"" + path
-              + "\" and key \"" + key + "\"", e);
+      throw new StorageException("Something went wrong while trying to execute the search", e);
     }
-    return value;
   }
 
-  @Override
-  public List<Node> search(SearchCriteria criteria) {
-    String sqlNodeSearch = "SELECT path,owner,name,visibility,children FROM storage_node "
-        + "WHERE (path = ? and owner = ? and name = ? and visibility = ?)";
-    String sqlValueSearch = "SELECT path,key,value,type,locale,last_modified "
-        + "FROM node_value WHERE (path = ? and key = ? and value = ? and type = ? "
-        + "and last_modified = ?)";
-    Map<String, NodeImpl> nodes = new HashMap<>();
-    Map<String, NodeValue> values = new HashMap<>();
-    try {
-      // get nodes
-      PreparedStatement psSelect = conn.prepareStatement(sqlNodeSearch);
-      psSelect.setString(1, "".equals(criteria.getNodePath()) ? "*" : criteria.getNodePath());
-      psSelect.setString(2, "".equals(criteria.getNodeOwner()) ? "*" : criteria.getNodeOwner());
-      psSelect.setString(3, "".equals(criteria.getNodeName()) ? "*" : criteria.getNodeName());
-      psSelect.setString(4, "".equals(criteria.get(Field.VISIBILITY))
-          ? "*" : criteria.get(Field.VISIBILITY));
-      // TODO check if this actually works for Visibility
-
-      ResultSet rs = psSelect.executeQuery();
-
-      // add all Nodes that matched the criteria
-      while (rs.next()) {
-        String path = rs.getString("path");
-        nodes.put(path, get(path));
-      }
-
-      // get values
-      psSelect = conn.prepareStatement(sqlValueSearch);
-      psSelect.setString(1, "".equals(criteria.getNodePath())
-          ? "*" : criteria.getNodePath());
-      psSelect.setString(2, "".equals(criteria.getNodeValueKey())
-          ? "*" : criteria.getNodeValueKey());
-      psSelect.setString(3, "".equals(criteria.getNodeValueValue())
-          ? "*" : criteria.getNodeValueValue());
-      psSelect.setString(4, "".equals(criteria.getNodeValueType())
-          ? "*" : criteria.getNodeValueType());
-      psSelect.setString(5,
-          "".equals(criteria.getNodeValueLastModified())
-              ? "*" : criteria.getNodeValueLastModified());
-      rs = psSelect.executeQuery();
-
-      // add values that matched the criteria
-      while (rs.next()) {
-        String path = rs.getString("path");
-        values.put(path, getValue(path, rs.getString("key")));
-      }
-    } catch (SQLException e) {
-      e.printStackTrace();
-      throw new StorageException("Something went wrong while trying to execute the search");
+  /**
+   * <p>Translates search criteria into a condition on the node table aliased as n.</p>
+   *
+   * @param criteria the criteria to be translated
+   * @param params   the list receiving the statement parameters in order of their appearance
+   * @return the SQL condition
+   */
+  private static String getSearchCondition(SearchCriteria criteria, List<String> params) {
+    StringBuilder sb = new StringBuilder("TRUE");
+    String path = criteria.get(Field.PATH);
+    if (!isWildcard(path)) {
+      sb.append(" AND ").append(getSubtreeCondition("n.path"));
+      params.addAll(getSubtreeParameters(path));
     }
+    appendMatch(sb, params, "n.owner", criteria.get(Field.OWNER));
+    appendMatch(sb, params, "n.name", criteria.get(Field.NAME));
+    appendMatch(sb, params, "n.visibility", criteria.get(Field.VISIBILITY));
 
-    // Currently all missing Nodes (if any) for values get added to the list in
-    // order to include the values.
-    for (String path : values.keySet()) {
-      if (!nodes.containsKey(path)) {
-        // get missing node
-        nodes.put(path, get(path));
-      }
-      // add value to existing node
-      nodes.get(path).addValue(values.get(path));
+    // the subquery lets the value indexes select the candidate nodes
+    StringBuilder values = new StringBuilder();
+    appendEquals(values, params, "sv.key", criteria.get(Field.KEY));
+    appendMatch(values, params, "sv.value", criteria.get(Field.VALUE));
+    appendMatch(values, params, "sv.type", criteria.get(Field.TYPE));
+    appendEquals(values, params, "sv.last_modified", criteria.get(Field.LAST_MODIFIED));
+    if (values.length() > 0) {
+      sb.append(" AND n.path IN (SELECT sv.path FROM node_value sv WHERE TRUE")
+          .append(values).append(")");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * <p>Gets a condition selecting a node and its subtree by the given path column.</p>
+   *
+   * <p>The condition takes the parameters returned by {@link #getSubtreeParameters(String)}.
+   * Its range keeps the selection on the index of the column.</p>
+   *
+   * @param column the column holding the node path
+   * @return the SQL condition
+   */
+  private static String getSubtreeCondition(String column) {
+    return column + " >= ? AND " + column + " < ? AND (" + column + " = ? OR " + column
+        + " LIKE ? ESCAPE '\\')";
+  }
+
+  private static List<String> getSubtreeParameters(String path) {
+    String prefix = path.endsWith(GenericController.PATH_DELIMITER)
+        ? path : path + GenericController.PATH_DELIMITER;
+    List<String> params = new ArrayList<>();
+    params.add(path);
+    // the prefix ends with the delimiter; the upper bound is the prefix with its last
+    // character incremented
+    params.add(prefix.substring(0, prefix.length() - 1)
+        + (char) (prefix.charAt(prefix.length() - 1) + 1));
+    params.add(path);
+    params.add(prefix.replaceAll("([\\\\%_])", "\\\\$1") + "%");
+    return params;
+  }
+
+  private static boolean isWildcard(String criterion) {
+    return criterion == null || "".equals(criterion);
+  }
+
+  private static void appendEquals(StringBuilder sb, List<String> params, String column,
+                                   String criterion) {
+    if (!isWildcard(criterion)) {
+      sb.append(" AND ").append(column).append(" = ?");
+      params.add(criterion);
+    }
+  }
+
+  private static void appendMatch(StringBuilder sb, List<String> params, String column,
+                                  String criterion) {
+    if (isWildcard(criterion)) {
+      return;
+    }
+    if (LITERAL.matcher(criterion).matches()) {
+      // expressions without meta characters are compared exactly so indexes may be used
+      appendEquals(sb, params, column, criterion);
+    } else {
+      // anchor the expression as SearchCriteria matches whole fields
+      sb.append(" AND REGEXP_LIKE(CAST(").append(column).append(" AS VARCHAR), ?)");
+      params.add("^(?:" + criterion + ")$");
     }
-    return new ArrayList<>(nodes.values());
   }
 
   @Override
   public void close() {
     try {
-      conn.prepareStatement("SHUTDOWN;").executeUpdate();
-      conn.close();
+      // commit work still waiting for a group commit
+      pool.flush();
+      try (H2ConnectionPool.Lease lease = lease(true)) {
+        lease.getConnection().createStatement().executeUpdate("SHUTDOWN;");
+      }
     } catch (SQLException e) {
       throw new RuntimeException("OOPS... unexpected exception", e);
     }
+    pool.close();
   }
 
   @Override
   public void flush() {
-    // nothing to do with H2SQL; Flushes approx. every second
+    try {
+      pool.flush();
+    } catch (SQLException e) {
+      throw new StorageException("Could not flush database", e);
+    }
   }
 
   @Override
   public void zap() {
-    // Usually Truncate would be used, but it does not work with referenced tables
-    String sqlStatement1 = "DELETE FROM storage_node";
-    String sqlStatement2 = "DELETE FROM node_value";
-    String sqlStatement3 = "DELETE FROM translation";
-    try {
-      (conn.createStatement()).execute(sqlStatement3);
-      (conn.createStatement()).execute(sqlStatement2);
-      (conn.createStatement()).execute(sqlStatement1);
-    } catch (SQLException e) {
-      throw new StorageException("Something went wrong while trying to truncate the database", e);
+    try (H2ConnectionPool.Lease lease = lease(true)) {
+      // Usually Truncate would be used, but it does not work with referenced tables
+      try {
+        lease.prepare("DELETE FROM translation").execute();
+        lease.prepare("DELETE FROM node_value").execute();
+        lease.prepare("DELETE FROM storage_node").execute();
+        PathFilter filter = pathFilter;
+        if (filter != null) {
+          filter.install(filter.rebuild(0));
+        }
+        lease.commit();
+      } catch (SQLException e) {
+        throw new StorageException("Something went wrong while trying to truncate the database", e);
+      }
     }
   }
 
@@ -0,0 +1,842 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.NodeNotFoundException;
+import ch.fhnw.geiger.localstorage.SearchCriteria;
+import ch.fhnw.geiger.localstorage.StorageController;
+import ch.fhnw.geiger.localstorage.StorageException;
+import ch.fhnw.geiger.localstorage.db.GenericController;
+import ch.fhnw.geiger.localstorage.db.data.Field;
+import ch.fhnw.geiger.localstorage.db.data.Node;
+import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import ch.fhnw.geiger.localstorage.db.mapper.NodeCodec.NodeRecord;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A mapper storing all changes in an append-only log of memory mapped segment files.</p>
+ *
+ * <p>Every change is appended to the log as a single record holding the encoded nodes (see
+ * {@link NodeCodec}) and removals it consists of. A record carries its length and a checksum;
+ * a change is therefore either fully recovered or not at all, and renames or recursive
+ * removes are atomic. Writes are sequential and need no read of the stored data. An index in
+ * memory maps every path to the location of its latest record and to the names of its
+ * children; reads decode the node directly from the mapped segment.</p>
+ *
+ * <p>Records superseded by later changes remain in the log until they are compacted. The
+ * compactor copies the live records of all segments but the one currently written to the end
+ * of the log and deletes the old segments. It runs in the background whenever more than half
+ * of the old segments is garbage and can be started explicitly with {@link #compact()}.</p>
+ *
+ * <p>When opened the mapper replays the log to rebuild its index. Only the paths of the
+ * records are read; recovery time depends on the size of the log, not on the number of
+ * changes since a checkpoint.</p>
+ *
+ * <p>A single change (e.g. the rename of a subtree) must fit into one segment. Apart from
+ * that the mapper behaves like {@link H2SqlMapper}. Reads share a lock; writes are
+ * exclusive.</p>
+ */
+public class LogMapper extends AbstractMapper {
+
+  /**
+   * <p>The default size of a segment file in bytes.</p>
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * <p>The default delay between two runs of the background compactor in milliseconds.</p>
+   */
+  public static final long DEFAULT_COMPACTION_INTERVAL = 10000;
+
+  /* the maximum share of live records in old segments for the compactor to run */
+  private static final double COMPACTION_THRESHOLD = 0.5;
+  /* the number of nodes copied while holding the write lock */
+  private static final int COMPACTION_BATCH = 1000;
+
+  /* record header: length and checksum of the payload */
+  private static final int RECORD_HEADER = 8;
+
+  private static final byte OP_PUT = 1;
+  private static final byte OP_REMOVE = 2;
+
+  /**
+   * <p>The location of the latest record of a node.</p>
+   */
+  private static final class IndexEntry {
+
+    private int segment;
+    private int offset;
+    private int length;
+    /* the names of the children or null if there are none */
+    private Set<String> children = null;
+  }
+
+  /**
+   * <p>A change of a single node within a record.</p>
+   */
+  private static final class Operation {
+
+    private final String path;
+    /* the offset of the encoded node within the payload or -1 for a removal */
+    private final int offset;
+    private final int length;
+
+    private Operation(String path, int offset, int length) {
+      this.path = path;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * <p>The changes to be written as one record.</p>
+   *
+   * <p>The payload of a record holds the number of operations followed by the operations. A
+   * put is written as type, length and encoded node, a removal as type and path.</p>
+   */
+  private static final class Batch {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final List<Operation> operations = new ArrayList<>();
+
+    private void put(String path, byte[] node) {
+      try {
+        out.writeByte(OP_PUT);
+        out.writeInt(node.length);
+        // the payload starts with the number of operations
+        operations.add(new Operation(path, 4 + out.size(), node.length));
+        out.write(node);
+      } catch (IOException e) {
+        throw new StorageException("Cannot encode change", e);
+      }
+    }
+
+    private void remove(String path) {
+      try {
+        out.writeByte(OP_REMOVE);
+        out.writeUTF(path);
+        operations.add(new Operation(path, -1, 0));
+      } catch (IOException e) {
+        throw new StorageException("Cannot encode change", e);
+      }
+    }
+
+    private boolean isEmpty() {
+      return operations.isEmpty();
+    }
+
+    private byte[] toRecord() {
+      byte[] ops = bytes.toByteArray();
+      ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + 4 + ops.length);
+      record.putInt(4 + ops.length);
+      record.putInt(0);
+      record.putInt(operations.size());
+      record.put(ops);
+      CRC32 crc = new CRC32();
+      crc.update(record.array(), RECORD_HEADER, 4 + ops.length);
+      record.putInt(4, (int) crc.getValue());
+      return record.array();
+    }
+  }
+
+  /**
+   * <p>A stream reading a byte buffer from its position to its limit.</p>
+   */
+  private static final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+  }
+
+  private final File directory;
+  private final int segmentSize;
+
+  private final TreeMap<Integer, LogSegment> segments = new TreeMap<>();
+  private LogSegment active;
+  private final Map<String, IndexEntry> index = new HashMap<>();
+  /* changed by zap and close to abort a running compaction */
+  private int generation = 0;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final ScheduledExecutorService compactor;
+  private volatile RuntimeException compactionError = null;
+
+  private volatile StorageController controller = null;
+
+  /**
+   * <p>Opens or creates a log with default settings.</p>
+   *
+   * @param directory the directory holding the segment files
+   * @throws StorageException if the log cannot be opened
+   */
+  public LogMapper(File directory) {
+    this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_INTERVAL);
+  }
+
+  /**
+   * <p>Opens or creates a log.</p>
+   *
+   * @param directory          the directory holding the segment files
+   * @param segmentSize        the size of new segment files in bytes
+   * @param compactionInterval the delay between two runs of the background compactor in
+   *                           milliseconds or 0 to compact on explicit request only
+   * @throws StorageException if the log cannot be opened
+   */
+  public LogMapper(File directory, int segmentSize, long compactionInterval) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new StorageException("Cannot create log directory " + directory);
+    }
+    recover();
+    if (compactionInterval > 0) {
+      compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "LogMapper compactor");
+        t.setDaemon(true);
+        return t;
+      });
+      compactor.scheduleWithFixedDelay(() -> {
+        try {
+          compact(false);
+        } catch (RuntimeException e) {
+          // reported by the next flush
+          compactionError = e;
+        }
+      }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+    } else {
+      compactor = null;
+    }
+  }
+
+  @Override
+  public void setController(StorageController controller) {
+    this.controller = controller;
+  }
+
+  @Override
+  public Node get(String path) throws StorageException {
+    return find(path).orElseThrow(() -> new NodeNotFoundException(path));
+  }
+
+  @Override
+  public Optional<Node> find(String path) throws StorageException {
+    checkPath(path);
+    getSanity(path);
+    lock.readLock().lock();
+    try {
+      IndexEntry entry = index.get(path);
+      return entry == null ? Optional.empty() : Optional.of(materialize(entry, read(entry)));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean exists(String path) {
+    checkPath(path);
+    getSanity(path);
+    lock.readLock().lock();
+    try {
+      return index.containsKey(path);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean existsValue(String path, String key) {
+    checkPath(path);
+    getSanity(path);
+    lock.readLock().lock();
+    try {
+      IndexEntry entry = index.get(path);
+      return entry != null && read(entry).values.containsKey(key);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void add(Node node) throws StorageException {
+    checkPath(node);
+    String path = node.getPath();
+    String parent = node.getParentPath();
+    Batch batch = new Batch();
+    batch.put(path, NodeCodec.encode(path, node));
+    lock.writeLock().lock();
+    try {
+      if (index.containsKey(path)) {
+        throw new StorageException("Node already exists");
+      }
+      if (parent != null && !"".equals(parent) && !index.containsKey(parent)) {
+        throw new StorageException("Parent node \"" + parent + "\" does not exist");
+      }
+      // like H2SqlMapper children are added by adding them explicitly
+      append(batch);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void update(Node node) throws StorageException {
+    checkPath(node);
+    String path = node.getPath();
+    Batch batch = new Batch();
+    batch.put(path, NodeCodec.encode(path, node));
+    lock.writeLock().lock();
+    try {
+      if (!index.containsKey(path)) {
+        throw new NodeNotFoundException(path);
+      }
+      append(batch);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Node remove(String path) throws StorageException {
+    checkPath(path);
+    lock.writeLock().lock();
+    try {
+      IndexEntry entry = index.get(path);
+      if (entry == null) {
+        throw new NodeNotFoundException(path);
+      }
+      if (entry.children != null) {
+        throw new StorageException("Node does have childs... cannot remove "
+            + NodeImpl.getNameFromPath(path));
+      }
+      final NodeImpl ret = materialize(entry, read(entry));
+      Batch batch = new Batch();
+      batch.remove(path);
+      append(batch);
+      return ret;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Node remove(String path, boolean recursive) throws StorageException {
+    if (!recursive) {
+      return remove(path);
+    }
+    checkPath(path);
+    lock.writeLock().lock();
+    try {
+      IndexEntry entry = index.get(path);
+      if (entry == null) {
+        throw new NodeNotFoundException(path);
+      }
+      final NodeImpl ret = materialize(entry, read(entry));
+      Batch batch = new Batch();
+      for (String p : collectSubtree(path)) {
+        batch.remove(p);
+      }
+      append(batch);
+      return ret;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public NodeValue getValue(String path, String key) {
+    if ("".equals(path) || "".equals(key)) {
+      throw new NullPointerException();
+    }
+    checkPath(path);
+    lock.readLock().lock();
+    try {
+      IndexEntry entry = index.get(path);
+      if (entry == null) {
+        throw new NodeNotFoundException(path);
+      }
+      return read(entry).values.get(key);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * <p>Renames or moves a node and its subtree.</p>
+   *
+   * <p>The subtree is removed and written with the new paths in a single record.</p>
+   *
+   * @param oldPath the old path of the node
+   * @param newPath the new fully qualified path of the node
+   * @throws StorageException if the new node already exists, the old node does not exist, the
+   *                          new parent node does not exist or the new path is within the
+   *                          subtree of the old one
+   */
+  @Override
+  public void rename(String oldPath, String newPath) throws StorageException {
+    checkPath(oldPath);
+    checkPath(newPath);
+    if (newPath.startsWith(oldPath + GenericController.PATH_DELIMITER)) {
+      throw new StorageException("Cannot move node \"" + oldPath + "\" into its own subtree");
+    }
+    String newParent = NodeImpl.getParentFromPath(newPath);
+    lock.writeLock().lock();
+    try {
+      if (!index.containsKey(oldPath)) {
+        throw new NodeNotFoundException(oldPath);
+      }
+      if (index.containsKey(newPath)) {
+        throw new StorageException("Node \"" + newPath + "\" does already exist");
+      }
+      if (!"".equals(newParent) && !index.containsKey(newParent)) {
+        throw new StorageException("Parent node \"" + newParent + "\" does not exist");
+      }
+      // parents are written before their children
+      Batch batch = new Batch();
+      for (String p : collectSubtree(oldPath)) {
+        String q = newPath + p.substring(oldPath.length());
+        batch.remove(p);
+        batch.put(q, NodeCodec.withPath(readBytes(index.get(p)), q));
+      }
+      append(batch);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * <p>Search all nodes matching the provided search criteria.</p>
+   *
+   * <p>The criteria are evaluated by a {@link SearchMatcher}. The node path selects the node
+   * and its whole subtree; a search with a node path visits the selected subtree only.</p>
+   *
+   * @param criteria the matching criteria
+   * @return the fully materialized nodes matching the criteria
+   */
+  @Override
+  public List<Node> search(SearchCriteria criteria) throws StorageException {
+    SearchMatcher matcher = new SearchMatcher(criteria);
+    List<Node> ret = new ArrayList<>();
+    BiConsumer<String, IndexEntry> collect = (path, entry) -> {
+      NodeRecord record = read(entry);
+      if (matcher.matches(path, record.owner, record.visibility, record.values.values())) {
+        ret.add(materialize(entry, record));
+      }
+    };
+    String path = criteria.get(Field.PATH);
+    lock.readLock().lock();
+    try {
+      if (SearchMatcher.isWildcard(path) || GenericController.PATH_DELIMITER.equals(path)) {
+        // every node is within the subtree
+        index.forEach(collect);
+      } else if (path.endsWith(GenericController.PATH_DELIMITER)) {
+        // a trailing delimiter selects the descendants only
+        String root = path.substring(0, path.length() - 1);
+        IndexEntry entry = index.get(root);
+        if (entry != null) {
+          visitDescendants(root, entry, collect);
+        }
+      } else {
+        IndexEntry entry = index.get(path);
+        if (entry != null) {
+          collect.accept(path, entry);
+          visitDescendants(path, entry, collect);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return ret;
+  }
+
+  private void visitDescendants(String path, IndexEntry entry,
+                                BiConsumer<String, IndexEntry> visitor) {
+    if (entry.children == null) {
+      return;
+    }
+    for (String child : entry.children) {
+      String childPath = path + GenericController.PATH_DELIMITER + child;
+      IndexEntry childEntry = index.get(childPath);
+      if (childEntry != null) {
+        visitor.accept(childPath, childEntry);
+        visitDescendants(childPath, childEntry, visitor);
+      }
+    }
+  }
+
+  /**
+   * <p>Compacts the log.</p>
+   *
+   * <p>The live records of all segments but the one currently written are copied to the end
+   * of the log; the old segments are deleted afterwards. The write lock is released after
+   * every thousand copied nodes, so other threads are not blocked for the
+   * whole compaction.</p>
+   *
+   * @throws StorageException if the log cannot be written
+   */
+  public void compact() {
+    compact(true);
+  }
+
+  private void compact(boolean force) {
+    final List<LogSegment> sealed;
+    final List<String> paths = new ArrayList<>();
+    final int startGeneration;
+    lock.writeLock().lock();
+    try {
+      sealed = new ArrayList<>(segments.headMap(active.getId()).values());
+      long size = 0;
+      long live = 0;
+      for (LogSegment s : sealed) {
+        size += s.getSize();
+        live += s.getLiveBytes();
+      }
+      if (sealed.isEmpty() || (!force && live > size * COMPACTION_THRESHOLD)) {
+        return;
+      }
+      index.forEach((path, entry) -> {
+        if (entry.segment < active.getId()) {
+          paths.add(path);
+        }
+      });
+      startGeneration = generation;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    // new records are written to the active segment or later ones only
+    int last = sealed.get(sealed.size() - 1).getId();
+    for (int i = 0; i < paths.size(); i += COMPACTION_BATCH) {
+      lock.writeLock().lock();
+      try {
+        if (generation != startGeneration) {
+          return;
+        }
+        Batch batch = new Batch();
+        for (String path : paths.subList(i, Math.min(paths.size(), i + COMPACTION_BATCH))) {
+          IndexEntry entry = index.get(path);
+          if (entry != null && entry.segment <= last) {
+            batch.put(path, readBytes(entry));
+          }
+        }
+        if (!batch.isEmpty()) {
+          append(batch);
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+    lock.writeLock().lock();
+    try {
+      if (generation != startGeneration) {
+        return;
+      }
+      // oldest first; a removal may only be dropped together with all older records
+      for (LogSegment s : sealed) {
+        if (s.getLiveBytes() != 0 || !s.delete()) {
+          break;
+        }
+        segments.remove(s.getId());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * <p>Gets the number of segment files of the log.</p>
+   *
+   * @return the number of segments
+   */
+  public int getSegmentCount() {
+    lock.readLock().lock();
+    try {
+      return segments.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (compactor != null) {
+      compactor.shutdown();
+    }
+    lock.writeLock().lock();
+    try {
+      generation++;
+      for (LogSegment s : segments.values()) {
+        s.force();
+        s.close();
+      }
+      segments.clear();
+      index.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void flush() {
+    lock.readLock().lock();
+    try {
+      for (LogSegment s : segments.values()) {
+        s.force();
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    RuntimeException e = compactionError;
+    if (e != null) {
+      compactionError = null;
+      throw new StorageException("Background compaction failed", e);
+    }
+  }
+
+  @Override
+  public void zap() {
+    lock.writeLock().lock();
+    try {
+      generation++;
+      for (LogSegment s : segments.values()) {
+        s.delete();
+      }
+      segments.clear();
+      index.clear();
+      active = new LogSegment(directory, 1, segmentSize);
+      segments.put(active.getId(), active);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * <p>Rebuilds the index from the segment files.</p>
+   */
+  private void recover() {
+    Set<Integer> ids = new TreeSet<>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        int id = LogSegment.parseId(f.getName());
+        if (id >= 0) {
+          ids.add(id);
+        }
+      }
+    }
+    for (int id : ids) {
+      LogSegment segment = new LogSegment(directory, id, segmentSize);
+      segments.put(id, segment);
+      replay(segment);
+    }
+    if (segments.isEmpty()) {
+      segments.put(1, new LogSegment(directory, 1, segmentSize));
+    }
+    active = segments.lastEntry().getValue();
+    // the compactor may have copied children before their parents
+    index.forEach((path, entry) -> attach(path));
+  }
+
+  private void replay(LogSegment segment) {
+    ByteBuffer view = segment.view();
+    CRC32 crc = new CRC32();
+    int pos = 0;
+    while (pos + RECORD_HEADER <= view.capacity()) {
+      int length = view.getInt(pos);
+      if (length <= 0 || length > view.capacity() - pos - RECORD_HEADER) {
+        break;
+      }
+      view.limit(pos + RECORD_HEADER + length);
+      view.position(pos + RECORD_HEADER);
+      crc.reset();
+      crc.update(view);
+      view.clear();
+      if ((int) crc.getValue() != view.getInt(pos + 4)) {
+        break;
+      }
+      apply(segment, pos + RECORD_HEADER, parse(view, pos + RECORD_HEADER), false);
+      pos += RECORD_HEADER + length;
+    }
+    segment.setSize(pos);
+    if (pos + 4 <= view.capacity() && view.getInt(pos) != 0) {
+      // a torn write; make sure it is not mistaken for a record later
+      segment.clearTail();
+    }
+  }
+
+  private static List<Operation> parse(ByteBuffer view, int start) {
+    List<Operation> ret = new ArrayList<>();
+    int count = view.getInt(start);
+    int pos = start + 4;
+    for (int i = 0; i < count; i++) {
+      byte type = view.get(pos++);
+      if (type == OP_PUT) {
+        int length = view.getInt(pos);
+        pos += 4;
+        ret.add(new Operation(readPath(view, pos), pos - start, length));
+        pos += length;
+      } else {
+        String path = readPath(view, pos);
+        ret.add(new Operation(path, -1, 0));
+        pos += 2 + path.length();
+      }
+    }
+    return ret;
+  }
+
+  /* reads a path written by DataOutput.writeUTF(); paths are plain ASCII */
+  private static String readPath(ByteBuffer view, int pos) {
+    byte[] bytes = new byte[view.getShort(pos) & 0xffff];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = view.get(pos + 2 + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /* writes a record to the active segment and applies it to the index */
+  private void append(Batch batch) {
+    byte[] record = batch.toRecord();
+    if (record.length > segmentSize) {
+      throw new StorageException("Change of " + record.length
+          + " bytes does not fit into a log segment");
+    }
+    if (active.getSize() + record.length > active.getCapacity()) {
+      active = new LogSegment(directory, active.getId() + 1, segmentSize);
+      segments.put(active.getId(), active);
+    }
+    int start = active.append(record);
+    apply(active, start + RECORD_HEADER, batch.operations, true);
+  }
+
+  private void apply(LogSegment segment, int payload, List<Operation> operations,
+                     boolean linkChildren) {
+    for (Operation op : operations) {
+      IndexEntry entry = op.offset < 0 ? index.remove(op.path) : index.get(op.path);
+      if (entry != null) {
+        segments.get(entry.segment).addLiveBytes(-entry.length);
+        if (op.offset < 0 && linkChildren) {
+          detach(op.path);
+        }
+      }
+      if (op.offset >= 0) {
+        if (entry == null) {
+          entry = new IndexEntry();
+          index.put(op.path, entry);
+          if (linkChildren) {
+            attach(op.path);
+          }
+        }
+        entry.segment = segment.getId();
+        entry.offset = payload + op.offset;
+        entry.length = op.length;
+        segment.addLiveBytes(op.length);
+      }
+    }
+  }
+
+  /* adds a node to the child names of its parent */
+  private void attach(String path) {
+    String parent = NodeImpl.getParentFromPath(path);
+    IndexEntry entry = "".equals(parent) ? null : index.get(parent);
+    if (entry != null) {
+      if (entry.children == null) {
+        entry.children = new LinkedHashSet<>();
+      }
+      entry.children.add(NodeImpl.getNameFromPath(path));
+    }
+  }
+
+  /* removes a node from the child names of its parent */
+  private void detach(String path) {
+    String parent = NodeImpl.getParentFromPath(path);
+    IndexEntry entry = "".equals(parent) ? null : index.get(parent);
+    if (entry != null && entry.children != null) {
+      entry.children.remove(NodeImpl.getNameFromPath(path));
+      if (entry.children.isEmpty()) {
+        entry.children = null;
+      }
+    }
+  }
+
+  /* lists the paths of a node and its descendants, parents first */
+  private List<String> collectSubtree(String path) {
+    List<String> ret = new ArrayList<>();
+    ret.add(path);
+    for (int i = 0; i < ret.size(); i++) {
+      String p = ret.get(i);
+      Set<String> children = index.get(p).children;
+      if (children != null) {
+        for (String child : children) {
+          ret.add(p + GenericController.PATH_DELIMITER + child);
+        }
+      }
+    }
+    return ret;
+  }
+
+  private ByteBuffer view(IndexEntry entry) {
+    ByteBuffer view = segments.get(entry.segment).view();
+    view.limit(entry.offset + entry.length);
+    view.position(entry.offset);
+    return view;
+  }
+
+  /* decodes a node directly from the mapped segment */
+  private NodeRecord read(IndexEntry entry) {
+    try {
+      return NodeCodec.decode(new DataInputStream(new ByteBufferInputStream(view(entry))));
+    } catch (IOException e) {
+      throw new StorageException("Cannot decode node record", e);
+    }
+  }
+
+  private byte[] readBytes(IndexEntry entry) {
+    byte[] ret = new byte[entry.length];
+    view(entry).get(ret);
+    return ret;
+  }
+
+  private NodeImpl materialize(IndexEntry entry, NodeRecord record) {
+    List<String> children = entry.children == null
+        ? new ArrayList<>() : new ArrayList<>(entry.children);
+    return NodeCodec.materialize(record, children, controller);
+  }
+}
@@ -0,0 +1,156 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.StorageException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>A segment file of the log of a {@link LogMapper}.</p>
+ *
+ * <p>A segment has a fixed size and is mapped into memory as a whole. Records are appended
+ * to the mapped buffer; the unused rest of the file is zero.</p>
+ */
+final class LogSegment {
+
+  private static final Pattern FILE_NAME = Pattern.compile("([0-9]{8})\\.log");
+
+  private final int id;
+  private final File file;
+  private final RandomAccessFile raf;
+  private final MappedByteBuffer buffer;
+
+  /* the number of bytes written */
+  private int size = 0;
+  /* the number of bytes of records referenced by the index */
+  private long liveBytes = 0;
+
+  /**
+   * <p>Opens or creates a segment file.</p>
+   *
+   * @param directory the directory of the log
+   * @param id        the number of the segment
+   * @param capacity  the size of a new segment file
+   * @throws StorageException if the file cannot be opened or mapped
+   */
+  LogSegment(File directory, int id, int capacity) {
+    this.id = id;
+    this.file = new File(directory, String.format("%08d.log", id));
+    try {
+      raf = new RandomAccessFile(file, "rw");
+      if (raf.length() == 0) {
+        raf.setLength(capacity);
+      }
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    } catch (IOException e) {
+      throw new StorageException("Cannot open log segment " + file, e);
+    }
+  }
+
+  /**
+   * <p>Gets the number of a segment file.</p>
+   *
+   * @param name the name of the file
+   * @return the number or -1 if the file is not a segment
+   */
+  static int parseId(String name) {
+    Matcher m = FILE_NAME.matcher(name);
+    return m.matches() ? Integer.parseInt(m.group(1)) : -1;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  void setSize(int size) {
+    this.size = size;
+  }
+
+  int getCapacity() {
+    return buffer.capacity();
+  }
+
+  long getLiveBytes() {
+    return liveBytes;
+  }
+
+  void addLiveBytes(long delta) {
+    liveBytes += delta;
+  }
+
+  /**
+   * <p>Gets a view of the mapped file.</p>
+   *
+   * <p>The view has its own position and limit and may be used by one thread at a time.</p>
+   *
+   * @return the view
+   */
+  ByteBuffer view() {
+    return buffer.duplicate();
+  }
+
+  /**
+   * <p>Appends bytes to the segment.</p>
+   *
+   * @param data the bytes to be appended
+   * @return the offset of the appended bytes
+   */
+  int append(byte[] data) {
+    ByteBuffer view = view();
+    view.position(size);
+    view.put(data);
+    int ret = size;
+    size += data.length;
+    return ret;
+  }
+
+  /**
+   * <p>Overwrites everything after the written bytes with zeros.</p>
+   */
+  void clearTail() {
+    ByteBuffer view = view();
+    view.position(size);
+    while (view.hasRemaining()) {
+      view.put((byte) 0);
+    }
+  }
+
+  /**
+   * <p>Writes the changes of the mapped buffer to the disk.</p>
+   */
+  void force() {
+    buffer.force();
+  }
+
+  /**
+   * <p>Closes the file.</p>
+   *
+   * <p>The mapping itself stays valid until the buffer is garbage collected.</p>
+   */
+  void close() {
+    try {
+      raf.close();
+    } catch (IOException e) {
+      throw new StorageException("Cannot close log segment " + file, e);
+    }
+  }
+
+  /**
+   * <p>Closes and deletes the file.</p>
+   *
+   * @return true if the file was deleted
+   */
+  boolean delete() {
+    close();
+    return file.delete();
+  }
+}
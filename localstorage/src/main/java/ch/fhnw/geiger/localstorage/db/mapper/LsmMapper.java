@@ -0,0 +1,819 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.NodeNotFoundException;
+import ch.fhnw.geiger.localstorage.SearchCriteria;
+import ch.fhnw.geiger.localstorage.StorageController;
+import ch.fhnw.geiger.localstorage.StorageException;
+import ch.fhnw.geiger.localstorage.db.GenericController;
+import ch.fhnw.geiger.localstorage.db.data.Field;
+import ch.fhnw.geiger.localstorage.db.data.Node;
+import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import ch.fhnw.geiger.localstorage.db.mapper.NodeCodec.NodeRecord;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A mapper storing nodes in a log-structured merge-tree.</p>
+ *
+ * <p>Changes are appended to a write-ahead log and collected in a sorted table in memory
+ * (the memtable). A full memtable is written as an immutable file sorted by path (a
+ * {@link SortedRun}) to level 0, and the write-ahead log is started anew. All disk writes are
+ * therefore sequential.</p>
+ *
+ * <p>Runs are merged by leveled compaction: once level 0 holds {@value #LEVEL0_RUNS} runs,
+ * they are merged with the overlapping runs of level 1. The runs of every further level do
+ * not overlap; a level growing beyond ten times the size of the previous one passes one of
+ * its runs, chosen round robin through the paths, on to the next level. Removals are kept as
+ * markers until they reach the deepest level holding data.</p>
+ *
+ * <p>A lookup checks the memtable and then the runs from newest to oldest; a bloom filter per
+ * run skips most runs not holding the path. As paths are sorted, a subtree is a contiguous
+ * range of paths; subtree searches, recursive removes, renames and child enumeration are
+ * range scans merging the memtable and the overlapping runs.</p>
+ *
+ * <p>Apart from that the mapper behaves like {@link H2SqlMapper}. Reads share a lock; writes,
+ * including the flushes and compactions they trigger, are exclusive.</p>
+ */
+public class LsmMapper extends AbstractMapper {
+
+  /**
+   * <p>The default size of the memtable and of the runs in bytes.</p>
+   */
+  public static final int DEFAULT_MEMTABLE_SIZE = 4 * 1024 * 1024;
+
+  private static final int LEVEL0_RUNS = 4;
+  private static final int LEVEL_FACTOR = 10;
+  private static final int MAX_LEVEL = 6;
+
+  private static final String WAL_FILE = "wal.log";
+  private static final String MANIFEST_FILE = "MANIFEST";
+  private static final int MANIFEST_MAGIC = 0x4c534d4d;
+
+  /* the value of a removed node */
+  private static final byte[] REMOVED = new byte[0];
+
+  /* the character following the path delimiter; paths of a subtree sort before it */
+  private static final String SUBTREE_END = ";";
+
+  /**
+   * <p>A cursor over the memtable.</p>
+   */
+  private static final class MemtableCursor implements SortedCursor {
+
+    private final NavigableMap<String, byte[]> map;
+    private Map.Entry<String, byte[]> current = null;
+
+    private MemtableCursor(NavigableMap<String, byte[]> map) {
+      this.map = map;
+    }
+
+    @Override
+    public boolean isValid() {
+      return current != null;
+    }
+
+    @Override
+    public String key() {
+      return current.getKey();
+    }
+
+    @Override
+    public byte[] value() {
+      return current.getValue();
+    }
+
+    @Override
+    public void next() {
+      current = map.higherEntry(current.getKey());
+    }
+
+    @Override
+    public void seek(String key) {
+      current = map.ceilingEntry(key);
+    }
+  }
+
+  private final File directory;
+  private final int memtableSize;
+
+  private TreeMap<String, byte[]> memtable = new TreeMap<>();
+  private long memtableBytes = 0;
+  /* level 0 is ordered from newest to oldest, all other levels by their paths */
+  private final List<List<SortedRun>> levels = new ArrayList<>();
+  /* the last path compacted per level */
+  private final String[] compactPointers = new String[MAX_LEVEL + 1];
+  private int nextRunId = 1;
+  private FileOutputStream wal;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private volatile StorageController controller = null;
+
+  /**
+   * <p>Opens or creates a tree with the default memtable size.</p>
+   *
+   * @param directory the directory holding the files of the tree
+   * @throws StorageException if the tree cannot be opened
+   */
+  public LsmMapper(File directory) {
+    this(directory, DEFAULT_MEMTABLE_SIZE);
+  }
+
+  /**
+   * <p>Opens or creates a tree.</p>
+   *
+   * @param directory    the directory holding the files of the tree
+   * @param memtableSize the size of the memtable and of the runs in bytes
+   * @throws StorageException if the tree cannot be opened
+   */
+  public LsmMapper(File directory, int memtableSize) {
+    this.directory = directory;
+    this.memtableSize = memtableSize;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new StorageException("Cannot create directory " + directory);
+    }
+    recover();
+  }
+
+  @Override
+  public void setController(StorageController controller) {
+    this.controller = controller;
+  }
+
+  @Override
+  public Node get(String path) throws StorageException {
+    return find(path).orElseThrow(() -> new NodeNotFoundException(path));
+  }
+
+  @Override
+  public Optional<Node> find(String path) throws StorageException {
+    checkPath(path);
+    getSanity(path);
+    lock.readLock().lock();
+    try {
+      byte[] value = lookup(path);
+      return value == null ? Optional.empty()
+          : Optional.of(materialize(NodeCodec.decode(value)));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean exists(String path) {
+    checkPath(path);
+    getSanity(path);
+    lock.readLock().lock();
+    try {
+      return lookup(path) != null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean existsValue(String path, String key) {
+    checkPath(path);
+    getSanity(path);
+    lock.readLock().lock();
+    try {
+      byte[] value = lookup(path);
+      return value != null && NodeCodec.decode(value).values.containsKey(key);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void add(Node node) throws StorageException {
+    checkPath(node);
+    String path = node.getPath();
+    String parent = node.getParentPath();
+    byte[] value = NodeCodec.encode(path, node);
+    lock.writeLock().lock();
+    try {
+      if (lookup(path) != null) {
+        throw new StorageException("Node already exists");
+      }
+      if (parent != null && !"".equals(parent) && lookup(parent) == null) {
+        throw new StorageException("Parent node \"" + parent + "\" does not exist");
+      }
+      // like H2SqlMapper children are added by adding them explicitly
+      Map<String, byte[]> changes = new LinkedHashMap<>();
+      changes.put(path, value);
+      write(changes);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void update(Node node) throws StorageException {
+    checkPath(node);
+    String path = node.getPath();
+    byte[] value = NodeCodec.encode(path, node);
+    lock.writeLock().lock();
+    try {
+      if (lookup(path) == null) {
+        throw new NodeNotFoundException(path);
+      }
+      Map<String, byte[]> changes = new LinkedHashMap<>();
+      changes.put(path, value);
+      write(changes);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Node remove(String path) throws StorageException {
+    checkPath(path);
+    lock.writeLock().lock();
+    try {
+      byte[] value = lookup(path);
+      if (value == null) {
+        throw new NodeNotFoundException(path);
+      }
+      if (isInSubtree(subtreeCursor(path), path)) {
+        throw new StorageException("Node does have childs... cannot remove "
+            + NodeImpl.getNameFromPath(path));
+      }
+      final NodeImpl ret = materialize(NodeCodec.decode(value));
+      Map<String, byte[]> changes = new LinkedHashMap<>();
+      changes.put(path, REMOVED);
+      write(changes);
+      return ret;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Node remove(String path, boolean recursive) throws StorageException {
+    if (!recursive) {
+      return remove(path);
+    }
+    checkPath(path);
+    lock.writeLock().lock();
+    try {
+      byte[] value = lookup(path);
+      if (value == null) {
+        throw new NodeNotFoundException(path);
+      }
+      final NodeImpl ret = materialize(NodeCodec.decode(value));
+      Map<String, byte[]> changes = new LinkedHashMap<>();
+      changes.put(path, REMOVED);
+      for (SortedCursor c = subtreeCursor(path); isInSubtree(c, path); c.next()) {
+        changes.put(c.key(), REMOVED);
+      }
+      write(changes);
+      return ret;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public NodeValue getValue(String path, String key) {
+    if ("".equals(path) || "".equals(key)) {
+      throw new NullPointerException();
+    }
+    checkPath(path);
+    lock.readLock().lock();
+    try {
+      byte[] value = lookup(path);
+      if (value == null) {
+        throw new NodeNotFoundException(path);
+      }
+      return NodeCodec.decode(value).values.get(key);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * <p>Renames or moves a node and its subtree.</p>
+   *
+   * <p>The subtree is removed and written with the new paths as a single change.</p>
+   *
+   * @param oldPath the old path of the node
+   * @param newPath the new fully qualified path of the node
+   * @throws StorageException if the new node already exists, the old node does not exist, the
+   *                          new parent node does not exist or the new path is within the
+   *                          subtree of the old one
+   */
+  @Override
+  public void rename(String oldPath, String newPath) throws StorageException {
+    checkPath(oldPath);
+    checkPath(newPath);
+    if (newPath.startsWith(oldPath + GenericController.PATH_DELIMITER)) {
+      throw new StorageException("Cannot move node \"" + oldPath + "\" into its own subtree");
+    }
+    String newParent = NodeImpl.getParentFromPath(newPath);
+    lock.writeLock().lock();
+    try {
+      byte[] value = lookup(oldPath);
+      if (value == null) {
+        throw new NodeNotFoundException(oldPath);
+      }
+      if (lookup(newPath) != null) {
+        throw new StorageException("Node \"" + newPath + "\" does already exist");
+      }
+      if (!"".equals(newParent) && lookup(newParent) == null) {
+        throw new StorageException("Parent node \"" + newParent + "\" does not exist");
+      }
+      Map<String, byte[]> changes = new LinkedHashMap<>();
+      changes.put(oldPath, REMOVED);
+      changes.put(newPath, NodeCodec.withPath(value, newPath));
+      for (SortedCursor c = subtreeCursor(oldPath); isInSubtree(c, oldPath); c.next()) {
+        String p = newPath + c.key().substring(oldPath.length());
+        changes.put(c.key(), REMOVED);
+        changes.put(p, NodeCodec.withPath(c.value(), p));
+      }
+      write(changes);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * <p>Search all nodes matching the provided search criteria.</p>
+   *
+   * <p>The criteria are evaluated by a {@link SearchMatcher}. The node path selects the node
+   * and its whole subtree; a search with a node path scans the range of paths of the subtree
+   * only.</p>
+   *
+   * @param criteria the matching criteria
+   * @return the fully materialized nodes matching the criteria
+   */
+  @Override
+  public List<Node> search(SearchCriteria criteria) throws StorageException {
+    SearchMatcher matcher = new SearchMatcher(criteria);
+    List<Node> ret = new ArrayList<>();
+    String path = criteria.get(Field.PATH);
+    lock.readLock().lock();
+    try {
+      List<byte[]> candidates = new ArrayList<>();
+      if (SearchMatcher.isWildcard(path) || GenericController.PATH_DELIMITER.equals(path)) {
+        // every node is within the subtree
+        SortedCursor c = cursor(null, null);
+        for (c.seek(""); c.isValid(); c.next()) {
+          candidates.add(c.value());
+        }
+      } else {
+        // a trailing delimiter selects the descendants only
+        String root = path.endsWith(GenericController.PATH_DELIMITER)
+            ? path.substring(0, path.length() - 1) : path;
+        byte[] value = lookup(root);
+        if (value != null) {
+          if (root.equals(path)) {
+            candidates.add(value);
+          }
+          for (SortedCursor c = subtreeCursor(root); isInSubtree(c, root); c.next()) {
+            candidates.add(c.value());
+          }
+        }
+      }
+      for (byte[] value : candidates) {
+        NodeRecord record = NodeCodec.decode(value);
+        if (matcher.matches(record.path, record.owner, record.visibility,
+            record.values.values())) {
+          ret.add(materialize(record));
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return ret;
+  }
+
+  @Override
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      wal.getFD().sync();
+      wal.close();
+    } catch (IOException e) {
+      throw new StorageException("Cannot close write-ahead log", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void flush() {
+    lock.readLock().lock();
+    try {
+      wal.getFD().sync();
+    } catch (IOException e) {
+      throw new StorageException("Cannot flush write-ahead log", e);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void zap() {
+    lock.writeLock().lock();
+    try {
+      wal.close();
+      for (List<SortedRun> level : levels) {
+        for (SortedRun run : level) {
+          run.getFile().delete();
+        }
+      }
+      levels.clear();
+      new File(directory, MANIFEST_FILE).delete();
+      memtable = new TreeMap<>();
+      memtableBytes = 0;
+      nextRunId = 1;
+      Arrays.fill(compactPointers, null);
+      wal = new FileOutputStream(new File(directory, WAL_FILE), false);
+    } catch (IOException e) {
+      throw new StorageException("Cannot zap " + directory, e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /* gets the latest value of a path or null if the node does not exist */
+  private byte[] lookup(String path) {
+    byte[] value = memtable.get(path);
+    for (int l = 0; value == null && l < levels.size(); l++) {
+      for (SortedRun run : levels.get(l)) {
+        value = run.get(path);
+        if (value != null) {
+          break;
+        }
+      }
+    }
+    return value == null || value.length == 0 ? null : value;
+  }
+
+  /* merges memtable and runs overlapping the range or all runs if the range is null */
+  private SortedCursor cursor(String from, String to) {
+    List<SortedCursor> sources = new ArrayList<>();
+    sources.add(new MemtableCursor(memtable));
+    for (List<SortedRun> level : levels) {
+      for (SortedRun run : level) {
+        if (from == null || run.overlaps(from, to)) {
+          sources.add(run.cursor());
+        }
+      }
+    }
+    return new MergeCursor(sources, false);
+  }
+
+  /* a cursor positioned on the first descendant of a node */
+  private SortedCursor subtreeCursor(String path) {
+    String prefix = path + GenericController.PATH_DELIMITER;
+    SortedCursor c = cursor(prefix, path + SUBTREE_END);
+    c.seek(prefix);
+    return c;
+  }
+
+  private static boolean isInSubtree(SortedCursor c, String path) {
+    return c.isValid() && c.key().startsWith(path + GenericController.PATH_DELIMITER);
+  }
+
+  /* lists the children of a node, skipping the subtrees of the children */
+  private List<String> getChildNames(String path) {
+    List<String> ret = new ArrayList<>();
+    String prefix = path + GenericController.PATH_DELIMITER;
+    SortedCursor c = subtreeCursor(path);
+    while (isInSubtree(c, path)) {
+      String rest = c.key().substring(prefix.length());
+      int i = rest.indexOf(GenericController.PATH_DELIMITER);
+      if (i < 0) {
+        ret.add(rest);
+        c.next();
+      } else {
+        c.seek(prefix + rest.substring(0, i) + SUBTREE_END);
+      }
+    }
+    return ret;
+  }
+
+  private NodeImpl materialize(NodeRecord record) {
+    return NodeCodec.materialize(record, getChildNames(record.path), controller);
+  }
+
+  /**
+   * <p>Writes a change to the write-ahead log and the memtable.</p>
+   *
+   * <p>A log record holds its length, a checksum and the changed paths with their new
+   * values. A change is therefore either fully recovered or not at all.</p>
+   */
+  private void write(Map<String, byte[]> changes) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0);
+      out.writeInt(0);
+      out.writeInt(changes.size());
+      for (Map.Entry<String, byte[]> e : changes.entrySet()) {
+        out.writeUTF(e.getKey());
+        out.writeInt(e.getValue().length);
+        out.write(e.getValue());
+      }
+      byte[] record = bytes.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(record, 8, record.length - 8);
+      ByteBuffer.wrap(record).putInt(0, record.length - 8).putInt(4, (int) crc.getValue());
+      wal.write(record);
+    } catch (IOException e) {
+      throw new StorageException("Cannot write to write-ahead log", e);
+    }
+    apply(changes);
+    if (memtableBytes >= memtableSize) {
+      flushMemtable();
+      compact();
+    }
+  }
+
+  private void apply(Map<String, byte[]> changes) {
+    for (Map.Entry<String, byte[]> e : changes.entrySet()) {
+      byte[] old = memtable.put(e.getKey(), e.getValue());
+      // keys are counted with two bytes per character
+      memtableBytes += e.getValue().length
+          - (old == null ? -2L * e.getKey().length() : old.length);
+    }
+  }
+
+  /* writes the memtable to a new run of level 0 */
+  private void flushMemtable() {
+    if (memtable.isEmpty()) {
+      return;
+    }
+    SortedRun.Writer writer = newRun();
+    for (Map.Entry<String, byte[]> e : memtable.entrySet()) {
+      writer.add(e.getKey(), e.getValue());
+    }
+    level(0).add(0, writer.finish());
+    writeManifest();
+    memtable = new TreeMap<>();
+    memtableBytes = 0;
+    try {
+      wal.close();
+      wal = new FileOutputStream(new File(directory, WAL_FILE), false);
+    } catch (IOException e) {
+      throw new StorageException("Cannot reset write-ahead log", e);
+    }
+  }
+
+  /* compacts levels until all are within their limits */
+  private void compact() {
+    boolean compacted = true;
+    while (compacted) {
+      compacted = false;
+      if (level(0).size() >= LEVEL0_RUNS) {
+        compactLevel(0);
+        compacted = true;
+        continue;
+      }
+      long limit = memtableSize;
+      for (int l = 1; l < MAX_LEVEL && l < levels.size(); l++) {
+        limit *= LEVEL_FACTOR;
+        long size = 0;
+        for (SortedRun run : levels.get(l)) {
+          size += run.getSize();
+        }
+        if (size > limit) {
+          compactLevel(l);
+          compacted = true;
+          break;
+        }
+      }
+    }
+  }
+
+  /* merges runs of a level with the overlapping runs of the next level */
+  private void compactLevel(int level) {
+    List<SortedRun> upper;
+    if (level == 0) {
+      upper = new ArrayList<>(level(0));
+    } else {
+      // continue after the run compacted last
+      SortedRun pick = level(level).get(0);
+      for (SortedRun run : level(level)) {
+        if (compactPointers[level] != null
+            && run.getMinKey().compareTo(compactPointers[level]) > 0) {
+          pick = run;
+          break;
+        }
+      }
+      compactPointers[level] = pick.getMaxKey();
+      upper = new ArrayList<>();
+      upper.add(pick);
+    }
+    String from = null;
+    String to = null;
+    for (SortedRun run : upper) {
+      if (run.getMinKey() != null) {
+        from = from == null || run.getMinKey().compareTo(from) < 0 ? run.getMinKey() : from;
+        to = to == null || run.getMaxKey().compareTo(to) > 0 ? run.getMaxKey() : to;
+      }
+    }
+    List<SortedRun> lower = new ArrayList<>();
+    if (from != null) {
+      for (SortedRun run : level(level + 1)) {
+        if (run.overlaps(from, to)) {
+          lower.add(run);
+        }
+      }
+    }
+    // removals hide older values only; below the deepest level with data there are none
+    boolean keepRemoved = false;
+    for (int l = level + 2; l < levels.size(); l++) {
+      keepRemoved |= !levels.get(l).isEmpty();
+    }
+    List<SortedCursor> sources = new ArrayList<>();
+    for (SortedRun run : upper) {
+      sources.add(run.cursor());
+    }
+    for (SortedRun run : lower) {
+      sources.add(run.cursor());
+    }
+    List<SortedRun> output = new ArrayList<>();
+    SortedRun.Writer writer = null;
+    SortedCursor c = new MergeCursor(sources, keepRemoved);
+    for (c.seek(""); c.isValid(); c.next()) {
+      if (writer == null) {
+        writer = newRun();
+      }
+      writer.add(c.key(), c.value());
+      if (writer.getSize() >= memtableSize) {
+        output.add(writer.finish());
+        writer = null;
+      }
+    }
+    if (writer != null) {
+      output.add(writer.finish());
+    }
+    level(level).removeAll(upper);
+    level(level + 1).removeAll(lower);
+    level(level + 1).addAll(output);
+    level(level + 1).sort(Comparator.comparing(SortedRun::getMinKey));
+    writeManifest();
+    for (SortedRun run : upper) {
+      run.getFile().delete();
+    }
+    for (SortedRun run : lower) {
+      run.getFile().delete();
+    }
+  }
+
+  private List<SortedRun> level(int level) {
+    while (levels.size() <= level) {
+      levels.add(new ArrayList<>());
+    }
+    return levels.get(level);
+  }
+
+  private SortedRun.Writer newRun() {
+    int id = nextRunId++;
+    return new SortedRun.Writer(runFile(id), id);
+  }
+
+  private File runFile(int id) {
+    return new File(directory, String.format("%08d.sst", id));
+  }
+
+  /**
+   * <p>Writes the list of runs by level.</p>
+   *
+   * <p>The manifest is replaced atomically; runs not listed are deleted on recovery.</p>
+   */
+  private void writeManifest() {
+    File tmp = new File(directory, MANIFEST_FILE + ".tmp");
+    try (FileOutputStream stream = new FileOutputStream(tmp)) {
+      DataOutputStream out = new DataOutputStream(stream);
+      out.writeInt(MANIFEST_MAGIC);
+      out.writeInt(nextRunId);
+      out.writeInt(levels.size());
+      for (List<SortedRun> level : levels) {
+        out.writeInt(level.size());
+        for (SortedRun run : level) {
+          out.writeInt(run.getId());
+        }
+      }
+      out.flush();
+      stream.getFD().sync();
+    } catch (IOException e) {
+      throw new StorageException("Cannot write manifest", e);
+    }
+    try {
+      Files.move(tmp.toPath(), new File(directory, MANIFEST_FILE).toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new StorageException("Cannot write manifest", e);
+    }
+  }
+
+  /**
+   * <p>Opens the runs listed in the manifest and replays the write-ahead log.</p>
+   */
+  private void recover() {
+    Set<String> referenced = new HashSet<>();
+    referenced.add(MANIFEST_FILE);
+    referenced.add(WAL_FILE);
+    File manifest = new File(directory, MANIFEST_FILE);
+    if (manifest.exists()) {
+      try (DataInputStream in = new DataInputStream(
+          new ByteArrayInputStream(Files.readAllBytes(manifest.toPath())))) {
+        if (in.readInt() != MANIFEST_MAGIC) {
+          throw new StorageException("Manifest " + manifest + " is corrupted");
+        }
+        nextRunId = in.readInt();
+        int levelCount = in.readInt();
+        for (int l = 0; l < levelCount; l++) {
+          int runs = in.readInt();
+          for (int i = 0; i < runs; i++) {
+            int id = in.readInt();
+            level(l).add(new SortedRun(runFile(id), id));
+            referenced.add(runFile(id).getName());
+          }
+        }
+      } catch (IOException e) {
+        throw new StorageException("Cannot read manifest " + manifest, e);
+      }
+    }
+    // runs written by an interrupted flush or compaction
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if ((f.getName().endsWith(".sst") || f.getName().endsWith(".tmp"))
+            && !referenced.contains(f.getName())) {
+          f.delete();
+        }
+      }
+    }
+    File walFile = new File(directory, WAL_FILE);
+    try {
+      if (walFile.exists()) {
+        replay(walFile);
+      }
+      wal = new FileOutputStream(walFile, true);
+    } catch (IOException e) {
+      throw new StorageException("Cannot open write-ahead log " + walFile, e);
+    }
+  }
+
+  private void replay(File walFile) throws IOException {
+    ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(walFile.toPath()));
+    CRC32 crc = new CRC32();
+    int pos = 0;
+    while (pos + 8 <= log.capacity()) {
+      int length = log.getInt(pos);
+      if (length < 4 || length > log.capacity() - pos - 8) {
+        break;
+      }
+      crc.reset();
+      crc.update(log.array(), pos + 8, length);
+      if ((int) crc.getValue() != log.getInt(pos + 4)) {
+        break;
+      }
+      DataInputStream in = new DataInputStream(
+          new ByteArrayInputStream(log.array(), pos + 8, length));
+      Map<String, byte[]> changes = new LinkedHashMap<>();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String key = in.readUTF();
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        changes.put(key, value.length == 0 ? REMOVED : value);
+      }
+      apply(changes);
+      pos += 8 + length;
+    }
+    if (pos < log.capacity()) {
+      // drop a torn write
+      try (RandomAccessFile raf = new RandomAccessFile(walFile, "rw")) {
+        raf.setLength(pos);
+      }
+    }
+  }
+}
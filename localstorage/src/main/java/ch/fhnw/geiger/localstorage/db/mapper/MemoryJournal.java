@@ -0,0 +1,537 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.StorageException;
+import ch.fhnw.geiger.localstorage.db.mapper.NodeCodec.NodeRecord;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * <p>The files making the {@link MemoryMapper} durable.</p>
+ *
+ * <p>Every change is appended to a write-ahead log as a single record holding the encoded
+ * nodes (see {@link NodeCodec}) and removals it consists of. A record carries its length and
+ * a checksum; a torn record at the end of a log is discarded on recovery. All records are
+ * assignments of the final state of a node; replaying a record which is already contained in
+ * the state is therefore harmless.</p>
+ *
+ * <p>A checkpoint switches to a new log file and writes all nodes, parents before their
+ * children, to a snapshot file named after the new log. Recovery loads the latest snapshot
+ * and replays the logs starting with the one the snapshot is named after; older files are
+ * deleted once the snapshot is complete.</p>
+ */
+final class MemoryJournal {
+
+  /**
+   * <p>Receives the recovered changes.</p>
+   */
+  interface Replay {
+
+    /**
+     * <p>Sets the state of a node; the node keeps its children if it exists.</p>
+     *
+     * @param record the decoded node
+     */
+    void put(NodeRecord record);
+
+    /**
+     * <p>Removes a node and its subtree if it exists.</p>
+     *
+     * @param path the path of the node
+     */
+    void remove(String path);
+  }
+
+  /**
+   * <p>The changes to be written as one record.</p>
+   *
+   * <p>The payload of a record holds the number of operations followed by the operations. A
+   * put is written as type, length and encoded node, a removal as type and path.</p>
+   */
+  static final class Change {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private int count = 0;
+
+    Change put(byte[] node) {
+      try {
+        out.writeByte(OP_PUT);
+        out.writeInt(node.length);
+        out.write(node);
+        count++;
+      } catch (IOException e) {
+        throw new StorageException("Cannot encode change", e);
+      }
+      return this;
+    }
+
+    Change remove(String path) {
+      try {
+        out.writeByte(OP_REMOVE);
+        out.writeUTF(path);
+        count++;
+      } catch (IOException e) {
+        throw new StorageException("Cannot encode change", e);
+      }
+      return this;
+    }
+
+    private ByteBuffer toRecord() {
+      byte[] ops = bytes.toByteArray();
+      ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + 4 + ops.length);
+      record.putInt(4 + ops.length);
+      record.putInt(0);
+      record.putInt(count);
+      record.put(ops);
+      CRC32 crc = new CRC32();
+      crc.update(record.array(), RECORD_HEADER, 4 + ops.length);
+      record.putInt(4, (int) crc.getValue());
+      record.flip();
+      return record;
+    }
+  }
+
+  /**
+   * <p>Writes a snapshot file.</p>
+   *
+   * <p>The file is written to a temporary file and moved to its final name by
+   * {@link MemoryJournal#completeSnapshot(SnapshotWriter)}.</p>
+   */
+  final class SnapshotWriter {
+
+    private final int id;
+    private final int generation;
+    private final File tmp;
+    private final FileOutputStream stream;
+    private final CheckedOutputStream checked;
+    private final DataOutputStream out;
+
+    private SnapshotWriter(int id, int generation) {
+      this.id = id;
+      this.generation = generation;
+      this.tmp = new File(file(SNAPSHOT_PREFIX, id, SNAPSHOT_SUFFIX).getPath() + ".tmp");
+      try {
+        stream = new FileOutputStream(tmp);
+        checked = new CheckedOutputStream(new BufferedOutputStream(stream, 65536), new CRC32());
+        out = new DataOutputStream(checked);
+        out.writeInt(SNAPSHOT_MAGIC);
+      } catch (IOException e) {
+        throw new StorageException("Cannot create snapshot file " + tmp, e);
+      }
+    }
+
+    /**
+     * <p>Adds a node; nodes must be added after their parents.</p>
+     *
+     * @param node the encoded node
+     */
+    void add(byte[] node) {
+      try {
+        out.writeInt(node.length);
+        out.write(node);
+      } catch (IOException e) {
+        throw new StorageException("Cannot write snapshot file " + tmp, e);
+      }
+    }
+
+    private void finish() throws IOException {
+      out.writeInt(0);
+      // the checksum covers everything before it
+      out.writeLong(checked.getChecksum().getValue());
+      out.flush();
+      stream.getFD().sync();
+      out.close();
+    }
+
+    private void abort() {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // the file is deleted anyway
+      }
+      if (tmp.exists() && !tmp.delete()) {
+        tmp.deleteOnExit();
+      }
+    }
+  }
+
+  /* record header: length and checksum of the payload */
+  private static final int RECORD_HEADER = 8;
+  private static final byte OP_PUT = 1;
+  private static final byte OP_REMOVE = 2;
+
+  private static final int SNAPSHOT_MAGIC = 0x4d4d5331;
+  private static final String LOG_PREFIX = "wal-";
+  private static final String LOG_SUFFIX = ".log";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".snap";
+
+  private final File directory;
+  private final SyncPolicy sync;
+
+  private int logId = 0;
+  private FileChannel log = null;
+  /* true if the log holds records not yet forced to the disk */
+  private boolean dirty = false;
+  /* true if the log holds records not contained in the latest snapshot */
+  private boolean changed = false;
+  /* changed by reset and close to abandon a snapshot being written */
+  private int generation = 0;
+
+  /**
+   * <p>Opens the journal.</p>
+   *
+   * <p>No change can be written before the journal is recovered.</p>
+   *
+   * @param directory the directory holding log and snapshot files
+   * @param sync      the policy forcing written changes to the disk
+   * @throws StorageException if the directory cannot be created
+   */
+  MemoryJournal(File directory, SyncPolicy sync) {
+    this.directory = directory;
+    this.sync = sync;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new StorageException("Cannot create journal directory " + directory);
+    }
+  }
+
+  /**
+   * <p>Replays the latest snapshot and all changes written after it.</p>
+   *
+   * <p>A torn record at the end of a log is removed; new changes are appended to the latest
+   * log.</p>
+   *
+   * @param replay the receiver of the recovered state
+   * @throws StorageException if a file cannot be read or the snapshot is corrupted
+   */
+  synchronized void recover(Replay replay) {
+    TreeMap<Integer, File> logs = list(LOG_PREFIX, LOG_SUFFIX);
+    TreeMap<Integer, File> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+    int snapshotId = 0;
+    if (!snapshots.isEmpty()) {
+      snapshotId = snapshots.lastKey();
+      readSnapshot(snapshots.lastEntry().getValue(), replay);
+    }
+    long length = 0;
+    for (Map.Entry<Integer, File> e : logs.tailMap(snapshotId, true).entrySet()) {
+      logId = e.getKey();
+      length = replayLog(e.getValue(), replay);
+      changed |= length > 0;
+    }
+    if (logId == 0) {
+      logId = Math.max(snapshotId, 1);
+    }
+    try {
+      log = FileChannel.open(file(LOG_PREFIX, logId, LOG_SUFFIX).toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      // drops a torn record
+      log.truncate(length);
+      log.position(length);
+    } catch (IOException e) {
+      throw new StorageException("Cannot open log file " + logId, e);
+    }
+    deleteBefore(snapshotId);
+  }
+
+  /**
+   * <p>Appends a change to the log.</p>
+   *
+   * <p>Changes must be appended before they are applied to the state of the mapper. A change
+   * which cannot be written is removed from the log again and must not be applied.</p>
+   *
+   * @param change the change to be written
+   * @throws StorageException if the log cannot be written
+   */
+  synchronized void append(Change change) {
+    if (log == null) {
+      throw new StorageException("Journal is closed");
+    }
+    long start = -1;
+    try {
+      start = log.position();
+      ByteBuffer record = change.toRecord();
+      while (record.hasRemaining()) {
+        log.write(record);
+      }
+      changed = true;
+      if (sync == SyncPolicy.ALWAYS) {
+        log.force(false);
+      } else {
+        dirty = true;
+      }
+    } catch (IOException e) {
+      if (start >= 0) {
+        truncate(start);
+      }
+      throw new StorageException("Cannot write log file " + logId, e);
+    }
+  }
+
+  /* drops a record which could not be written completely; later records stay readable */
+  private void truncate(long length) {
+    try {
+      log.truncate(length);
+      log.position(length);
+    } catch (IOException e) {
+      // the torn record ends the log on recovery
+    }
+  }
+
+  /**
+   * <p>Forces all written changes to the disk.</p>
+   *
+   * @throws StorageException if the log cannot be written
+   */
+  synchronized void sync() {
+    if (log == null || !dirty) {
+      return;
+    }
+    try {
+      log.force(false);
+      dirty = false;
+    } catch (IOException e) {
+      throw new StorageException("Cannot write log file " + logId, e);
+    }
+  }
+
+  /**
+   * <p>Starts a checkpoint by switching to a new log.</p>
+   *
+   * <p>The caller must collect the state of the mapper after this call and write it to the
+   * returned writer.</p>
+   *
+   * @return the writer for the snapshot or null if nothing changed since the last snapshot
+   * @throws StorageException if the new log cannot be created
+   */
+  synchronized SnapshotWriter beginSnapshot() {
+    if (log == null || !changed) {
+      return null;
+    }
+    sync();
+    try {
+      FileChannel next = FileChannel.open(file(LOG_PREFIX, logId + 1, LOG_SUFFIX).toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      log.close();
+      log = next;
+      logId++;
+      changed = false;
+    } catch (IOException e) {
+      throw new StorageException("Cannot create log file " + (logId + 1), e);
+    }
+    return new SnapshotWriter(logId, generation);
+  }
+
+  /**
+   * <p>Completes a checkpoint and deletes the files no longer needed for recovery.</p>
+   *
+   * <p>The snapshot is discarded if the journal was reset or closed in the meantime.</p>
+   *
+   * @param writer the writer returned by {@link #beginSnapshot()}
+   * @throws StorageException if the snapshot cannot be written
+   */
+  synchronized void completeSnapshot(SnapshotWriter writer) {
+    if (writer.generation != generation) {
+      writer.abort();
+      return;
+    }
+    try {
+      writer.finish();
+      Files.move(writer.tmp.toPath(), file(SNAPSHOT_PREFIX, writer.id, SNAPSHOT_SUFFIX).toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      writer.abort();
+      throw new StorageException("Cannot write snapshot file " + writer.id, e);
+    }
+    deleteBefore(writer.id);
+  }
+
+  /**
+   * <p>Abandons a checkpoint which failed.</p>
+   *
+   * @param writer the writer returned by {@link #beginSnapshot()}
+   */
+  synchronized void abortSnapshot(SnapshotWriter writer) {
+    writer.abort();
+    // the old log is still needed; the next checkpoint must write a snapshot
+    changed = true;
+  }
+
+  /**
+   * <p>Deletes all files and starts with an empty log.</p>
+   *
+   * @throws StorageException if the files cannot be deleted
+   */
+  synchronized void reset() {
+    generation++;
+    closeLog();
+    for (File f : list(LOG_PREFIX, LOG_SUFFIX).values()) {
+      delete(f);
+    }
+    for (File f : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).values()) {
+      delete(f);
+    }
+    logId = 1;
+    changed = false;
+    try {
+      log = FileChannel.open(file(LOG_PREFIX, logId, LOG_SUFFIX).toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    } catch (IOException e) {
+      throw new StorageException("Cannot create log file " + logId, e);
+    }
+  }
+
+  /**
+   * <p>Forces all written changes to the disk and closes the log.</p>
+   */
+  synchronized void close() {
+    generation++;
+    sync();
+    closeLog();
+  }
+
+  private void closeLog() {
+    if (log == null) {
+      return;
+    }
+    try {
+      log.close();
+    } catch (IOException e) {
+      throw new StorageException("Cannot close log file " + logId, e);
+    } finally {
+      log = null;
+      dirty = false;
+    }
+  }
+
+  /* returns the length of the valid records */
+  private static long replayLog(File file, Replay replay) {
+    long pos = 0;
+    CRC32 crc = new CRC32();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file), 65536))) {
+      while (true) {
+        int length;
+        int checksum;
+        byte[] payload;
+        try {
+          length = in.readInt();
+          checksum = in.readInt();
+          if (length < 4 || length > file.length() - pos - RECORD_HEADER) {
+            break;
+          }
+          payload = new byte[length];
+          in.readFully(payload);
+        } catch (EOFException e) {
+          break;
+        }
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        apply(payload, replay);
+        pos += RECORD_HEADER + length;
+      }
+    } catch (IOException e) {
+      throw new StorageException("Cannot read log file " + file, e);
+    }
+    return pos;
+  }
+
+  private static void apply(byte[] payload, Replay replay) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      if (in.readByte() == OP_PUT) {
+        // the length is not needed as the encoding of a node is self-delimiting
+        in.readInt();
+        replay.put(NodeCodec.decode(in));
+      } else {
+        replay.remove(in.readUTF());
+      }
+    }
+  }
+
+  private static void readSnapshot(File file, Replay replay) {
+    try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(
+        new FileInputStream(file), 65536), new CRC32());
+         DataInputStream in = new DataInputStream(checked)) {
+      if (in.readInt() != SNAPSHOT_MAGIC) {
+        throw new StorageException("Snapshot file " + file + " is corrupted");
+      }
+      int length = in.readInt();
+      while (length > 0) {
+        byte[] node = new byte[length];
+        in.readFully(node);
+        replay.put(NodeCodec.decode(node));
+        length = in.readInt();
+      }
+      long expected = checked.getChecksum().getValue();
+      if (length != 0 || in.readLong() != expected) {
+        throw new StorageException("Snapshot file " + file + " is corrupted");
+      }
+    } catch (IOException e) {
+      throw new StorageException("Cannot read snapshot file " + file, e);
+    }
+  }
+
+  /* deletes logs and snapshots older than the given snapshot */
+  private void deleteBefore(int snapshotId) {
+    for (File f : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(snapshotId).values()) {
+      delete(f);
+    }
+    for (File f : list(LOG_PREFIX, LOG_SUFFIX).headMap(snapshotId).values()) {
+      delete(f);
+    }
+  }
+
+  private static void delete(File f) {
+    if (!f.delete() && f.exists()) {
+      throw new StorageException("Cannot delete journal file " + f);
+    }
+  }
+
+  private File file(String prefix, int id, String suffix) {
+    return new File(directory, String.format("%s%08d%s", prefix, id, suffix));
+  }
+
+  /* lists the files with the given name pattern by number */
+  private TreeMap<Integer, File> list(String prefix, String suffix) {
+    TreeMap<Integer, File> ret = new TreeMap<>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+        if (name.startsWith(prefix) && name.endsWith(suffix)) {
+          try {
+            ret.put(Integer.parseInt(name.substring(prefix.length(),
+                name.length() - suffix.length())), f);
+          } catch (NumberFormatException e) {
+            // not a journal file
+          }
+        }
+      }
+    }
+    return ret;
+  }
+}
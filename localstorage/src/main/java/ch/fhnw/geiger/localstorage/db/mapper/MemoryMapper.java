@@ -0,0 +1,736 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.NodeNotFoundException;
+import ch.fhnw.geiger.localstorage.SearchCriteria;
+import ch.fhnw.geiger.localstorage.StorageController;
+import ch.fhnw.geiger.localstorage.StorageException;
+import ch.fhnw.geiger.localstorage.Visibility;
+import ch.fhnw.geiger.localstorage.db.GenericController;
+import ch.fhnw.geiger.localstorage.db.data.Field;
+import ch.fhnw.geiger.localstorage.db.data.Node;
+import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import ch.fhnw.geiger.localstorage.db.mapper.NodeCodec.NodeRecord;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * <p>A thread safe mapper keeping all nodes in memory.</p>
+ *
+ * <p>The store is an immutable {@link PersistentMap} from paths to immutable node records.
+ * Writers publish a new version of the map atomically; unchanged parts of the map are shared
+ * between versions. Reads are lock-free and work on the version current when they start, so
+ * a search or a node with its children is always read from a consistent state, and
+ * {@link #snapshot()} costs constant time. Writers lock the top level subtree they modify
+ * (e.g. all nodes below ":Users"); writes to different top level subtrees run in parallel.
+ * Apart from persistence the mapper behaves like {@link H2SqlMapper}.</p>
+ *
+ * <p>The nodes form a path trie: every record holds the names of its children, which are
+ * resolved through the path map. Subtree searches, recursive removes, renames and child
+ * enumeration therefore cost time proportional to the subtree and not to the store.</p>
+ *
+ * <p>If created with a directory the mapper is durable. Every change is appended to a
+ * write-ahead log before it is published; a change which cannot be logged is not applied. The
+ * log is forced to the disk according to a {@link SyncPolicy}. Checkpoints write all nodes to
+ * a compact snapshot file in the background and start a new log; writers are not blocked as
+ * the snapshot is taken from an immutable version of the store. When opened the mapper loads
+ * the latest snapshot and replays the log written after it (see {@link MemoryJournal}).</p>
+ */
+public class MemoryMapper extends AbstractMapper {
+
+  /**
+   * <p>The stored state of a node.</p>
+   *
+   * <p>Records never change; an update of the node or of its children replaces the
+   * record.</p>
+   */
+  private static final class StoredNode {
+
+    private final String owner;
+    private final Visibility visibility;
+    private final Map<String, NodeValue> values;
+    /* the names of the children */
+    private final PersistentMap<String, Boolean> children;
+
+    private StoredNode(String owner, Visibility visibility, Map<String, NodeValue> values,
+                       PersistentMap<String, Boolean> children) {
+      this.owner = owner;
+      this.visibility = visibility;
+      this.values = values;
+      this.children = children;
+    }
+
+    private StoredNode withChildren(PersistentMap<String, Boolean> children) {
+      return new StoredNode(owner, visibility, values, children);
+    }
+
+    private List<String> getChildNames() {
+      List<String> ret = new ArrayList<>(children.size());
+      children.forEach((name, present) -> ret.add(name));
+      return ret;
+    }
+  }
+
+  /**
+   * <p>Rebuilds the store from the recovered changes.</p>
+   */
+  private static final class Recovery implements MemoryJournal.Replay {
+
+    private PersistentMap<String, StoredNode> nodes = PersistentMap.empty();
+
+    @Override
+    public void put(NodeRecord record) {
+      String path = key(record.path);
+      String parent = NodeImpl.getParentFromPath(path);
+      if (!"".equals(parent) && !nodes.containsKey(parent)) {
+        // the parent was removed later on
+        return;
+      }
+      StoredNode old = nodes.get(path);
+      StoredNode stored = new StoredNode(record.owner, record.visibility,
+          Collections.unmodifiableMap(record.values),
+          old == null ? PersistentMap.empty() : old.children);
+      nodes = nodes.plus(path, stored);
+      if (old == null) {
+        nodes = attach(nodes, path);
+      }
+    }
+
+    @Override
+    public void remove(String path) {
+      nodes = removeSubtree(detach(nodes, key(path)), key(path));
+    }
+  }
+
+  /**
+   * <p>The default delay between two checkpoints of a durable mapper in milliseconds.</p>
+   */
+  public static final long DEFAULT_SNAPSHOT_INTERVAL = 60000;
+
+  /* the key of the root node */
+  private static final String ROOT = "";
+
+  /* the delay between two forces of the log with SyncPolicy.PERIODIC in milliseconds */
+  private static final long SYNC_INTERVAL = 1000;
+
+  /* the current version of the store */
+  private final AtomicReference<PersistentMap<String, StoredNode>> nodes;
+
+  /* the log and snapshot files or null if the mapper is not durable */
+  private final MemoryJournal journal;
+  private final ScheduledExecutorService background;
+  private volatile RuntimeException backgroundError = null;
+  /* serializes checkpoints and zap */
+  private final Object checkpointLock = new Object();
+  /* held shared by writers between logging and publishing a change, exclusively while a
+     checkpoint or zap switches the log */
+  private final ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
+
+  /* write locks by top level subtree */
+  private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+  private volatile StorageController controller = null;
+
+  /**
+   * <p>Creates an empty mapper.</p>
+   */
+  public MemoryMapper() {
+    this(PersistentMap.empty());
+  }
+
+  /**
+   * <p>Opens or creates a durable mapper with default settings.</p>
+   *
+   * <p>Changes are forced to the disk every second and a checkpoint is taken every
+   * minute.</p>
+   *
+   * @param directory the directory holding log and snapshot files
+   * @throws StorageException if the files cannot be read
+   */
+  public MemoryMapper(File directory) {
+    this(directory, SyncPolicy.PERIODIC, DEFAULT_SNAPSHOT_INTERVAL);
+  }
+
+  /**
+   * <p>Opens or creates a durable mapper.</p>
+   *
+   * @param directory        the directory holding log and snapshot files
+   * @param sync             the policy forcing written changes to the disk
+   * @param snapshotInterval the delay between two checkpoints in milliseconds or 0 to take
+   *                         checkpoints on explicit request only
+   * @throws StorageException if the files cannot be read
+   */
+  public MemoryMapper(File directory, SyncPolicy sync, long snapshotInterval) {
+    Recovery recovery = new Recovery();
+    journal = new MemoryJournal(directory, sync);
+    journal.recover(recovery);
+    nodes = new AtomicReference<>(recovery.nodes);
+    if (sync == SyncPolicy.PERIODIC || snapshotInterval > 0) {
+      background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "MemoryMapper journal");
+        t.setDaemon(true);
+        return t;
+      });
+      if (sync == SyncPolicy.PERIODIC) {
+        schedule(journal::sync, SYNC_INTERVAL);
+      }
+      if (snapshotInterval > 0) {
+        schedule(this::checkpoint, snapshotInterval);
+      }
+    } else {
+      background = null;
+    }
+  }
+
+  private MemoryMapper(PersistentMap<String, StoredNode> nodes) {
+    this.nodes = new AtomicReference<>(nodes);
+    this.journal = null;
+    this.background = null;
+  }
+
+  private void schedule(Runnable task, long interval) {
+    background.scheduleWithFixedDelay(() -> {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // reported by the next flush
+        backgroundError = e;
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * <p>Creates an independent copy of this mapper in constant time.</p>
+   *
+   * <p>The copy shares all data with this mapper. Later writes to either mapper are not
+   * visible to the other one. The copy is never durable.</p>
+   *
+   * @return the copy
+   */
+  public MemoryMapper snapshot() {
+    MemoryMapper ret = new MemoryMapper(nodes.get());
+    ret.setController(controller);
+    return ret;
+  }
+
+  @Override
+  public void setController(StorageController controller) {
+    this.controller = controller;
+  }
+
+  @Override
+  public Node get(String path) throws StorageException {
+    return find(path).orElseThrow(() -> new NodeNotFoundException(path));
+  }
+
+  @Override
+  public Optional<Node> find(String path) throws StorageException {
+    checkPath(path);
+    getSanity(path);
+    StoredNode stored = nodes.get().get(key(path));
+    return stored == null ? Optional.empty() : Optional.of(materialize(key(path), stored));
+  }
+
+  @Override
+  public boolean exists(String path) {
+    checkPath(path);
+    getSanity(path);
+    return nodes.get().containsKey(key(path));
+  }
+
+  @Override
+  public boolean existsValue(String path, String key) {
+    checkPath(path);
+    getSanity(path);
+    StoredNode stored = nodes.get().get(key(path));
+    return stored != null && stored.values.containsKey(key);
+  }
+
+  @Override
+  public void add(Node node) throws StorageException {
+    checkPath(node);
+    String path = key(node.getPath());
+    String parent = node.getParentPath();
+    byte[] encoded = journal == null ? null : NodeCodec.encode(path, node);
+    List<ReentrantLock> held = lock(path);
+    try {
+      PersistentMap<String, StoredNode> current = nodes.get();
+      if (current.containsKey(path)) {
+        throw new StorageException("Node already exists");
+      }
+      if (parent != null && !"".equals(parent) && !current.containsKey(parent)) {
+        throw new StorageException("Parent node \"" + parent + "\" does not exist");
+      }
+      // like H2SqlMapper children are added by adding them explicitly
+      StoredNode stored = new StoredNode(node.getOwner(), node.getVisibility(),
+          copyValues(node.getValues().values(), null), PersistentMap.empty());
+      commit(() -> new MemoryJournal.Change().put(encoded),
+          m -> attach(m.plus(path, stored), path));
+    } finally {
+      unlock(held);
+    }
+  }
+
+  @Override
+  public void update(Node node) throws StorageException {
+    checkPath(node);
+    String path = key(node.getPath());
+    byte[] encoded = journal == null ? null : NodeCodec.encode(path, node);
+    List<ReentrantLock> held = lock(path);
+    try {
+      StoredNode stored = nodes.get().get(path);
+      if (stored == null) {
+        throw new NodeNotFoundException(path);
+      }
+      Map<String, NodeValue> values = copyValues(node.getValues().values(), stored.values);
+      commit(() -> new MemoryJournal.Change().put(encoded),
+          m -> m.plus(path, new StoredNode(node.getOwner(), node.getVisibility(), values,
+              m.get(path).children)));
+    } finally {
+      unlock(held);
+    }
+  }
+
+  @Override
+  public Node remove(String nodePath) throws StorageException {
+    checkPath(nodePath);
+    String path = key(nodePath);
+    List<ReentrantLock> held = lock(path);
+    try {
+      StoredNode stored = nodes.get().get(path);
+      if (stored == null) {
+        throw new NodeNotFoundException(path);
+      }
+      if (!stored.children.isEmpty()) {
+        throw new StorageException("Node does have childs... cannot remove "
+            + NodeImpl.getNameFromPath(path));
+      }
+      NodeImpl ret = materialize(path, stored);
+      commit(() -> new MemoryJournal.Change().remove(path), m -> detach(m, path).minus(path));
+      return ret;
+    } finally {
+      unlock(held);
+    }
+  }
+
+  @Override
+  public Node remove(String nodePath, boolean recursive) throws StorageException {
+    if (!recursive) {
+      return remove(nodePath);
+    }
+    checkPath(nodePath);
+    String path = key(nodePath);
+    List<ReentrantLock> held = lock(path);
+    try {
+      StoredNode stored = nodes.get().get(path);
+      if (stored == null) {
+        throw new NodeNotFoundException(path);
+      }
+      NodeImpl ret = materialize(path, stored);
+      commit(() -> new MemoryJournal.Change().remove(path),
+          m -> removeSubtree(detach(m, path), path));
+      return ret;
+    } finally {
+      unlock(held);
+    }
+  }
+
+  private static PersistentMap<String, StoredNode> removeSubtree(
+      PersistentMap<String, StoredNode> m, String path) {
+    StoredNode stored = m.get(path);
+    if (stored == null) {
+      return m;
+    }
+    for (String child : stored.getChildNames()) {
+      m = removeSubtree(m, path + GenericController.PATH_DELIMITER + child);
+    }
+    return m.minus(path);
+  }
+
+  @Override
+  public NodeValue getValue(String path, String key) {
+    if ("".equals(path) || "".equals(key)) {
+      throw new NullPointerException();
+    }
+    checkPath(path);
+    StoredNode stored = nodes.get().get(key(path));
+    if (stored == null) {
+      throw new NodeNotFoundException(path);
+    }
+    NodeValue value = stored.values.get(key);
+    return value == null ? null : value.deepClone();
+  }
+
+  /**
+   * <p>Renames or moves a node and its subtree.</p>
+   *
+   * <p>The stored records are immutable and moved without copying. The move is published
+   * atomically.</p>
+   *
+   * @param oldPath the old path of the node
+   * @param newPath the new fully qualified path of the node
+   * @throws StorageException if the new node already exists, the old node does not exist, the
+   *                          new parent node does not exist or the new path is within the
+   *                          subtree of the old one
+   */
+  @Override
+  public void rename(String oldPath, String newPath) throws StorageException {
+    checkPath(oldPath);
+    checkPath(newPath);
+    if (newPath.startsWith(oldPath + GenericController.PATH_DELIMITER)) {
+      throw new StorageException("Cannot move node \"" + oldPath + "\" into its own subtree");
+    }
+    String newParent = NodeImpl.getParentFromPath(newPath);
+    List<ReentrantLock> held = lock(oldPath, newPath);
+    try {
+      PersistentMap<String, StoredNode> current = nodes.get();
+      if (!current.containsKey(oldPath)) {
+        throw new NodeNotFoundException(oldPath);
+      }
+      if (current.containsKey(newPath)) {
+        throw new StorageException("Node \"" + newPath + "\" does already exist");
+      }
+      if (!"".equals(newParent) && !current.containsKey(newParent)) {
+        throw new StorageException("Parent node \"" + newParent + "\" does not exist");
+      }
+      commit(() -> {
+        // the log holds states only; the moved nodes are written at their new paths
+        MemoryJournal.Change change = new MemoryJournal.Change().remove(oldPath);
+        visitSubtree(current, oldPath, current.get(oldPath), (path, stored) -> change.put(
+            encode(newPath + path.substring(oldPath.length()), stored)));
+        return change;
+      }, m -> attach(detach(move(m, oldPath, newPath), oldPath), newPath));
+    } finally {
+      unlock(held);
+    }
+  }
+
+  private static PersistentMap<String, StoredNode> move(PersistentMap<String, StoredNode> m,
+                                                        String oldPath, String newPath) {
+    // the names of the children do not change; the record may therefore be reused
+    StoredNode stored = m.get(oldPath);
+    m = m.plus(newPath, stored);
+    for (String child : stored.getChildNames()) {
+      m = move(m, oldPath + GenericController.PATH_DELIMITER + child,
+          newPath + GenericController.PATH_DELIMITER + child);
+    }
+    return m.minus(oldPath);
+  }
+
+  /**
+   * <p>Search all nodes matching the provided search criteria.</p>
+   *
+   * <p>The criteria are evaluated by a {@link SearchMatcher}. The node path selects the node
+   * and its whole subtree.</p>
+   *
+   * <p>A search with a node path visits the selected subtree only.</p>
+   *
+   * @param criteria the matching criteria
+   * @return the fully materialized nodes matching the criteria
+   */
+  @Override
+  public List<Node> search(SearchCriteria criteria) throws StorageException {
+    SearchMatcher matcher = new SearchMatcher(criteria);
+    PersistentMap<String, StoredNode> current = nodes.get();
+    List<Node> ret = new ArrayList<>();
+    BiConsumer<String, StoredNode> collect = (path, stored) -> {
+      if (matcher.matches(path, stored.owner, stored.visibility, stored.values.values())) {
+        ret.add(materialize(path, stored));
+      }
+    };
+    String path = criteria.get(Field.PATH);
+    if (SearchMatcher.isWildcard(path) || GenericController.PATH_DELIMITER.equals(path)) {
+      // every node is within the subtree
+      current.forEach(collect);
+    } else if (path.endsWith(GenericController.PATH_DELIMITER)) {
+      // a trailing delimiter selects the descendants only
+      String root = path.substring(0, path.length() - 1);
+      StoredNode stored = current.get(root);
+      if (stored != null) {
+        visitDescendants(current, root, stored, collect);
+      }
+    } else {
+      StoredNode stored = current.get(path);
+      if (stored != null) {
+        collect.accept(path, stored);
+        visitDescendants(current, path, stored, collect);
+      }
+    }
+    return ret;
+  }
+
+  private static void visitDescendants(PersistentMap<String, StoredNode> m, String path,
+                                       StoredNode stored,
+                                       BiConsumer<String, StoredNode> visitor) {
+    stored.children.forEach((child, present) -> {
+      String childPath = path + GenericController.PATH_DELIMITER + child;
+      StoredNode childNode = m.get(childPath);
+      if (childNode != null) {
+        visitor.accept(childPath, childNode);
+        visitDescendants(m, childPath, childNode, visitor);
+      }
+    });
+  }
+
+  private static void visitSubtree(PersistentMap<String, StoredNode> m, String path,
+                                   StoredNode stored, BiConsumer<String, StoredNode> visitor) {
+    visitor.accept(path, stored);
+    visitDescendants(m, path, stored, visitor);
+  }
+
+  /**
+   * <p>Visits all nodes, parents before their children.</p>
+   *
+   * <p>The root node is not linked to the top level nodes (see {@link #attach}); it is
+   * visited first and followed by the subtrees of all top level nodes.</p>
+   */
+  private static void visitTree(PersistentMap<String, StoredNode> m,
+                                BiConsumer<String, StoredNode> visitor) {
+    StoredNode root = m.get(ROOT);
+    if (root != null) {
+      visitor.accept(ROOT, root);
+    }
+    m.forEach((path, stored) -> {
+      if (path.lastIndexOf(GenericController.PATH_DELIMITER) == 0) {
+        visitSubtree(m, path, stored, visitor);
+      }
+    });
+  }
+
+  /**
+   * <p>Writes all nodes to a snapshot and starts a new log.</p>
+   *
+   * <p>The snapshot is taken from the current version of the store; writers are not blocked
+   * while it is written. Nothing is done if the mapper is not durable or nothing changed
+   * since the last checkpoint.</p>
+   *
+   * @throws StorageException if the snapshot cannot be written
+   */
+  public void checkpoint() {
+    if (journal == null) {
+      return;
+    }
+    synchronized (checkpointLock) {
+      MemoryJournal.SnapshotWriter writer;
+      PersistentMap<String, StoredNode> current;
+      logLock.writeLock().lock();
+      try {
+        writer = journal.beginSnapshot();
+        // changes logged before this point are published and therefore in the snapshot
+        current = nodes.get();
+      } finally {
+        logLock.writeLock().unlock();
+      }
+      if (writer == null) {
+        return;
+      }
+      try {
+        visitTree(current, (path, stored) -> writer.add(encode(path, stored)));
+      } catch (RuntimeException e) {
+        journal.abortSnapshot(writer);
+        throw e;
+      }
+      journal.completeSnapshot(writer);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (journal == null) {
+      return;
+    }
+    if (background != null) {
+      background.shutdown();
+    }
+    synchronized (checkpointLock) {
+      journal.close();
+    }
+  }
+
+  @Override
+  public void flush() {
+    if (journal == null) {
+      return;
+    }
+    journal.sync();
+    RuntimeException e = backgroundError;
+    if (e != null) {
+      backgroundError = null;
+      throw new StorageException("Background journal task failed", e);
+    }
+  }
+
+  @Override
+  public void zap() {
+    synchronized (checkpointLock) {
+      logLock.writeLock().lock();
+      try {
+        nodes.set(PersistentMap.empty());
+        if (journal != null) {
+          journal.reset();
+        }
+      } finally {
+        logLock.writeLock().unlock();
+      }
+    }
+  }
+
+  private static byte[] encode(String path, StoredNode stored) {
+    return NodeCodec.encode(path, stored.owner, stored.visibility, stored.values.values());
+  }
+
+  /**
+   * <p>Creates a node from a stored record.</p>
+   *
+   * <p>Like in {@link H2SqlMapper} the children are returned as skeletons.</p>
+   */
+  private NodeImpl materialize(String path, StoredNode stored) {
+    NodeImpl node = new NodeImpl(path);
+    if (stored.owner != null) {
+      node.setOwner(stored.owner);
+    }
+    node.setVisibility(stored.visibility);
+    for (NodeValue value : stored.values.values()) {
+      node.addValue(value);
+    }
+    stored.children.forEach((child, present) -> node.addChild(
+        new NodeImpl(path + GenericController.PATH_DELIMITER + child, controller)));
+    return node;
+  }
+
+  /**
+   * <p>Copies values to be stored.</p>
+   *
+   * @param values the values to be stored
+   * @param stored the currently stored values or null
+   * @return an immutable map of the values; unchanged values keep their stored copy
+   */
+  private static Map<String, NodeValue> copyValues(Collection<NodeValue> values,
+                                                   Map<String, NodeValue> stored) {
+    Map<String, NodeValue> ret = new HashMap<>();
+    for (NodeValue value : values) {
+      NodeValue old = stored == null ? null : stored.get(value.getKey());
+      // like NodeValue.equals() the modification date alone does not make a value differ
+      ret.put(value.getKey(), value.equals(old) ? old : value.deepClone());
+    }
+    return Collections.unmodifiableMap(ret);
+  }
+
+  /**
+   * <p>Logs a change and publishes it.</p>
+   *
+   * <p>The change is appended to the log before it is published. If it cannot be logged it is
+   * not published and the exception is passed to the caller. A checkpoint cannot switch the
+   * log between the two steps.</p>
+   *
+   * @param record the log record of the change; only created if the mapper is durable
+   * @param change the change to be applied to the store
+   */
+  private void commit(Supplier<MemoryJournal.Change> record,
+                      UnaryOperator<PersistentMap<String, StoredNode>> change) {
+    if (journal == null) {
+      publish(change);
+      return;
+    }
+    logLock.readLock().lock();
+    try {
+      journal.append(record.get());
+      publish(change);
+    } finally {
+      logLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * <p>Publishes a new version of the store.</p>
+   *
+   * <p>The change is applied to the current version. It is applied again if a writer of
+   * another subtree published in the meantime; it must therefore not have side effects.</p>
+   *
+   * @param change the change to be applied
+   */
+  private void publish(UnaryOperator<PersistentMap<String, StoredNode>> change) {
+    nodes.updateAndGet(change);
+  }
+
+  /**
+   * <p>Gets the key of a node in the store.</p>
+   *
+   * <p>The root node is created as "" but its path is ":"; both are stored as "".</p>
+   */
+  private static String key(String path) {
+    return GenericController.PATH_DELIMITER.equals(path) ? ROOT : path;
+  }
+
+  /* adds a node to the child names of its parent */
+  private static PersistentMap<String, StoredNode> attach(PersistentMap<String, StoredNode> m,
+                                                          String path) {
+    String parent = NodeImpl.getParentFromPath(path);
+    StoredNode parentNode = "".equals(parent) ? null : m.get(parent);
+    if (parentNode == null) {
+      return m;
+    }
+    return m.plus(parent, parentNode.withChildren(
+        parentNode.children.plus(NodeImpl.getNameFromPath(path), Boolean.TRUE)));
+  }
+
+  /* removes a node from the child names of its parent */
+  private static PersistentMap<String, StoredNode> detach(PersistentMap<String, StoredNode> m,
+                                                          String path) {
+    String parent = NodeImpl.getParentFromPath(path);
+    StoredNode parentNode = "".equals(parent) ? null : m.get(parent);
+    if (parentNode == null) {
+      return m;
+    }
+    return m.plus(parent, parentNode.withChildren(
+        parentNode.children.minus(NodeImpl.getNameFromPath(path))));
+  }
+
+  /**
+   * <p>Locks the top level subtrees containing the given paths.</p>
+   *
+   * <p>The locks are acquired in a fixed order so that writers locking more than one subtree
+   * do not deadlock.</p>
+   *
+   * @param paths the paths to be modified
+   * @return the locks held
+   */
+  private List<ReentrantLock> lock(String... paths) {
+    Set<String> keys = new TreeSet<>();
+    for (String path : paths) {
+      int i = path.indexOf(GenericController.PATH_DELIMITER, 1);
+      keys.add(i < 0 ? path : path.substring(0, i));
+    }
+    List<ReentrantLock> held = new ArrayList<>();
+    for (String key : keys) {
+      ReentrantLock lock = locks.computeIfAbsent(key, k -> new ReentrantLock());
+      lock.lock();
+      held.add(lock);
+    }
+    return held;
+  }
+
+  private static void unlock(List<ReentrantLock> held) {
+    for (int i = held.size() - 1; i >= 0; i--) {
+      held.get(i).unlock();
+    }
+  }
+}
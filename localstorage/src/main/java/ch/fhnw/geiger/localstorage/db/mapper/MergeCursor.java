@@ -0,0 +1,89 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import java.util.List;
+
+/**
+ * <p>A cursor merging several sorted cursors.</p>
+ *
+ * <p>If more than one source holds a path, the value of the first source in the list wins;
+ * sources must therefore be ordered from newest to oldest. Removed nodes are skipped unless
+ * requested otherwise.</p>
+ */
+final class MergeCursor implements SortedCursor {
+
+  private final List<SortedCursor> sources;
+  private final boolean includeRemoved;
+
+  private String key = null;
+  private byte[] value = null;
+
+  /**
+   * <p>Creates a merging cursor positioned before the first entry.</p>
+   *
+   * <p>The cursor must be positioned by {@link #seek(String)} before use.</p>
+   *
+   * @param sources        the sources from newest to oldest
+   * @param includeRemoved true if entries of removed nodes are to be returned
+   */
+  MergeCursor(List<SortedCursor> sources, boolean includeRemoved) {
+    this.sources = sources;
+    this.includeRemoved = includeRemoved;
+  }
+
+  @Override
+  public boolean isValid() {
+    return key != null;
+  }
+
+  @Override
+  public String key() {
+    return key;
+  }
+
+  @Override
+  public byte[] value() {
+    return value;
+  }
+
+  @Override
+  public void next() {
+    advance();
+  }
+
+  @Override
+  public void seek(String target) {
+    for (SortedCursor source : sources) {
+      source.seek(target);
+    }
+    advance();
+  }
+
+  /* takes the smallest entry off the sources */
+  private void advance() {
+    while (true) {
+      String min = null;
+      byte[] newest = null;
+      for (SortedCursor source : sources) {
+        if (source.isValid() && (min == null || source.key().compareTo(min) < 0)) {
+          min = source.key();
+          newest = source.value();
+        }
+      }
+      if (min == null) {
+        key = null;
+        value = null;
+        return;
+      }
+      for (SortedCursor source : sources) {
+        if (source.isValid() && source.key().equals(min)) {
+          source.next();
+        }
+      }
+      if (includeRemoved || newest.length > 0) {
+        key = min;
+        value = newest;
+        return;
+      }
+    }
+  }
+}
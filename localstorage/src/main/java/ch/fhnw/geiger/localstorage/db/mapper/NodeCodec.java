@@ -0,0 +1,217 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.StorageController;
+import ch.fhnw.geiger.localstorage.StorageException;
+import ch.fhnw.geiger.localstorage.Visibility;
+import ch.fhnw.geiger.localstorage.db.GenericController;
+import ch.fhnw.geiger.localstorage.db.data.Node;
+import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import ch.fhnw.geiger.localstorage.db.data.NodeValueImpl;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <p>The binary encoding of nodes used by the mappers storing nodes as byte arrays.</p>
+ *
+ * <p>The encoding starts with the path as written by {@link DataOutput#writeUTF(String)},
+ * followed by owner, visibility and the values. Each value is written with key, value, type,
+ * modification date, description and all translations. Strings which may be null are
+ * preceded by a flag. Children are not part of the encoding.</p>
+ */
+final class NodeCodec {
+
+  /**
+   * <p>A decoded node without its children.</p>
+   */
+  static final class NodeRecord {
+
+    final String path;
+    final String owner;
+    final Visibility visibility;
+    final Map<String, NodeValue> values;
+
+    private NodeRecord(String path, String owner, Visibility visibility,
+                       Map<String, NodeValue> values) {
+      this.path = path;
+      this.owner = owner;
+      this.visibility = visibility;
+      this.values = values;
+    }
+  }
+
+  private NodeCodec() {
+  }
+
+  /**
+   * <p>Encodes a node.</p>
+   *
+   * @param path the path to be written
+   * @param node the node to be encoded
+   * @return the encoded node
+   */
+  static byte[] encode(String path, Node node) {
+    return encode(path, node.getOwner(), node.getVisibility(), node.getValues().values());
+  }
+
+  /**
+   * <p>Encodes the fields of a node.</p>
+   *
+   * @param path       the path to be written
+   * @param owner      the owner of the node or null
+   * @param visibility the visibility of the node
+   * @param values     the values of the node
+   * @return the encoded node
+   */
+  static byte[] encode(String path, String owner, Visibility visibility,
+                       Collection<NodeValue> values) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(path);
+      writeNullable(out, owner);
+      out.writeByte(visibility.ordinal());
+      out.writeInt(values.size());
+      for (NodeValue value : values) {
+        out.writeUTF(value.getKey());
+        out.writeUTF(value.getValue());
+        writeNullable(out, value.getType());
+        out.writeLong(value.getLastModified());
+        writeNullable(out, value.getDescription());
+        writeTranslations(out, value.getAllValueTranslations());
+        writeTranslations(out, value.getAllDescriptionTranslations());
+      }
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new StorageException("Cannot encode node \"" + path + "\"", e);
+    }
+  }
+
+  /**
+   * <p>Decodes a node.</p>
+   *
+   * @param payload the encoded node
+   * @return the decoded node
+   */
+  static NodeRecord decode(byte[] payload) {
+    try {
+      return decode(new DataInputStream(new ByteArrayInputStream(payload)));
+    } catch (IOException e) {
+      throw new StorageException("Cannot decode node record", e);
+    }
+  }
+
+  /**
+   * <p>Decodes a node from an input.</p>
+   *
+   * @param in the input positioned at the start of the encoded node
+   * @return the decoded node
+   * @throws IOException if the input cannot be read
+   */
+  static NodeRecord decode(DataInput in) throws IOException {
+    String path = in.readUTF();
+    String owner = readNullable(in);
+    Visibility visibility = Visibility.values()[in.readByte()];
+    int count = in.readInt();
+    Map<String, NodeValue> values = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      String key = in.readUTF();
+      // the default locale is set by the constructor before any other translation
+      NodeValue value = new NodeValueImpl(key, in.readUTF(), readNullable(in),
+          null, in.readLong());
+      String description = readNullable(in);
+      if (description != null) {
+        value.setDescription(description);
+      }
+      int translations = in.readInt();
+      for (int j = 0; j < translations; j++) {
+        value.setValue(in.readUTF(), Locale.forLanguageTag(in.readUTF()));
+      }
+      translations = in.readInt();
+      for (int j = 0; j < translations; j++) {
+        value.setDescription(in.readUTF(), Locale.forLanguageTag(in.readUTF()));
+      }
+      values.put(key, value);
+    }
+    return new NodeRecord(path, owner, visibility, values);
+  }
+
+  /**
+   * <p>Replaces the path at the start of an encoded node.</p>
+   *
+   * @param payload the encoded node
+   * @param path    the new path
+   * @return the encoded node with the new path
+   */
+  static byte[] withPath(byte[] payload, String path) {
+    byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+    int oldLength = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+    byte[] ret = new byte[payload.length - oldLength + bytes.length];
+    ret[0] = (byte) (bytes.length >>> 8);
+    ret[1] = (byte) bytes.length;
+    System.arraycopy(bytes, 0, ret, 2, bytes.length);
+    System.arraycopy(payload, 2 + oldLength, ret, 2 + bytes.length,
+        payload.length - 2 - oldLength);
+    return ret;
+  }
+
+  /**
+   * <p>Creates a node from a decoded record.</p>
+   *
+   * <p>Like in {@link H2SqlMapper} the children are returned as skeletons.</p>
+   *
+   * @param record     the decoded node
+   * @param children   the names of the children
+   * @param controller the controller to be used by the skeletons
+   * @return the node
+   */
+  static NodeImpl materialize(NodeRecord record, List<String> children,
+                              StorageController controller) {
+    NodeImpl node = new NodeImpl(record.path);
+    if (record.owner != null) {
+      node.setOwner(record.owner);
+    }
+    node.setVisibility(record.visibility);
+    for (NodeValue value : record.values.values()) {
+      node.addValue(value);
+    }
+    for (String child : children) {
+      node.addChild(new NodeImpl(record.path + GenericController.PATH_DELIMITER + child,
+          controller));
+    }
+    return node;
+  }
+
+  private static void writeTranslations(DataOutput out, Map<Locale, String> translations)
+      throws IOException {
+    out.writeInt(translations.size());
+    for (Map.Entry<Locale, String> e : translations.entrySet()) {
+      // the text comes first as it is read first
+      out.writeUTF(e.getValue());
+      out.writeUTF(e.getKey().toLanguageTag());
+    }
+  }
+
+  private static void writeNullable(DataOutput out, String s) throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static String readNullable(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
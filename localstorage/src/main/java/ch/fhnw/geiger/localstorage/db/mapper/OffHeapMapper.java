@@ -0,0 +1,378 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.NodeNotFoundException;
+import ch.fhnw.geiger.localstorage.SearchCriteria;
+import ch.fhnw.geiger.localstorage.StorageController;
+import ch.fhnw.geiger.localstorage.StorageException;
+import ch.fhnw.geiger.localstorage.db.GenericController;
+import ch.fhnw.geiger.localstorage.db.data.Field;
+import ch.fhnw.geiger.localstorage.db.data.Node;
+import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import ch.fhnw.geiger.localstorage.db.mapper.NodeCodec.NodeRecord;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>A thread safe mapper keeping all nodes in off-heap memory.</p>
+ *
+ * <p>Nodes and their values are stored in a compact binary encoding in direct byte buffers
+ * and found through an off-heap hash index by path (see {@link OffHeapStore}). Node objects are
+ * created only when a node is returned; the heap therefore holds no objects per stored node,
+ * and large trees neither fill the heap nor prolong garbage collections. Apart from
+ * persistence the mapper behaves like {@link H2SqlMapper}.</p>
+ *
+ * <p>Like in {@link MemoryMapper} the nodes form a path trie: the index holds the names of
+ * the children of every node, so subtree operations cost time proportional to the
+ * subtree. Reads share a lock; writes are exclusive.</p>
+ */
+public class OffHeapMapper extends AbstractMapper {
+
+  private final OffHeapStore store = new OffHeapStore();
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private volatile StorageController controller = null;
+
+  @Override
+  public void setController(StorageController controller) {
+    this.controller = controller;
+  }
+
+  /**
+   * <p>Gets the amount of off-heap memory reserved by the mapper.</p>
+   *
+   * @return the number of bytes
+   */
+  public long getReservedBytes() {
+    lock.readLock().lock();
+    try {
+      return store.getReservedBytes();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Node get(String path) throws StorageException {
+    return find(path).orElseThrow(() -> new NodeNotFoundException(path));
+  }
+
+  @Override
+  public Optional<Node> find(String path) throws StorageException {
+    checkPath(path);
+    getSanity(path);
+    lock.readLock().lock();
+    try {
+      int slot = store.find(path);
+      return slot < 0 ? Optional.empty() : Optional.of(materialize(slot));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean exists(String path) {
+    checkPath(path);
+    getSanity(path);
+    lock.readLock().lock();
+    try {
+      return store.find(path) >= 0;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean existsValue(String path, String key) {
+    checkPath(path);
+    getSanity(path);
+    lock.readLock().lock();
+    try {
+      int slot = store.find(path);
+      return slot >= 0 && read(slot).values.containsKey(key);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void add(Node node) throws StorageException {
+    checkPath(node);
+    String path = node.getPath();
+    String parent = node.getParentPath();
+    byte[] payload = NodeCodec.encode(path, node);
+    lock.writeLock().lock();
+    try {
+      if (store.find(path) >= 0) {
+        throw new StorageException("Node already exists");
+      }
+      int parentSlot = parent == null || "".equals(parent) ? -1 : store.find(parent);
+      if (parent != null && !"".equals(parent) && parentSlot < 0) {
+        throw new StorageException("Parent node \"" + parent + "\" does not exist");
+      }
+      // like H2SqlMapper children are added by adding them explicitly
+      if (parentSlot >= 0) {
+        store.setChildren(parentSlot,
+            store.addChild(store.getChildren(parentSlot), NodeImpl.getNameFromPath(path)));
+      }
+      store.insert(path, store.writeRecord(payload), 0);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void update(Node node) throws StorageException {
+    checkPath(node);
+    String path = node.getPath();
+    byte[] payload = NodeCodec.encode(path, node);
+    lock.writeLock().lock();
+    try {
+      int slot = store.find(path);
+      if (slot < 0) {
+        throw new NodeNotFoundException(path);
+      }
+      store.free(store.getRecord(slot));
+      store.setRecord(slot, store.writeRecord(payload));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Node remove(String path) throws StorageException {
+    checkPath(path);
+    lock.writeLock().lock();
+    try {
+      int slot = store.find(path);
+      if (slot < 0) {
+        throw new NodeNotFoundException(path);
+      }
+      if (store.getChildren(slot) != 0) {
+        throw new StorageException("Node does have childs... cannot remove "
+            + NodeImpl.getNameFromPath(path));
+      }
+      final NodeImpl ret = materialize(slot);
+      store.free(store.getRecord(slot));
+      store.delete(slot);
+      detach(path);
+      return ret;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Node remove(String path, boolean recursive) throws StorageException {
+    if (!recursive) {
+      return remove(path);
+    }
+    checkPath(path);
+    lock.writeLock().lock();
+    try {
+      int slot = store.find(path);
+      if (slot < 0) {
+        throw new NodeNotFoundException(path);
+      }
+      NodeImpl ret = materialize(slot);
+      // slots move on deletion; the subtree is therefore collected first
+      for (String p : collectSubtree(path)) {
+        int s = store.find(p);
+        store.free(store.getRecord(s));
+        store.free(store.getChildren(s));
+        store.delete(s);
+      }
+      detach(path);
+      return ret;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public NodeValue getValue(String path, String key) {
+    if ("".equals(path) || "".equals(key)) {
+      throw new NullPointerException();
+    }
+    checkPath(path);
+    lock.readLock().lock();
+    try {
+      int slot = store.find(path);
+      if (slot < 0) {
+        throw new NodeNotFoundException(path);
+      }
+      return read(slot).values.get(key);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * <p>Renames or moves a node and its subtree.</p>
+   *
+   * <p>The records of the subtree are rewritten with their new paths. The child lists are
+   * moved without copying.</p>
+   *
+   * @param oldPath the old path of the node
+   * @param newPath the new fully qualified path of the node
+   * @throws StorageException if the new node already exists, the old node does not exist, the
+   *                          new parent node does not exist or the new path is within the
+   *                          subtree of the old one
+   */
+  @Override
+  public void rename(String oldPath, String newPath) throws StorageException {
+    checkPath(oldPath);
+    checkPath(newPath);
+    if (newPath.startsWith(oldPath + GenericController.PATH_DELIMITER)) {
+      throw new StorageException("Cannot move node \"" + oldPath + "\" into its own subtree");
+    }
+    String newParent = NodeImpl.getParentFromPath(newPath);
+    lock.writeLock().lock();
+    try {
+      if (store.find(oldPath) < 0) {
+        throw new NodeNotFoundException(oldPath);
+      }
+      if (store.find(newPath) >= 0) {
+        throw new StorageException("Node \"" + newPath + "\" does already exist");
+      }
+      int parentSlot = "".equals(newParent) ? -1 : store.find(newParent);
+      if (!"".equals(newParent) && parentSlot < 0) {
+        throw new StorageException("Parent node \"" + newParent + "\" does not exist");
+      }
+      for (String p : collectSubtree(oldPath)) {
+        String q = newPath + p.substring(oldPath.length());
+        int slot = store.find(p);
+        long record = store.getRecord(slot);
+        long children = store.getChildren(slot);
+        byte[] payload = NodeCodec.withPath(store.readRecord(record), q);
+        store.free(record);
+        store.delete(slot);
+        store.insert(q, store.writeRecord(payload), children);
+      }
+      detach(oldPath);
+      // the slot of the parent may have moved
+      parentSlot = "".equals(newParent) ? -1 : store.find(newParent);
+      if (parentSlot >= 0) {
+        store.setChildren(parentSlot, store.addChild(store.getChildren(parentSlot),
+            NodeImpl.getNameFromPath(newPath)));
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * <p>Search all nodes matching the provided search criteria.</p>
+   *
+   * <p>The criteria are evaluated by a {@link SearchMatcher}. The node path selects the node
+   * and its whole subtree; a search with a node path visits the selected subtree only.</p>
+   *
+   * @param criteria the matching criteria
+   * @return the fully materialized nodes matching the criteria
+   */
+  @Override
+  public List<Node> search(SearchCriteria criteria) throws StorageException {
+    SearchMatcher matcher = new SearchMatcher(criteria);
+    List<Node> ret = new ArrayList<>();
+    BiConsumer<Integer, NodeRecord> collect = (slot, record) -> {
+      if (matcher.matches(record.path, record.owner, record.visibility,
+          record.values.values())) {
+        ret.add(materialize(slot, record));
+      }
+    };
+    String path = criteria.get(Field.PATH);
+    lock.readLock().lock();
+    try {
+      if (SearchMatcher.isWildcard(path) || GenericController.PATH_DELIMITER.equals(path)) {
+        // every node is within the subtree
+        store.forEachSlot(slot -> collect.accept(slot, read(slot)));
+      } else if (path.endsWith(GenericController.PATH_DELIMITER)) {
+        // a trailing delimiter selects the descendants only
+        String root = path.substring(0, path.length() - 1);
+        int slot = store.find(root);
+        if (slot >= 0) {
+          visitDescendants(root, slot, collect);
+        }
+      } else {
+        int slot = store.find(path);
+        if (slot >= 0) {
+          collect.accept(slot, read(slot));
+          visitDescendants(path, slot, collect);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return ret;
+  }
+
+  private void visitDescendants(String path, int slot, BiConsumer<Integer, NodeRecord> visitor) {
+    for (String child : store.getChildNames(store.getChildren(slot))) {
+      String childPath = path + GenericController.PATH_DELIMITER + child;
+      int childSlot = store.find(childPath);
+      if (childSlot >= 0) {
+        visitor.accept(childSlot, read(childSlot));
+        visitDescendants(childPath, childSlot, visitor);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    zap();
+  }
+
+  @Override
+  public void flush() {
+    // nothing to do as there is no persistence
+  }
+
+  @Override
+  public void zap() {
+    lock.writeLock().lock();
+    try {
+      store.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /* lists the paths of a node and its descendants; the caller must hold a lock */
+  private List<String> collectSubtree(String path) {
+    List<String> ret = new ArrayList<>();
+    ret.add(path);
+    for (int i = 0; i < ret.size(); i++) {
+      String p = ret.get(i);
+      for (String child : store.getChildNames(store.getChildren(store.find(p)))) {
+        ret.add(p + GenericController.PATH_DELIMITER + child);
+      }
+    }
+    return ret;
+  }
+
+  /* removes a node from the child list of its parent; the caller must hold the write lock */
+  private void detach(String path) {
+    String parent = NodeImpl.getParentFromPath(path);
+    int slot = "".equals(parent) ? -1 : store.find(parent);
+    if (slot >= 0) {
+      store.setChildren(slot,
+          store.removeChild(store.getChildren(slot), NodeImpl.getNameFromPath(path)));
+    }
+  }
+
+  private NodeRecord read(int slot) {
+    return NodeCodec.decode(store.readRecord(store.getRecord(slot)));
+  }
+
+  private NodeImpl materialize(int slot) {
+    return materialize(slot, read(slot));
+  }
+
+  private NodeImpl materialize(int slot, NodeRecord record) {
+    return NodeCodec.materialize(record, store.getChildNames(store.getChildren(slot)),
+        controller);
+  }
+}
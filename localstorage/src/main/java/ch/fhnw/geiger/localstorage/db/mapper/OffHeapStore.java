@@ -0,0 +1,421 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.StorageException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * <p>The off-heap memory of an {@link OffHeapMapper}.</p>
+ *
+ * <p>Blocks are allocated from direct byte buffers (segments) of 16 MiB. Block sizes are
+ * powers of two. Freed blocks are kept in one free list per size which is linked through the
+ * first bytes of the blocks, so tracking them costs no heap memory. An address holds the
+ * number of the segment (starting with one) in its upper and the offset within the segment in
+ * its lower 32 bits; the address zero denotes no block.</p>
+ *
+ * <p>Records are blocks holding a length prefixed byte array which starts with the path of
+ * the node as written by {@link java.io.DataOutput#writeUTF(String)}. Child lists are blocks
+ * holding the names of the children of a node.</p>
+ *
+ * <p>Records are found through a hash index by path. The index is an open addressing hash
+ * table with linear probing in a direct byte buffer. Each slot holds the address of the
+ * record, the address of the child list and the hash of the path.</p>
+ *
+ * <p>The store is not thread safe.</p>
+ */
+final class OffHeapStore {
+
+  private static final int SEGMENT_BITS = 24;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+  private static final int MIN_BLOCK_BITS = 4;
+
+  /* block header: the size class of the block */
+  private static final int BLOCK_HEADER = 1;
+
+  /* child list header: number of children and number of bytes used by the entries */
+  private static final int LIST_HEADER = 8;
+
+  /* index slot: record address, child list address and hash */
+  private static final int SLOT_SIZE = 20;
+  private static final int SLOT_CHILDREN = 8;
+  private static final int SLOT_HASH = 16;
+  private static final int INITIAL_SLOTS = 1024;
+
+  private final List<ByteBuffer> segments = new ArrayList<>();
+  /* the first unused byte of the last segment */
+  private int top = SEGMENT_SIZE;
+  /* the heads of the free lists by size class */
+  private final long[] freeLists = new long[SEGMENT_BITS + 1];
+
+  private ByteBuffer index;
+  private int mask;
+  private int count;
+
+  OffHeapStore() {
+    clear();
+  }
+
+  /**
+   * <p>Releases all memory and empties the store.</p>
+   *
+   * <p>The memory of direct buffers is returned to the operating system once the buffers are
+   * garbage collected.</p>
+   */
+  void clear() {
+    segments.clear();
+    top = SEGMENT_SIZE;
+    Arrays.fill(freeLists, 0L);
+    index = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_SIZE);
+    mask = INITIAL_SLOTS - 1;
+    count = 0;
+  }
+
+  /**
+   * <p>Gets the number of records in the index.</p>
+   *
+   * @return the number of records
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * <p>Gets the amount of off-heap memory reserved by the store.</p>
+   *
+   * @return the number of bytes
+   */
+  long getReservedBytes() {
+    return (long) segments.size() * SEGMENT_SIZE + index.capacity();
+  }
+
+  private ByteBuffer segment(long address) {
+    return segments.get((int) (address >>> 32) - 1);
+  }
+
+  private static int offset(long address) {
+    return (int) address;
+  }
+
+  /**
+   * <p>Allocates a block.</p>
+   *
+   * @param size the number of bytes required
+   * @return the address of the block
+   */
+  private long allocate(int size) {
+    int bits = MIN_BLOCK_BITS;
+    while ((1 << bits) < size + BLOCK_HEADER) {
+      bits++;
+    }
+    if (bits > SEGMENT_BITS) {
+      throw new StorageException("Cannot store " + size + " bytes in a single block");
+    }
+    long block = freeLists[bits];
+    if (block != 0) {
+      freeLists[bits] = segment(block).getLong(offset(block) + BLOCK_HEADER);
+    } else {
+      if (top + (1 << bits) > SEGMENT_SIZE) {
+        segments.add(ByteBuffer.allocateDirect(SEGMENT_SIZE));
+        top = 0;
+      }
+      block = ((long) segments.size() << 32) | top;
+      top += 1 << bits;
+    }
+    segment(block).put(offset(block), (byte) bits);
+    return block + BLOCK_HEADER;
+  }
+
+  /**
+   * <p>Frees a record or a child list.</p>
+   *
+   * @param address the address of the record or list; zero is ignored
+   */
+  void free(long address) {
+    if (address == 0) {
+      return;
+    }
+    long block = address - BLOCK_HEADER;
+    ByteBuffer segment = segment(block);
+    int bits = segment.get(offset(block));
+    segment.putLong(offset(address), freeLists[bits]);
+    freeLists[bits] = block;
+  }
+
+  /* the number of usable bytes of a block */
+  private int capacity(long address) {
+    return (1 << segment(address).get(offset(address) - BLOCK_HEADER)) - BLOCK_HEADER;
+  }
+
+  private byte[] read(long address, int offset, int length) {
+    ByteBuffer buffer = segment(address).duplicate();
+    buffer.position(offset(address) + offset);
+    byte[] ret = new byte[length];
+    buffer.get(ret);
+    return ret;
+  }
+
+  private void write(long address, int offset, byte[] data, int from, int length) {
+    ByteBuffer buffer = segment(address).duplicate();
+    buffer.position(offset(address) + offset);
+    buffer.put(data, from, length);
+  }
+
+  /**
+   * <p>Stores a record.</p>
+   *
+   * @param payload the encoded node starting with its path
+   * @return the address of the record
+   */
+  long writeRecord(byte[] payload) {
+    long address = allocate(payload.length + 4);
+    segment(address).putInt(offset(address), payload.length);
+    write(address, 4, payload, 0, payload.length);
+    return address;
+  }
+
+  /**
+   * <p>Reads a record.</p>
+   *
+   * @param address the address of the record
+   * @return the encoded node
+   */
+  byte[] readRecord(long address) {
+    return read(address, 4, segment(address).getInt(offset(address)));
+  }
+
+  /* compares the path of a record with the given bytes without copying the record */
+  private boolean hasPath(long record, byte[] path) {
+    ByteBuffer segment = segment(record);
+    int pos = offset(record) + 4;
+    if (segment.getShort(pos) != path.length) {
+      return false;
+    }
+    pos += 2;
+    for (int i = 0; i < path.length; i++) {
+      if (segment.get(pos + i) != path[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * <p>Adds a name to a child list.</p>
+   *
+   * @param list the address of the list or zero for an empty list
+   * @param name the name to be added
+   * @return the address of the list which changes if the list had to grow
+   */
+  long addChild(long list, String name) {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    int entry = 2 + bytes.length;
+    int used = list == 0 ? 0 : segment(list).getInt(offset(list) + 4);
+    if (list == 0 || LIST_HEADER + used + entry > capacity(list)) {
+      long grown = allocate(Math.max(2 * (LIST_HEADER + used), LIST_HEADER + used + entry));
+      ByteBuffer segment = segment(grown);
+      if (list == 0) {
+        segment.putInt(offset(grown), 0);
+        segment.putInt(offset(grown) + 4, 0);
+      } else {
+        write(grown, 0, read(list, 0, LIST_HEADER + used), 0, LIST_HEADER + used);
+        free(list);
+      }
+      list = grown;
+    }
+    ByteBuffer segment = segment(list);
+    int pos = offset(list);
+    segment.putShort(pos + LIST_HEADER + used, (short) bytes.length);
+    write(list, LIST_HEADER + used + 2, bytes, 0, bytes.length);
+    segment.putInt(pos, segment.getInt(pos) + 1);
+    segment.putInt(pos + 4, used + entry);
+    return list;
+  }
+
+  /**
+   * <p>Removes a name from a child list.</p>
+   *
+   * @param list the address of the list or zero for an empty list
+   * @param name the name to be removed
+   * @return the address of the list or zero if the list became empty
+   */
+  long removeChild(long list, String name) {
+    if (list == 0) {
+      return 0;
+    }
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer segment = segment(list);
+    int base = offset(list);
+    int used = segment.getInt(base + 4);
+    int pos = LIST_HEADER;
+    while (pos < LIST_HEADER + used) {
+      int length = segment.getShort(base + pos);
+      if (length == bytes.length
+          && Arrays.equals(read(list, pos + 2, length), bytes)) {
+        int children = segment.getInt(base) - 1;
+        if (children == 0) {
+          free(list);
+          return 0;
+        }
+        int next = pos + 2 + length;
+        byte[] tail = read(list, next, LIST_HEADER + used - next);
+        write(list, pos, tail, 0, tail.length);
+        segment.putInt(base, children);
+        segment.putInt(base + 4, used - 2 - length);
+        return list;
+      }
+      pos += 2 + length;
+    }
+    return list;
+  }
+
+  /**
+   * <p>Reads the names of a child list.</p>
+   *
+   * @param list the address of the list or zero for an empty list
+   * @return the names in the order they were added
+   */
+  List<String> getChildNames(long list) {
+    if (list == 0) {
+      return new ArrayList<>();
+    }
+    ByteBuffer segment = segment(list);
+    int base = offset(list);
+    List<String> ret = new ArrayList<>(segment.getInt(base));
+    byte[] entries = read(list, LIST_HEADER, segment.getInt(base + 4));
+    int pos = 0;
+    while (pos < entries.length) {
+      int length = ((entries[pos] & 0xff) << 8) | (entries[pos + 1] & 0xff);
+      ret.add(new String(entries, pos + 2, length, StandardCharsets.UTF_8));
+      pos += 2 + length;
+    }
+    return ret;
+  }
+
+  private static int hash(byte[] path) {
+    int h = 0;
+    for (byte b : path) {
+      h = 31 * h + b;
+    }
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * <p>Looks up the index slot of a path.</p>
+   *
+   * @param path the path to look up
+   * @return the slot or -1 if the path is not in the index
+   */
+  int find(String path) {
+    byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(bytes);
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      long record = getRecord(slot);
+      if (record == 0) {
+        return -1;
+      }
+      if (index.getInt(slot * SLOT_SIZE + SLOT_HASH) == hash && hasPath(record, bytes)) {
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * <p>Adds a path to the index.</p>
+   *
+   * <p>The path must not be in the index. The slots of other paths may change.</p>
+   *
+   * @param path     the path of the record
+   * @param record   the address of the record
+   * @param children the address of the child list or zero
+   */
+  void insert(String path, long record, long children) {
+    if (count + 1 > (mask + 1) / 4 * 3) {
+      resize();
+    }
+    put(hash(path.getBytes(StandardCharsets.UTF_8)), record, children);
+    count++;
+  }
+
+  private void put(int hash, long record, long children) {
+    int slot = hash & mask;
+    while (getRecord(slot) != 0) {
+      slot = (slot + 1) & mask;
+    }
+    setRecord(slot, record);
+    setChildren(slot, children);
+    index.putInt(slot * SLOT_SIZE + SLOT_HASH, hash);
+  }
+
+  private void resize() {
+    ByteBuffer old = index;
+    int slots = mask + 1;
+    index = ByteBuffer.allocateDirect(2 * slots * SLOT_SIZE);
+    mask = 2 * slots - 1;
+    for (int slot = 0; slot < slots; slot++) {
+      long record = old.getLong(slot * SLOT_SIZE);
+      if (record != 0) {
+        put(old.getInt(slot * SLOT_SIZE + SLOT_HASH), record,
+            old.getLong(slot * SLOT_SIZE + SLOT_CHILDREN));
+      }
+    }
+  }
+
+  /**
+   * <p>Removes a slot from the index.</p>
+   *
+   * <p>Record and child list are not freed. The slots of other paths may change.</p>
+   *
+   * @param slot the slot to be removed
+   */
+  void delete(int slot) {
+    // shift following entries back instead of leaving a tombstone
+    int hole = slot;
+    for (int i = (slot + 1) & mask; getRecord(i) != 0; i = (i + 1) & mask) {
+      int home = index.getInt(i * SLOT_SIZE + SLOT_HASH) & mask;
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        setRecord(hole, getRecord(i));
+        setChildren(hole, getChildren(i));
+        index.putInt(hole * SLOT_SIZE + SLOT_HASH, index.getInt(i * SLOT_SIZE + SLOT_HASH));
+        hole = i;
+      }
+    }
+    setRecord(hole, 0);
+    setChildren(hole, 0);
+    count--;
+  }
+
+  long getRecord(int slot) {
+    return index.getLong(slot * SLOT_SIZE);
+  }
+
+  void setRecord(int slot, long record) {
+    index.putLong(slot * SLOT_SIZE, record);
+  }
+
+  long getChildren(int slot) {
+    return index.getLong(slot * SLOT_SIZE + SLOT_CHILDREN);
+  }
+
+  void setChildren(int slot, long children) {
+    index.putLong(slot * SLOT_SIZE + SLOT_CHILDREN, children);
+  }
+
+  /**
+   * <p>Passes all occupied slots to the given action.</p>
+   *
+   * <p>The action must not modify the index.</p>
+   *
+   * @param action the action to be executed for each slot
+   */
+  void forEachSlot(IntConsumer action) {
+    for (int slot = 0; slot <= mask; slot++) {
+      if (getRecord(slot) != 0) {
+        action.accept(slot);
+      }
+    }
+  }
+}
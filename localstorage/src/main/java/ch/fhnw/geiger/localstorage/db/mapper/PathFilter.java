@@ -0,0 +1,146 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A filter over the paths of all existing nodes of a mapper.</p>
+ *
+ * <p>The filter answers most lookups of missing nodes without touching the storage. It is a
+ * bloom filter (see {@link BloomFilter}) and therefore never reports an existing node as
+ * missing. Paths must be added before the node becomes visible to readers. As a bloom filter
+ * cannot forget paths, removed nodes remain in the filter until it is rebuilt; they are
+ * reported as possibly existing and looked up in the storage.</p>
+ *
+ * <p>The filter is sized for twice the number of paths it was built with. Once more paths
+ * have been added than it was built with, {@link #isFull()} returns true and the mapper
+ * should rebuild it from the stored paths.</p>
+ *
+ * <p>Lookups take no lock: the bits are published through a volatile reference and set
+ * atomically, so lookups may run concurrently with all other methods. Adding paths and
+ * rebuilding lock the filter and must be serialized by the mapper.</p>
+ */
+final class PathFilter {
+
+  private static final int BITS_PER_PATH = 10;
+  private static final int HASHES = BloomFilter.hashCount(BITS_PER_PATH);
+  private static final int MIN_CAPACITY = 1024;
+
+  /**
+   * <p>The bits of a filter; invisible to lookups until installed.</p>
+   */
+  static final class Rebuild {
+
+    private final AtomicLongArray bits;
+    private final long size;
+    private final int capacity;
+
+    private Rebuild(int paths) {
+      capacity = Math.max(MIN_CAPACITY, 2 * paths);
+      long words = ((long) capacity * BITS_PER_PATH + 63) / 64;
+      bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE / 64, words));
+      size = (long) bits.length() * 64;
+    }
+
+    void add(String path) {
+      long hash = BloomFilter.hash(path);
+      for (int i = 0; i < HASHES; i++) {
+        long bit = BloomFilter.bit(hash, i, size);
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        long old = bits.get(word);
+        while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask)) {
+          old = bits.get(word);
+        }
+      }
+    }
+
+    private boolean mightContain(String path) {
+      long hash = BloomFilter.hash(path);
+      for (int i = 0; i < HASHES; i++) {
+        long bit = BloomFilter.bit(hash, i, size);
+        if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private volatile Rebuild filter;
+  private final AtomicLong filteredCount = new AtomicLong();
+
+  /* the following fields are guarded by this */
+  private int added = 0;
+
+  /**
+   * <p>Creates an empty filter.</p>
+   */
+  PathFilter() {
+    install(new Rebuild(0));
+  }
+
+  /**
+   * <p>Checks whether a node may exist.</p>
+   *
+   * @param path the fully qualified path of the node
+   * @return false if the node certainly does not exist
+   */
+  boolean mightContain(String path) {
+    if (filter.mightContain(path)) {
+      return true;
+    }
+    filteredCount.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * <p>Adds the path of a node about to be stored.</p>
+   *
+   * @param path the fully qualified path of the node
+   */
+  synchronized void add(String path) {
+    filter.add(path);
+    added++;
+  }
+
+  /**
+   * <p>Checks whether the filter should be rebuilt.</p>
+   *
+   * @return true if more paths were added than the filter was sized for
+   */
+  synchronized boolean isFull() {
+    return added > filter.capacity / 2;
+  }
+
+  /**
+   * <p>Starts building a replacement of the filter.</p>
+   *
+   * <p>All stored paths must be added to the returned filter before it is installed.</p>
+   *
+   * @param paths the number of stored paths
+   * @return the filter to be filled
+   */
+  Rebuild rebuild(int paths) {
+    return new Rebuild(paths);
+  }
+
+  /**
+   * <p>Replaces the filter by a rebuilt one.</p>
+   *
+   * @param rebuild the filled filter
+   */
+  synchronized void install(Rebuild rebuild) {
+    filter = rebuild;
+    added = 0;
+  }
+
+  /**
+   * <p>Gets the number of lookups answered by the filter.</p>
+   *
+   * @return the number of lookups of nodes reported as certainly missing
+   */
+  long getFilteredCount() {
+    return filteredCount.get();
+  }
+}
@@ -0,0 +1,324 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import java.util.function.BiConsumer;
+
+/**
+ * <p>An immutable hash map sharing structure between its versions.</p>
+ *
+ * <p>The map is a hash array mapped trie. Each modification returns a new map and copies only
+ * the trie nodes on the path to the modified entry (at most seven for 32 bit hashes); all
+ * other nodes are shared with the previous version. A map may therefore be kept as a snapshot
+ * at no cost. Keys and values must not be null.</p>
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+final class PersistentMap<K, V> {
+
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+  /* the root of the trie or null if the map is empty */
+  private final TrieNode root;
+  private final int size;
+
+  private PersistentMap(TrieNode root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /**
+   * <p>Gets the empty map.</p>
+   *
+   * @param <K> the type of the keys
+   * @param <V> the type of the values
+   * @return the empty map
+   */
+  @SuppressWarnings("unchecked")
+  static <K, V> PersistentMap<K, V> empty() {
+    return (PersistentMap<K, V>) EMPTY;
+  }
+
+  /**
+   * <p>Gets the value of a key.</p>
+   *
+   * @param key the key to look up
+   * @return the value or null if the key is not contained
+   */
+  @SuppressWarnings("unchecked")
+  V get(Object key) {
+    return root == null ? null : (V) root.get(key, key.hashCode(), 0);
+  }
+
+  boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  /**
+   * <p>Returns a map with the given key set to the given value.</p>
+   *
+   * @param key   the key to be set
+   * @param value the value to be set
+   * @return the new map or this map if the key is already mapped to the value
+   */
+  PersistentMap<K, V> plus(K key, V value) {
+    if (value == null) {
+      throw new NullPointerException("value may not be null");
+    }
+    int hash = key.hashCode();
+    if (root == null) {
+      return new PersistentMap<>(BitmapNode.EMPTY.plus(key, hash, value, 0), 1);
+    }
+    boolean added = root.get(key, hash, 0) == null;
+    TrieNode newRoot = root.plus(key, hash, value, 0);
+    return newRoot == root ? this : new PersistentMap<>(newRoot, added ? size + 1 : size);
+  }
+
+  /**
+   * <p>Returns a map without the given key.</p>
+   *
+   * @param key the key to be removed
+   * @return the new map or this map if the key is not contained
+   */
+  PersistentMap<K, V> minus(Object key) {
+    if (!containsKey(key)) {
+      return this;
+    }
+    return new PersistentMap<>(root.minus(key, key.hashCode(), 0), size - 1);
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * <p>Passes all entries to the given action in no particular order.</p>
+   *
+   * @param action the action to be executed for each entry
+   */
+  @SuppressWarnings("unchecked")
+  void forEach(BiConsumer<? super K, ? super V> action) {
+    if (root != null) {
+      root.forEach((BiConsumer<Object, Object>) action);
+    }
+  }
+
+  /**
+   * <p>A node of the trie.</p>
+   *
+   * <p>Nodes are never modified after construction. Modifying operations return this node if
+   * nothing changed and null if the node became empty.</p>
+   */
+  private abstract static class TrieNode {
+
+    abstract Object get(Object key, int hash, int shift);
+
+    abstract TrieNode plus(Object key, int hash, Object value, int shift);
+
+    abstract TrieNode minus(Object key, int hash, int shift);
+
+    abstract void forEach(BiConsumer<Object, Object> action);
+  }
+
+  /**
+   * <p>A node holding up to 32 entries or sub nodes, selected by five bits of the hash.</p>
+   *
+   * <p>The array holds a pair of slots for every bit set in the bitmap: key and value of an
+   * entry, or null and the sub node.</p>
+   */
+  private static final class BitmapNode extends TrieNode {
+
+    private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    private final int bitmap;
+    private final Object[] array;
+
+    private BitmapNode(int bitmap, Object[] array) {
+      this.bitmap = bitmap;
+      this.array = array;
+    }
+
+    private int index(int bit) {
+      return 2 * Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    Object get(Object key, int hash, int shift) {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      int i = index(bit);
+      Object k = array[i];
+      if (k == null) {
+        return ((TrieNode) array[i + 1]).get(key, hash, shift + BITS);
+      }
+      return key.equals(k) ? array[i + 1] : null;
+    }
+
+    @Override
+    TrieNode plus(Object key, int hash, Object value, int shift) {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      int i = index(bit);
+      if ((bitmap & bit) == 0) {
+        Object[] newArray = new Object[array.length + 2];
+        System.arraycopy(array, 0, newArray, 0, i);
+        newArray[i] = key;
+        newArray[i + 1] = value;
+        System.arraycopy(array, i, newArray, i + 2, array.length - i);
+        return new BitmapNode(bitmap | bit, newArray);
+      }
+      Object k = array[i];
+      Object v = array[i + 1];
+      if (k == null) {
+        TrieNode sub = ((TrieNode) v).plus(key, hash, value, shift + BITS);
+        return sub == v ? this : with(i, null, sub);
+      }
+      if (key.equals(k)) {
+        return v == value ? this : with(i, k, value);
+      }
+      return with(i, null, createNode(k, v, key, hash, value, shift + BITS));
+    }
+
+    @Override
+    TrieNode minus(Object key, int hash, int shift) {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      int i = index(bit);
+      Object k = array[i];
+      Object v = array[i + 1];
+      if (k == null) {
+        TrieNode sub = ((TrieNode) v).minus(key, hash, shift + BITS);
+        if (sub == v) {
+          return this;
+        }
+        if (sub != null) {
+          return with(i, null, sub);
+        }
+      } else if (!key.equals(k)) {
+        return this;
+      }
+      if (bitmap == bit) {
+        return null;
+      }
+      Object[] newArray = new Object[array.length - 2];
+      System.arraycopy(array, 0, newArray, 0, i);
+      System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+      return new BitmapNode(bitmap & ~bit, newArray);
+    }
+
+    @Override
+    void forEach(BiConsumer<Object, Object> action) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (array[i] == null) {
+          ((TrieNode) array[i + 1]).forEach(action);
+        } else {
+          action.accept(array[i], array[i + 1]);
+        }
+      }
+    }
+
+    private BitmapNode with(int i, Object key, Object value) {
+      Object[] newArray = array.clone();
+      newArray[i] = key;
+      newArray[i + 1] = value;
+      return new BitmapNode(bitmap, newArray);
+    }
+
+    private static TrieNode createNode(Object key1, Object value1, Object key2, int hash2,
+                                       Object value2, int shift) {
+      int hash1 = key1.hashCode();
+      if (hash1 == hash2) {
+        return new CollisionNode(hash1, new Object[]{key1, value1, key2, value2});
+      }
+      // the hashes differ within their 32 bits; the shift therefore stays below 32
+      return EMPTY.plus(key1, hash1, value1, shift).plus(key2, hash2, value2, shift);
+    }
+  }
+
+  /**
+   * <p>A node holding the entries of keys with identical hashes.</p>
+   */
+  private static final class CollisionNode extends TrieNode {
+
+    private final int hash;
+    private final Object[] array;
+
+    private CollisionNode(int hash, Object[] array) {
+      this.hash = hash;
+      this.array = array;
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i])) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    Object get(Object key, int hash, int shift) {
+      if (hash != this.hash) {
+        return null;
+      }
+      int i = indexOf(key);
+      return i < 0 ? null : array[i + 1];
+    }
+
+    @Override
+    TrieNode plus(Object key, int hash, Object value, int shift) {
+      if (hash != this.hash) {
+        // nest this node into a bitmap node distinguishing the hashes
+        BitmapNode node = new BitmapNode(1 << ((this.hash >>> shift) & MASK),
+            new Object[]{null, this});
+        return node.plus(key, hash, value, shift);
+      }
+      int i = indexOf(key);
+      if (i >= 0) {
+        if (array[i + 1] == value) {
+          return this;
+        }
+        Object[] newArray = array.clone();
+        newArray[i + 1] = value;
+        return new CollisionNode(hash, newArray);
+      }
+      Object[] newArray = new Object[array.length + 2];
+      System.arraycopy(array, 0, newArray, 0, array.length);
+      newArray[array.length] = key;
+      newArray[array.length + 1] = value;
+      return new CollisionNode(hash, newArray);
+    }
+
+    @Override
+    TrieNode minus(Object key, int hash, int shift) {
+      int i = hash == this.hash ? indexOf(key) : -1;
+      if (i < 0) {
+        return this;
+      }
+      if (array.length == 2) {
+        return null;
+      }
+      Object[] newArray = new Object[array.length - 2];
+      System.arraycopy(array, 0, newArray, 0, i);
+      System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+      return new CollisionNode(hash, newArray);
+    }
+
+    @Override
+    void forEach(BiConsumer<Object, Object> action) {
+      for (int i = 0; i < array.length; i += 2) {
+        action.accept(array[i], array[i + 1]);
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.SearchCriteria;
+import ch.fhnw.geiger.localstorage.Visibility;
+import ch.fhnw.geiger.localstorage.db.data.Field;
+import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+/**
+ * <p>The node and value criteria of a search compiled for repeated evaluation.</p>
+ *
+ * <p>The criteria are evaluated like in {@link H2SqlMapper#search(SearchCriteria)}. Criteria
+ * which are not set or empty match everything. Owner, name, visibility, value type and value
+ * are regular expressions matching the whole field. Key and last modified date of a value are
+ * compared exactly. If any value criterion is set, a node matches if at least one of its
+ * values satisfies all value criteria.</p>
+ *
+ * <p>The node path is not evaluated; mappers use it to select the nodes to be visited
+ * instead.</p>
+ */
+final class SearchMatcher {
+
+  private final Pattern owner;
+  private final Pattern name;
+  private final Pattern visibility;
+  private final String key;
+  private final Pattern value;
+  private final Pattern type;
+  private final String lastModified;
+  private final boolean valueCriteria;
+
+  SearchMatcher(SearchCriteria criteria) {
+    owner = compile(criteria.get(Field.OWNER));
+    name = compile(criteria.get(Field.NAME));
+    visibility = compile(criteria.get(Field.VISIBILITY));
+    key = criteria.get(Field.KEY);
+    value = compile(criteria.get(Field.VALUE));
+    type = compile(criteria.get(Field.TYPE));
+    lastModified = criteria.get(Field.LAST_MODIFIED);
+    valueCriteria = !isWildcard(key) || value != null || type != null
+        || !isWildcard(lastModified);
+  }
+
+  /**
+   * <p>Checks a node against the criteria.</p>
+   *
+   * @param path           the fully qualified path of the node
+   * @param nodeOwner      the owner of the node or null
+   * @param nodeVisibility the visibility of the node
+   * @param values         the values of the node
+   * @return true if the node matches
+   */
+  boolean matches(String path, String nodeOwner, Visibility nodeVisibility,
+                  Collection<NodeValue> values) {
+    if (!matchesField(owner, nodeOwner)
+        || !matchesField(name, NodeImpl.getNameFromPath(path))
+        || !matchesField(visibility, nodeVisibility.toString())) {
+      return false;
+    }
+    if (!valueCriteria) {
+      return true;
+    }
+    for (NodeValue nv : values) {
+      if ((isWildcard(key) || key.equals(nv.getKey()))
+          && matchesField(value, nv.getValue())
+          && matchesField(type, nv.getType())
+          && (isWildcard(lastModified)
+          || lastModified.equals(String.valueOf(nv.getLastModified())))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * <p>Checks whether a criterion matches everything.</p>
+   *
+   * @param criterion the criterion to be checked
+   * @return true if the criterion is not set or empty
+   */
+  static boolean isWildcard(String criterion) {
+    return criterion == null || "".equals(criterion);
+  }
+
+  private static Pattern compile(String criterion) {
+    return isWildcard(criterion) ? null : Pattern.compile(criterion);
+  }
+
+  private static boolean matchesField(Pattern pattern, String field) {
+    return pattern == null || (field != null && pattern.matcher(field).matches());
+  }
+}
@@ -0,0 +1,306 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.NodeNotFoundException;
+import ch.fhnw.geiger.localstorage.SearchCriteria;
+import ch.fhnw.geiger.localstorage.StorageController;
+import ch.fhnw.geiger.localstorage.StorageException;
+import ch.fhnw.geiger.localstorage.db.GenericController;
+import ch.fhnw.geiger.localstorage.db.StorageMapper;
+import ch.fhnw.geiger.localstorage.db.data.Field;
+import ch.fhnw.geiger.localstorage.db.data.Node;
+import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>A mapper partitioning the tree across several mappers (shards).</p>
+ *
+ * <p>Each top level node is stored with its whole subtree in one shard; parents and children
+ * are therefore always in the same shard and every shard keeps its own consistency checks.
+ * Top level nodes may be routed explicitly (e.g. ":Devices" to an H2 file of its own); all
+ * other top level nodes are distributed over the default shards by the hash of their
+ * name.</p>
+ *
+ * <p>Operations on a single path are forwarded to its shard. Searches are run on the shard
+ * holding the searched subtree, or in parallel on all shards if the search is not restricted
+ * to a subtree; the results are concatenated in the order of the shards. A rename within a
+ * shard is forwarded. A rename moving a subtree to another shard copies the subtree and
+ * removes the original afterwards; it is not atomic.</p>
+ */
+public class ShardedMapper extends AbstractMapper {
+
+  private final Map<String, StorageMapper> routes;
+  private final List<StorageMapper> defaultShards;
+  /* every shard once */
+  private final List<StorageMapper> shards;
+  private final ExecutorService searchExecutor;
+
+  /**
+   * <p>Creates a mapper distributing all top level nodes by hash.</p>
+   *
+   * @param shards the shards
+   */
+  public ShardedMapper(StorageMapper... shards) {
+    this(Collections.emptyMap(), shards);
+  }
+
+  /**
+   * <p>Creates a mapper with explicit routes.</p>
+   *
+   * @param routes        the shards of top level nodes by their path (e.g. ":Devices")
+   * @param defaultShards the shards of all top level nodes not routed explicitly
+   * @throws IllegalArgumentException if no default shard is given or a route is not a top level
+   *                                  path
+   */
+  public ShardedMapper(Map<String, StorageMapper> routes, StorageMapper... defaultShards) {
+    if (defaultShards.length == 0) {
+      throw new IllegalArgumentException("at least one default shard is required");
+    }
+    for (String path : routes.keySet()) {
+      if (!path.matches(GenericController.PATH_DELIMITER + "[a-zA-Z0-9\\-]+")) {
+        throw new IllegalArgumentException("route \"" + path + "\" is not a top level path");
+      }
+    }
+    this.routes = new HashMap<>(routes);
+    this.defaultShards = new ArrayList<>();
+    Collections.addAll(this.defaultShards, defaultShards);
+    Set<StorageMapper> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+    List<StorageMapper> all = new ArrayList<>();
+    for (StorageMapper shard : this.defaultShards) {
+      if (distinct.add(shard)) {
+        all.add(shard);
+      }
+    }
+    for (StorageMapper shard : routes.values()) {
+      if (distinct.add(shard)) {
+        all.add(shard);
+      }
+    }
+    this.shards = Collections.unmodifiableList(all);
+    searchExecutor = Executors.newFixedThreadPool(all.size(), r -> {
+      Thread t = new Thread(r, "ShardedMapper search");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * <p>Gets all shards.</p>
+   *
+   * @return every shard once
+   */
+  public List<StorageMapper> getShards() {
+    return shards;
+  }
+
+  /**
+   * <p>Gets the shard storing a path.</p>
+   *
+   * @param path the fully qualified path of a node
+   * @return the shard
+   */
+  public StorageMapper getShard(String path) {
+    int end = path.indexOf(GenericController.PATH_DELIMITER, 1);
+    String top = end < 0 ? path : path.substring(0, end);
+    StorageMapper shard = routes.get(top);
+    if (shard != null) {
+      return shard;
+    }
+    return defaultShards.get(Math.floorMod(top.hashCode(), defaultShards.size()));
+  }
+
+  @Override
+  public void setController(StorageController controller) {
+    for (StorageMapper shard : shards) {
+      shard.setController(controller);
+    }
+  }
+
+  @Override
+  public Node get(String path) throws StorageException {
+    checkPath(path);
+    return getShard(path).get(path);
+  }
+
+  @Override
+  public Optional<Node> find(String path) throws StorageException {
+    checkPath(path);
+    return getShard(path).find(path);
+  }
+
+  @Override
+  public boolean exists(String path) throws StorageException {
+    checkPath(path);
+    return getShard(path).exists(path);
+  }
+
+  @Override
+  public boolean existsValue(String path, String key) throws StorageException {
+    checkPath(path);
+    return getShard(path).existsValue(path, key);
+  }
+
+  @Override
+  public void add(Node node) throws StorageException {
+    checkPath(node);
+    getShard(node.getPath()).add(node);
+  }
+
+  @Override
+  public void update(Node node) throws StorageException {
+    checkPath(node);
+    getShard(node.getPath()).update(node);
+  }
+
+  @Override
+  public Node remove(String path) throws StorageException {
+    checkPath(path);
+    return getShard(path).remove(path);
+  }
+
+  @Override
+  public Node remove(String path, boolean recursive) throws StorageException {
+    checkPath(path);
+    return getShard(path).remove(path, recursive);
+  }
+
+  @Override
+  public NodeValue getValue(String path, String key) {
+    checkPath(path);
+    return getShard(path).getValue(path, key);
+  }
+
+  /**
+   * <p>Renames or moves a node and its subtree.</p>
+   *
+   * <p>Moves between shards copy the subtree parents first and remove the old subtree
+   * afterwards. If the copy fails, the copied nodes are removed again; a concurrent reader
+   * may see the subtree at both paths.</p>
+   *
+   * @param oldPath the old path of the node
+   * @param newPath the new fully qualified path of the node
+   * @throws StorageException if the new node already exists, the old node does not exist, the
+   *                          new parent node does not exist or the new path is within the
+   *                          subtree of the old one
+   */
+  @Override
+  public void rename(String oldPath, String newPath) throws StorageException {
+    checkPath(oldPath);
+    checkPath(newPath);
+    StorageMapper source = getShard(oldPath);
+    StorageMapper target = getShard(newPath);
+    if (source == target) {
+      source.rename(oldPath, newPath);
+      return;
+    }
+    String newParent = NodeImpl.getParentFromPath(newPath);
+    if (!source.exists(oldPath)) {
+      throw new NodeNotFoundException(oldPath);
+    }
+    if (target.exists(newPath)) {
+      throw new StorageException("Node \"" + newPath + "\" does already exist");
+    }
+    if (!"".equals(newParent) && !target.exists(newParent)) {
+      throw new StorageException("Parent node \"" + newParent + "\" does not exist");
+    }
+    try {
+      copySubtree(source, target, oldPath, newPath);
+    } catch (RuntimeException e) {
+      if (target.exists(newPath)) {
+        target.remove(newPath, true);
+      }
+      throw e;
+    }
+    source.remove(oldPath, true);
+  }
+
+  private static void copySubtree(StorageMapper source, StorageMapper target, String oldPath,
+                                  String newPath) {
+    Node node = source.get(oldPath);
+    NodeImpl copy = new NodeImpl(newPath);
+    if (node.getOwner() != null) {
+      copy.setOwner(node.getOwner());
+    }
+    copy.setVisibility(node.getVisibility());
+    for (NodeValue value : node.getValues().values()) {
+      copy.addValue(value);
+    }
+    target.add(copy);
+    for (String name : node.getChildren().keySet()) {
+      copySubtree(source, target, oldPath + GenericController.PATH_DELIMITER + name,
+          newPath + GenericController.PATH_DELIMITER + name);
+    }
+  }
+
+  /**
+   * <p>Search all nodes matching the provided search criteria.</p>
+   *
+   * <p>A search restricted to a subtree is run on the shard holding it only. Other searches
+   * are run on all shards in parallel.</p>
+   *
+   * @param criteria the matching criteria
+   * @return the nodes matching the criteria
+   */
+  @Override
+  public List<Node> search(SearchCriteria criteria) throws StorageException {
+    String path = criteria.get(Field.PATH);
+    if (!SearchMatcher.isWildcard(path) && !GenericController.PATH_DELIMITER.equals(path)) {
+      return getShard(path).search(criteria);
+    }
+    if (shards.size() == 1) {
+      return shards.get(0).search(criteria);
+    }
+    List<Future<List<Node>>> results = new ArrayList<>();
+    for (StorageMapper shard : shards) {
+      results.add(searchExecutor.submit(() -> shard.search(criteria)));
+    }
+    List<Node> ret = new ArrayList<>();
+    try {
+      for (Future<List<Node>> result : results) {
+        ret.addAll(result.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StorageException("Interrupted while searching", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new StorageException("Search failed", e.getCause());
+    }
+    return ret;
+  }
+
+  @Override
+  public void close() {
+    searchExecutor.shutdown();
+    for (StorageMapper shard : shards) {
+      shard.close();
+    }
+  }
+
+  @Override
+  public void flush() {
+    for (StorageMapper shard : shards) {
+      shard.flush();
+    }
+  }
+
+  @Override
+  public void zap() {
+    for (StorageMapper shard : shards) {
+      shard.zap();
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+/**
+ * <p>A cursor over entries sorted by path.</p>
+ *
+ * <p>Values are encoded nodes (see {@link NodeCodec}); an empty value marks a removed
+ * node.</p>
+ */
+interface SortedCursor {
+
+  /**
+   * <p>Checks whether the cursor is positioned on an entry.</p>
+   *
+   * @return false if the cursor moved past the last entry
+   */
+  boolean isValid();
+
+  /**
+   * <p>Gets the path of the current entry.</p>
+   *
+   * @return the path
+   */
+  String key();
+
+  /**
+   * <p>Gets the value of the current entry.</p>
+   *
+   * @return the encoded node or an empty array for a removed node
+   */
+  byte[] value();
+
+  /**
+   * <p>Moves to the next entry.</p>
+   */
+  void next();
+
+  /**
+   * <p>Moves to the first entry with a path not less than the given one.</p>
+   *
+   * @param key the path to seek
+   */
+  void seek(String key);
+}
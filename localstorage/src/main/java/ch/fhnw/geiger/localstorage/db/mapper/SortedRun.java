@@ -0,0 +1,370 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.StorageException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>An immutable file of entries sorted by path as written by the {@link LsmMapper}.</p>
+ *
+ * <p>The file starts with the entries, each written as path, length of the value and value;
+ * an empty value marks a removed node. A sparse index holding every
+ * {@value #INDEX_INTERVAL}th path, a bloom filter of all paths, the last path and a fixed
+ * size trailer with the offsets of these parts follow. The file is mapped into memory; index
+ * and bloom filter are kept on the heap.</p>
+ */
+final class SortedRun {
+
+  private static final int INDEX_INTERVAL = 16;
+  private static final int BITS_PER_KEY = 10;
+  private static final int MAGIC = 0x4c534d31;
+  private static final int TRAILER = 20;
+
+  private final int id;
+  private final File file;
+  private final ByteBuffer data;
+  private final int dataEnd;
+  private final String[] indexKeys;
+  private final int[] indexOffsets;
+  private final BloomFilter bloom;
+  private final String minKey;
+  private final String maxKey;
+
+  /**
+   * <p>Opens a run.</p>
+   *
+   * @param file the run file
+   * @param id   the number of the run
+   * @throws StorageException if the file cannot be read
+   */
+  SortedRun(File file, int id) {
+    this.id = id;
+    this.file = file;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+          raf.length());
+      int end = buffer.capacity();
+      if (end < TRAILER || buffer.getInt(end - 4) != MAGIC) {
+        throw new StorageException("Run file " + file + " is corrupted");
+      }
+      int indexStart = buffer.getInt(end - TRAILER);
+      // index and bloom filter are read in sequence
+      final int maxKeyStart = buffer.getInt(end - TRAILER + 8);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+          copy(buffer, indexStart, end - TRAILER - indexStart)));
+      int n = in.readInt();
+      indexKeys = new String[n];
+      indexOffsets = new int[n];
+      for (int i = 0; i < n; i++) {
+        indexKeys[i] = in.readUTF();
+        indexOffsets[i] = in.readInt();
+      }
+      bloom = BloomFilter.read(in);
+      maxKey = n == 0 ? null : readKey(buffer, maxKeyStart);
+      minKey = n == 0 ? null : indexKeys[0];
+      dataEnd = indexStart;
+      data = buffer;
+    } catch (IOException e) {
+      throw new StorageException("Cannot open run file " + file, e);
+    }
+  }
+
+  int getId() {
+    return id;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * <p>Gets the size of the entries.</p>
+   *
+   * @return the number of bytes
+   */
+  long getSize() {
+    return dataEnd;
+  }
+
+  String getMinKey() {
+    return minKey;
+  }
+
+  String getMaxKey() {
+    return maxKey;
+  }
+
+  /**
+   * <p>Checks whether the run may hold paths within a range.</p>
+   *
+   * @param from the smallest path of the range
+   * @param to   the largest path of the range
+   * @return true if the ranges overlap
+   */
+  boolean overlaps(String from, String to) {
+    return minKey != null && minKey.compareTo(to) <= 0 && maxKey.compareTo(from) >= 0;
+  }
+
+  /**
+   * <p>Looks up a path.</p>
+   *
+   * @param key the path to look up
+   * @return the value, an empty array if the node was removed or null if the path is not
+   *         in the run
+   */
+  byte[] get(String key) {
+    if (minKey == null || key.compareTo(minKey) < 0 || key.compareTo(maxKey) > 0
+        || !bloom.mightContain(key)) {
+      return null;
+    }
+    ByteBuffer view = data.duplicate();
+    int i = floorIndex(key);
+    int end = i + 1 < indexOffsets.length ? indexOffsets[i + 1] : dataEnd;
+    int pos = indexOffsets[i];
+    while (pos < end) {
+      int keyLength = view.getShort(pos) & 0xffff;
+      int cmp = compare(view, pos + 2, keyLength, key);
+      int valueLength = view.getInt(pos + 2 + keyLength);
+      if (cmp == 0) {
+        return copy(view, pos + 6 + keyLength, valueLength);
+      }
+      if (cmp > 0) {
+        return null;
+      }
+      pos += 6 + keyLength + valueLength;
+    }
+    return null;
+  }
+
+  /**
+   * <p>Creates a cursor over the run.</p>
+   *
+   * @return a cursor to be positioned by {@link SortedCursor#seek(String)}
+   */
+  SortedCursor cursor() {
+    return new Cursor();
+  }
+
+  /* the last index entry with a path not greater than the key or 0 */
+  private int floorIndex(String key) {
+    int low = 0;
+    int high = indexKeys.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (indexKeys[mid].compareTo(key) <= 0) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /* compares ASCII bytes of the buffer with a string */
+  private static int compare(ByteBuffer buffer, int pos, int length, String key) {
+    int n = Math.min(length, key.length());
+    for (int i = 0; i < n; i++) {
+      int c = (buffer.get(pos + i) & 0xff) - key.charAt(i);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return length - key.length();
+  }
+
+  private static String readKey(ByteBuffer buffer, int pos) {
+    int length = buffer.getShort(pos) & 0xffff;
+    return new String(copy(buffer, pos + 2, length), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] copy(ByteBuffer buffer, int pos, int length) {
+    ByteBuffer view = buffer.duplicate();
+    view.position(pos);
+    byte[] ret = new byte[length];
+    view.get(ret);
+    return ret;
+  }
+
+  /**
+   * <p>A cursor reading the entries of the mapped file.</p>
+   */
+  private final class Cursor implements SortedCursor {
+
+    private int pos = dataEnd;
+    private String key = null;
+
+    @Override
+    public boolean isValid() {
+      return pos < dataEnd;
+    }
+
+    @Override
+    public String key() {
+      if (key == null) {
+        key = readKey(data, pos);
+      }
+      return key;
+    }
+
+    @Override
+    public byte[] value() {
+      int keyLength = data.getShort(pos) & 0xffff;
+      return copy(data, pos + 6 + keyLength, data.getInt(pos + 2 + keyLength));
+    }
+
+    @Override
+    public void next() {
+      int keyLength = data.getShort(pos) & 0xffff;
+      pos += 6 + keyLength + data.getInt(pos + 2 + keyLength);
+      key = null;
+    }
+
+    @Override
+    public void seek(String target) {
+      key = null;
+      if (indexKeys.length == 0) {
+        pos = dataEnd;
+        return;
+      }
+      pos = indexOffsets[floorIndex(target)];
+      while (pos < dataEnd) {
+        int keyLength = data.getShort(pos) & 0xffff;
+        if (compare(data, pos + 2, keyLength, target) >= 0) {
+          return;
+        }
+        pos += 6 + keyLength + data.getInt(pos + 2 + keyLength);
+      }
+    }
+  }
+
+  /**
+   * <p>Writes a run file.</p>
+   *
+   * <p>Entries must be added in ascending order of their paths. The file is written to a
+   * temporary file and moved to its final name once complete.</p>
+   */
+  static final class Writer {
+
+    private final File file;
+    private final File tmp;
+    private final int id;
+    private final FileOutputStream stream;
+    private final DataOutputStream out;
+    private final List<String> indexKeys = new ArrayList<>();
+    private final List<Integer> indexOffsets = new ArrayList<>();
+    private long[] hashes = new long[1024];
+    private int count = 0;
+    private String last = null;
+
+    /**
+     * <p>Creates a writer.</p>
+     *
+     * @param file the file to be written
+     * @param id   the number of the run
+     * @throws StorageException if the file cannot be created
+     */
+    Writer(File file, int id) {
+      this.file = file;
+      this.tmp = new File(file.getPath() + ".tmp");
+      this.id = id;
+      try {
+        stream = new FileOutputStream(tmp);
+        out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+      } catch (IOException e) {
+        throw new StorageException("Cannot create run file " + file, e);
+      }
+    }
+
+    /**
+     * <p>Gets the number of bytes written so far.</p>
+     *
+     * @return the size of the entries
+     */
+    long getSize() {
+      return out.size();
+    }
+
+    boolean isEmpty() {
+      return count == 0;
+    }
+
+    /**
+     * <p>Adds an entry.</p>
+     *
+     * @param key   the path, greater than all paths added before
+     * @param value the encoded node or an empty array for a removed node
+     */
+    void add(String key, byte[] value) {
+      try {
+        if (count % INDEX_INTERVAL == 0) {
+          indexKeys.add(key);
+          indexOffsets.add(out.size());
+        }
+        if (count == hashes.length) {
+          long[] grown = new long[2 * count];
+          System.arraycopy(hashes, 0, grown, 0, count);
+          hashes = grown;
+        }
+        hashes[count++] = BloomFilter.hash(key);
+        last = key;
+        out.writeUTF(key);
+        out.writeInt(value.length);
+        out.write(value);
+      } catch (IOException e) {
+        throw new StorageException("Cannot write run file " + file, e);
+      }
+    }
+
+    /**
+     * <p>Completes the file and opens it as a run.</p>
+     *
+     * @return the run
+     * @throws StorageException if the file cannot be written
+     */
+    SortedRun finish() {
+      try {
+        final int indexStart = out.size();
+        out.writeInt(indexKeys.size());
+        for (int i = 0; i < indexKeys.size(); i++) {
+          out.writeUTF(indexKeys.get(i));
+          out.writeInt(indexOffsets.get(i));
+        }
+        final int bloomStart = out.size();
+        BloomFilter bloom = new BloomFilter(count, BITS_PER_KEY);
+        for (int i = 0; i < count; i++) {
+          bloom.addHash(hashes[i]);
+        }
+        bloom.write(out);
+        int maxKeyStart = out.size();
+        out.writeUTF(last == null ? "" : last);
+        out.writeInt(indexStart);
+        out.writeInt(bloomStart);
+        out.writeInt(maxKeyStart);
+        out.writeInt(count);
+        out.writeInt(MAGIC);
+        out.flush();
+        stream.getFD().sync();
+        out.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+        throw new StorageException("Cannot write run file " + file, e);
+      }
+      return new SortedRun(file, id);
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+/**
+ * <p>Defines when changes written to a write-ahead log are forced to the disk.</p>
+ */
+public enum SyncPolicy {
+
+  /**
+   * <p>Every change is forced to the disk before the writing call returns.</p>
+   */
+  ALWAYS,
+
+  /**
+   * <p>Changes are forced to the disk once per second; a crash loses at most the changes of the
+   * last second.</p>
+   */
+  PERIODIC,
+
+  /**
+   * <p>Changes are forced to the disk on
+   * {@link ch.fhnw.geiger.localstorage.db.StorageMapper#flush()} and when closing only; the
+   * operating system decides when to write them otherwise.</p>
+   */
+  NEVER
+}
@@ -0,0 +1,553 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import ch.fhnw.geiger.localstorage.NodeNotFoundException;
+import ch.fhnw.geiger.localstorage.SearchCriteria;
+import ch.fhnw.geiger.localstorage.StorageController;
+import ch.fhnw.geiger.localstorage.StorageException;
+import ch.fhnw.geiger.localstorage.db.GenericController;
+import ch.fhnw.geiger.localstorage.db.StorageMapper;
+import ch.fhnw.geiger.localstorage.db.data.Field;
+import ch.fhnw.geiger.localstorage.db.data.Node;
+import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A mapper keeping frequently used subtrees in memory in front of a durable mapper.</p>
+ *
+ * <p>The tree is divided into units: the subtrees rooted at a fixed depth (e.g. every
+ * ":Devices:&lt;id&gt;" for a depth of two). Nodes above that depth always live in the cold
+ * tier only. A unit is promoted into the hot tier as a whole when it has been accessed often
+ * enough (admission) and is then served from memory, including negative lookups and searches
+ * within the unit. Units are demoted when the hot tier exceeds its capacity (least recently
+ * used first) or when they have not been accessed for a while (idle time).</p>
+ *
+ * <p>All writes go through to the cold tier before the call returns, so durability is the one
+ * of the cold mapper. Changed nodes of hot units are then reloaded from the cold tier; writes
+ * which move subtrees into or out of a unit demote it. Loads racing with writes are detected
+ * by version counters and discarded.</p>
+ *
+ * <p>Accesses to hot units take no lock. Promotion, eviction and the demotion of idle units
+ * are done by accesses to the cold tier; a hit only checks the idle time of its own unit and
+ * scans for other idle units once per quarter of the idle time.</p>
+ */
+public class TieredMapper extends AbstractMapper {
+
+  /**
+   * <p>The default depth of the unit roots.</p>
+   */
+  public static final int DEFAULT_DEPTH = 2;
+
+  /**
+   * <p>The default number of nodes kept in the hot tier.</p>
+   */
+  public static final int DEFAULT_CAPACITY = 100000;
+
+  /**
+   * <p>The default time in milliseconds after which an unused unit is demoted.</p>
+   */
+  public static final long DEFAULT_IDLE_TIME = 600000;
+
+  /**
+   * <p>The default number of accesses after which a unit is promoted.</p>
+   */
+  public static final int DEFAULT_ADMISSION_THRESHOLD = 2;
+
+  /* the number of version counters; units sharing a counter are invalidated together */
+  private static final int VERSION_STRIPES = 1024;
+
+  /**
+   * <p>A subtree held in the hot tier.</p>
+   *
+   * <p>The nodes are never modified; changes replace them.</p>
+   */
+  private static final class Unit {
+
+    private final Map<String, Node> nodes;
+    private volatile long lastAccess;
+
+    private Unit(Map<String, Node> nodes, long lastAccess) {
+      this.nodes = nodes;
+      this.lastAccess = lastAccess;
+    }
+
+    /* the weight of the unit; an empty unit still caches a negative lookup */
+    private int getWeight() {
+      return nodes.size() + 1;
+    }
+  }
+
+  private final StorageMapper cold;
+  private final int depth;
+  private final int capacity;
+  private final long idleNanos;
+  private final int admissionThreshold;
+
+  /* the hot units by root path; read without lock and changed while holding lock */
+  private final Map<String, Unit> hot = new ConcurrentHashMap<>();
+  /* the time of the next scan for idle units */
+  private volatile long nextIdleScan;
+
+  /* all following fields are guarded by lock */
+  private final Object lock = new Object();
+  private int hotWeight = 0;
+  /* the access counts of units not yet admitted */
+  private final LinkedHashMap<String, Integer> candidates;
+  private final long[] versions = new long[VERSION_STRIPES];
+  /* invalidates all loads; changed by writes above the unit depth */
+  private long globalVersion = 0;
+
+  private volatile StorageController controller = null;
+
+  /**
+   * <p>Creates a tiered mapper with default settings.</p>
+   *
+   * @param cold the durable mapper holding all nodes
+   */
+  public TieredMapper(StorageMapper cold) {
+    this(cold, DEFAULT_DEPTH, DEFAULT_CAPACITY, DEFAULT_IDLE_TIME, DEFAULT_ADMISSION_THRESHOLD);
+  }
+
+  /**
+   * <p>Creates a tiered mapper.</p>
+   *
+   * @param cold               the durable mapper holding all nodes
+   * @param depth              the depth of the unit roots (1 for top level nodes)
+   * @param capacity           the maximum number of nodes kept in the hot tier
+   * @param idleTime           the time in milliseconds after which an unused unit is demoted
+   * @param admissionThreshold the number of accesses after which a unit is promoted
+   */
+  public TieredMapper(StorageMapper cold, int depth, int capacity, long idleTime,
+                      int admissionThreshold) {
+    if (depth < 1 || capacity < 1 || admissionThreshold < 1) {
+      throw new IllegalArgumentException("depth, capacity and admission threshold must be "
+          + "positive");
+    }
+    this.cold = cold;
+    this.depth = depth;
+    this.capacity = capacity;
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTime);
+    this.admissionThreshold = admissionThreshold;
+    this.nextIdleScan = System.nanoTime();
+    this.candidates = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * <p>Gets the number of units in the hot tier.</p>
+   *
+   * @return the number of hot units
+   */
+  public int getHotUnitCount() {
+    return hot.size();
+  }
+
+  /**
+   * <p>Checks whether a node is served from the hot tier.</p>
+   *
+   * @param path the path of the node
+   * @return true if the unit of the node is hot
+   */
+  public boolean isHot(String path) {
+    String root = getUnitRoot(path);
+    return root != null && hot.containsKey(root);
+  }
+
+  @Override
+  public void setController(StorageController controller) {
+    this.controller = controller;
+    cold.setController(controller);
+  }
+
+  @Override
+  public Node get(String path) throws StorageException {
+    return find(path).orElseThrow(() -> new NodeNotFoundException(path));
+  }
+
+  @Override
+  public Optional<Node> find(String path) throws StorageException {
+    checkPath(path);
+    getSanity(path);
+    Unit unit = access(path);
+    if (unit == null) {
+      return cold.find(path);
+    }
+    Node node = unit.nodes.get(path);
+    return node == null ? Optional.empty() : Optional.of(node.deepClone());
+  }
+
+  @Override
+  public boolean exists(String path) throws StorageException {
+    checkPath(path);
+    getSanity(path);
+    Unit unit = access(path);
+    return unit == null ? cold.exists(path) : unit.nodes.containsKey(path);
+  }
+
+  @Override
+  public boolean existsValue(String path, String key) throws StorageException {
+    checkPath(path);
+    getSanity(path);
+    Unit unit = access(path);
+    if (unit == null) {
+      return cold.existsValue(path, key);
+    }
+    Node node = unit.nodes.get(path);
+    return node != null && node.getValues().containsKey(key);
+  }
+
+  @Override
+  public NodeValue getValue(String path, String key) {
+    if (path == null || "".equals(path) || "".equals(key)) {
+      // illegal arguments are reported by the cold tier
+      return cold.getValue(path, key);
+    }
+    checkPath(path);
+    Unit unit = access(path);
+    Node node = unit == null ? null : unit.nodes.get(path);
+    return node == null ? cold.getValue(path, key) : node.getValue(key);
+  }
+
+  @Override
+  public void add(Node node) throws StorageException {
+    checkPath(node);
+    cold.add(node);
+    String path = node.getPath();
+    written(null, path, NodeImpl.getParentFromPath(path));
+  }
+
+  @Override
+  public void update(Node node) throws StorageException {
+    checkPath(node);
+    cold.update(node);
+    written(null, node.getPath());
+  }
+
+  @Override
+  public Node remove(String path) throws StorageException {
+    return remove(path, false);
+  }
+
+  @Override
+  public Node remove(String path, boolean recursive) throws StorageException {
+    checkPath(path);
+    Node ret = cold.remove(path, recursive);
+    if (getUnitRoot(path) == null) {
+      // all units below the node are gone
+      written(path, NodeImpl.getParentFromPath(path));
+    } else {
+      written(null, path, NodeImpl.getParentFromPath(path));
+    }
+    return ret;
+  }
+
+  @Override
+  public void rename(String oldPath, String newPath) throws StorageException {
+    cold.rename(oldPath, newPath);
+    // subtrees entering or leaving a unit are not tracked; such units are demoted
+    written(oldPath, NodeImpl.getParentFromPath(oldPath));
+    written(newPath, NodeImpl.getParentFromPath(newPath));
+  }
+
+  /**
+   * <p>Search all nodes matching the provided search criteria.</p>
+   *
+   * <p>Searches within a hot unit are evaluated in memory by a {@link SearchMatcher}; all
+   * other searches are run on the cold tier.</p>
+   *
+   * @param criteria the matching criteria
+   * @return the fully materialized nodes matching the criteria
+   */
+  @Override
+  public List<Node> search(SearchCriteria criteria) throws StorageException {
+    String path = criteria.get(Field.PATH);
+    if (SearchMatcher.isWildcard(path) || GenericController.PATH_DELIMITER.equals(path)) {
+      return cold.search(criteria);
+    }
+    // a trailing delimiter selects the descendants only
+    boolean descendants = path.endsWith(GenericController.PATH_DELIMITER);
+    String base = descendants ? path.substring(0, path.length() - 1) : path;
+    Unit unit = access(base);
+    if (unit == null) {
+      return cold.search(criteria);
+    }
+    SearchMatcher matcher = new SearchMatcher(criteria);
+    String prefix = base + GenericController.PATH_DELIMITER;
+    List<Node> ret = new ArrayList<>();
+    for (Map.Entry<String, Node> e : unit.nodes.entrySet()) {
+      String p = e.getKey();
+      Node node = e.getValue();
+      if ((p.startsWith(prefix) || (!descendants && p.equals(base)))
+          && matcher.matches(p, node.getOwner(), node.getVisibility(),
+          node.getValues().values())) {
+        ret.add(node.deepClone());
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public void close() {
+    clearHot();
+    cold.close();
+  }
+
+  @Override
+  public void flush() {
+    cold.flush();
+  }
+
+  @Override
+  public void zap() {
+    cold.zap();
+    clearHot();
+  }
+
+  private void clearHot() {
+    synchronized (lock) {
+      hot.clear();
+      candidates.clear();
+      hotWeight = 0;
+      globalVersion++;
+    }
+  }
+
+  /**
+   * <p>Gets the root of the unit containing a path.</p>
+   *
+   * @param path the path of a node
+   * @return the path of the unit root or null if the node is above the unit depth
+   */
+  private String getUnitRoot(String path) {
+    int pos = 0;
+    for (int i = 0; i < depth; i++) {
+      pos = path.indexOf(GenericController.PATH_DELIMITER, pos + 1);
+      if (pos < 0) {
+        return i == depth - 1 && path.length() > 1 ? path : null;
+      }
+    }
+    return path.substring(0, pos);
+  }
+
+  private static int stripe(String root) {
+    return (root.hashCode() & 0x7fffffff) % VERSION_STRIPES;
+  }
+
+  /**
+   * <p>Records an access of a path and returns its unit if it is hot.</p>
+   *
+   * <p>The unit is promoted if the access makes it reach the admission threshold. Hits of
+   * units which are not idle are served without taking the lock.</p>
+   *
+   * @param path the path accessed
+   * @return the hot unit or null if the access is to be served by the cold tier
+   */
+  private Unit access(String path) {
+    String root = getUnitRoot(path);
+    if (root == null) {
+      return null;
+    }
+    long now = System.nanoTime();
+    Unit unit = hot.get(root);
+    if (unit != null && now - unit.lastAccess < idleNanos) {
+      unit.lastAccess = now;
+      if (now - nextIdleScan >= 0) {
+        synchronized (lock) {
+          demoteIdle(now);
+        }
+      }
+      return unit;
+    }
+    long version;
+    long global;
+    synchronized (lock) {
+      demoteIdle(now);
+      unit = hot.get(root);
+      if (unit != null) {
+        if (now - unit.lastAccess < idleNanos) {
+          unit.lastAccess = now;
+          return unit;
+        }
+        demote(root);
+      }
+      int count = candidates.merge(root, 1, Integer::sum);
+      if (count < admissionThreshold) {
+        return null;
+      }
+      candidates.remove(root);
+      version = versions[stripe(root)];
+      global = globalVersion;
+    }
+    Map<String, Node> nodes = load(root);
+    synchronized (lock) {
+      unit = hot.get(root);
+      if (unit != null || nodes == null) {
+        return unit;
+      }
+      if (versions[stripe(root)] != version || globalVersion != global) {
+        // a concurrent write may not be contained in the loaded nodes
+        return null;
+      }
+      unit = new Unit(nodes, System.nanoTime());
+      hot.put(root, unit);
+      hotWeight += unit.getWeight();
+      evict();
+      return unit;
+    }
+  }
+
+  /**
+   * <p>Reads a unit from the cold tier.</p>
+   *
+   * @param root the root of the unit
+   * @return the nodes of the unit or null if the unit does not fit into the hot tier
+   */
+  private Map<String, Node> load(String root) {
+    SearchCriteria criteria = new SearchCriteria();
+    criteria.setNodePath(root);
+    List<Node> found = cold.search(criteria);
+    if (found.size() + 1 > capacity) {
+      return null;
+    }
+    Map<String, Node> ret = new ConcurrentHashMap<>();
+    for (Node node : found) {
+      NodeImpl copy = new NodeImpl(node.getPath());
+      if (node.getOwner() != null) {
+        copy.setOwner(node.getOwner());
+      }
+      copy.setVisibility(node.getVisibility());
+      for (NodeValue value : node.getValues().values()) {
+        copy.addValue(value);
+      }
+      ret.put(copy.getPath(), copy);
+    }
+    // the children are linked within the unit as searches may not return them
+    for (Node node : found) {
+      Node parent = ret.get(NodeImpl.getParentFromPath(node.getPath()));
+      if (parent != null) {
+        parent.addChild(new NodeImpl(node.getPath(), controller));
+      }
+    }
+    return ret;
+  }
+
+  /* demotes the least recently used units until the hot tier fits its capacity */
+  private void evict() {
+    if (hotWeight <= capacity) {
+      return;
+    }
+    // the access times change concurrently and are copied before sorting
+    List<Map.Entry<String, Long>> units = new ArrayList<>(hot.size());
+    for (Map.Entry<String, Unit> e : hot.entrySet()) {
+      units.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().lastAccess));
+    }
+    units.sort(Map.Entry.comparingByValue());
+    Iterator<Map.Entry<String, Long>> eldest = units.iterator();
+    while (hotWeight > capacity) {
+      demote(eldest.next().getKey());
+    }
+  }
+
+  /* demotes units not accessed within the idle time; scans once per quarter of the idle time */
+  private void demoteIdle(long now) {
+    if (now - nextIdleScan < 0) {
+      return;
+    }
+    nextIdleScan = now + idleNanos / 4;
+    Iterator<Unit> it = hot.values().iterator();
+    while (it.hasNext()) {
+      Unit unit = it.next();
+      if (now - unit.lastAccess >= idleNanos) {
+        hotWeight -= unit.getWeight();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * <p>Updates the hot tier after a write to the cold tier.</p>
+   *
+   * @param moved   the root of a subtree created or removed as a whole or null; all units
+   *                overlapping it are demoted
+   * @param changed the paths of nodes which were added, changed or removed
+   */
+  private void written(String moved, String... changed) {
+    Map<String, Long> reload = new HashMap<>();
+    synchronized (lock) {
+      if (moved != null) {
+        String root = getUnitRoot(moved);
+        if (root == null) {
+          globalVersion++;
+          String prefix = moved + GenericController.PATH_DELIMITER;
+          Iterator<Map.Entry<String, Unit>> it = hot.entrySet().iterator();
+          while (it.hasNext()) {
+            Map.Entry<String, Unit> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+              hotWeight -= e.getValue().getWeight();
+              it.remove();
+            }
+          }
+        } else {
+          versions[stripe(root)]++;
+          demote(root);
+        }
+      }
+      // each unit is changed once by a write
+      Map<String, Long> changedUnits = new HashMap<>();
+      for (String path : changed) {
+        String root = getUnitRoot(path);
+        if (root != null) {
+          Long version = changedUnits.computeIfAbsent(root, r -> ++versions[stripe(r)]);
+          if (hot.containsKey(root)) {
+            reload.put(path, version);
+          }
+        }
+      }
+    }
+    for (Map.Entry<String, Long> e : reload.entrySet()) {
+      String path = e.getKey();
+      String root = getUnitRoot(path);
+      Optional<Node> node = cold.find(path);
+      synchronized (lock) {
+        Unit unit = hot.get(root);
+        if (unit == null) {
+          continue;
+        }
+        if (versions[stripe(root)] != e.getValue()) {
+          // a later write may have been overtaken; reloading the unit is safe
+          demote(root);
+          continue;
+        }
+        hotWeight -= unit.getWeight();
+        if (node.isPresent()) {
+          unit.nodes.put(path, node.get());
+        } else {
+          // the subtree of a removed node is removed with it
+          String prefix = path + GenericController.PATH_DELIMITER;
+          unit.nodes.keySet().removeIf(p -> p.equals(path) || p.startsWith(prefix));
+        }
+        hotWeight += unit.getWeight();
+      }
+    }
+  }
+
+  private void demote(String root) {
+    Unit unit = hot.remove(root);
+    if (unit != null) {
+      hotWeight -= unit.getWeight();
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package ch.fhnw.geiger.localstorage.db.mapper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * <p>A size bounded cache with W-TinyLFU eviction.</p>
+ *
+ * <p>New entries enter a small LRU window. Entries leaving the window compete with the least
+ * recently used entry of the main space for admission: the one accessed more often according
+ * to a {@link FrequencySketch} stays. The main space is a segmented LRU; entries accessed
+ * again while on probation are moved to the protected segment. Bursts of new keys therefore
+ * do not flush the frequently used entries. The cache is not thread safe.</p>
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+final class TinyLfuCache<K, V> {
+
+  private final int windowMax;
+  private final int mainMax;
+  private final int protectedMax;
+  private final FrequencySketch sketch;
+  private final Consumer<K> evicted;
+
+  /* all segments are in access order with the least recently used entry first */
+  private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<K, V> probation = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<K, V> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long evictionCount = 0;
+
+  /**
+   * <p>Creates a cache.</p>
+   *
+   * @param maximumSize the maximum number of entries
+   * @param evicted     called with the key of every entry evicted for size
+   */
+  TinyLfuCache(int maximumSize, Consumer<K> evicted) {
+    windowMax = Math.max(1, maximumSize / 100);
+    mainMax = Math.max(1, maximumSize - windowMax);
+    protectedMax = mainMax * 4 / 5;
+    sketch = new FrequencySketch(maximumSize);
+    this.evicted = evicted;
+  }
+
+  /**
+   * <p>Gets an entry and records the access.</p>
+   *
+   * @param key the key
+   * @return the value or null if the key is not cached
+   */
+  V get(K key) {
+    sketch.increment(key.hashCode());
+    V ret = window.get(key);
+    if (ret != null) {
+      return ret;
+    }
+    ret = protectedSegment.get(key);
+    if (ret != null) {
+      return ret;
+    }
+    ret = probation.remove(key);
+    if (ret != null) {
+      protectedSegment.put(key, ret);
+      if (protectedSegment.size() > protectedMax) {
+        Iterator<Map.Entry<K, V>> eldest = protectedSegment.entrySet().iterator();
+        Map.Entry<K, V> demoted = eldest.next();
+        eldest.remove();
+        probation.put(demoted.getKey(), demoted.getValue());
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * <p>Adds or replaces an entry.</p>
+   *
+   * @param key   the key
+   * @param value the value
+   */
+  void put(K key, V value) {
+    if (window.containsKey(key)) {
+      window.put(key, value);
+    } else if (protectedSegment.containsKey(key)) {
+      protectedSegment.put(key, value);
+    } else if (probation.containsKey(key)) {
+      probation.put(key, value);
+    } else {
+      window.put(key, value);
+      if (window.size() > windowMax) {
+        Iterator<Map.Entry<K, V>> eldest = window.entrySet().iterator();
+        Map.Entry<K, V> candidate = eldest.next();
+        eldest.remove();
+        admit(candidate.getKey(), candidate.getValue());
+      }
+    }
+  }
+
+  /* moves an entry leaving the window into the main space if it beats the main victim */
+  private void admit(K key, V value) {
+    if (probation.size() + protectedSegment.size() < mainMax) {
+      probation.put(key, value);
+      return;
+    }
+    LinkedHashMap<K, V> segment = probation.isEmpty() ? protectedSegment : probation;
+    Iterator<K> eldest = segment.keySet().iterator();
+    K victim = eldest.next();
+    evictionCount++;
+    if (sketch.frequency(key.hashCode()) > sketch.frequency(victim.hashCode())) {
+      eldest.remove();
+      probation.put(key, value);
+      evicted.accept(victim);
+    } else {
+      evicted.accept(key);
+    }
+  }
+
+  /**
+   * <p>Removes an entry.</p>
+   *
+   * @param key the key
+   * @return the removed value or null if the key was not cached
+   */
+  V remove(K key) {
+    V ret = window.remove(key);
+    if (ret == null) {
+      ret = probation.remove(key);
+    }
+    if (ret == null) {
+      ret = protectedSegment.remove(key);
+    }
+    return ret;
+  }
+
+  /**
+   * <p>Removes all entries; the access frequencies are kept.</p>
+   */
+  void clear() {
+    window.clear();
+    probation.clear();
+    protectedSegment.clear();
+  }
+
+  int size() {
+    return window.size() + probation.size() + protectedSegment.size();
+  }
+
+  long getEvictionCount() {
+    return evictionCount;
+  }
+}
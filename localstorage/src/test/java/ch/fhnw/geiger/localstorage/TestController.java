@@ -2,6 +2,7 @@ package ch.fhnw.geiger.localstorage;
 
 import static ch.fhnw.geiger.localstorage.Visibility.RED;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
@@ -162,6 +163,20 @@ public class TestController {
     assertThrows(NullPointerException.class, () -> controller.getValue(removed.getPath(), "key"));
   }
 
+  @Test
+  public void testStorageNodeFind() throws StorageException {
+    controller.add(new NodeImpl("parent1", ""));
+
+    assertEquals(":parent1", controller.find(":parent1").get().getPath());
+    assertFalse(controller.find(":parent2").isPresent());
+
+    // the old API still reports missing nodes by a (stackless) exception
+    NodeNotFoundException e = assertThrows(NodeNotFoundException.class,
+        () -> controller.get(":parent2"));
+    assertEquals(":parent2", e.getPath());
+    assertEquals(0, e.getStackTrace().length);
+  }
+
   @Test
   public void testStorageNodeRemoveWithChild() throws StorageException {
     controller.add(new NodeImpl("parent1", ""));
@@ -178,6 +193,28 @@ public class TestController {
     assertEquals(node, controller.get(":parent1:name1"));
   }
 
+  @Test
+  public void testStorageNodeRemoveRecursive() throws StorageException {
+    controller.add(new NodeImpl("parent1", ""));
+    NodeImpl node = new NodeImpl("name1", ":parent1");
+    node.addValue(new NodeValueImpl("key", "value"));
+    controller.add(node);
+    controller.add(new NodeImpl("child1", ":parent1:name1"));
+    controller.add(new NodeImpl("child2", ":parent1:name1"));
+    controller.add(new NodeImpl("grandchild1", ":parent1:name1:child1"));
+
+    Node removed = controller.delete(":parent1:name1", true);
+
+    // check nodes
+    assertEquals(":parent1:name1", removed.getPath());
+    assertEquals(2, removed.getChildren().size());
+    assertThrows(StorageException.class, () -> controller.get(":parent1:name1"));
+    assertThrows(StorageException.class, () -> controller.get(":parent1:name1:child1"));
+    assertThrows(StorageException.class,
+        () -> controller.get(":parent1:name1:child1:grandchild1"));
+    assertEquals(0, controller.get(":parent1").getChildren().size());
+  }
+
   @Test
   public void testStorageNodeSearch() {
 
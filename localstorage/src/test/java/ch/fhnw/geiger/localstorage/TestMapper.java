@@ -2,19 +2,43 @@ package ch.fhnw.geiger.localstorage;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import ch.fhnw.geiger.localstorage.db.GenericController;
 import ch.fhnw.geiger.localstorage.db.StorageMapper;
+import ch.fhnw.geiger.localstorage.db.data.Field;
 import ch.fhnw.geiger.localstorage.db.data.Node;
 import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
 import ch.fhnw.geiger.localstorage.db.data.NodeValue;
 import ch.fhnw.geiger.localstorage.db.data.NodeValueImpl;
+import ch.fhnw.geiger.localstorage.db.mapper.CachingMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.CoalescingMapper;
 import ch.fhnw.geiger.localstorage.db.mapper.DummyMapper;
 import ch.fhnw.geiger.localstorage.db.mapper.H2SqlMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.LogMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.LsmMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.MemoryMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.OffHeapMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.ShardedMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.SyncPolicy;
+import ch.fhnw.geiger.localstorage.db.mapper.TieredMapper;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Optional;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -35,6 +59,16 @@ public class TestMapper {
   public static void setupClass() {
     // First test impplementation on dummy mapper
     mapperList.add(new DummyMapper());
+    mapperList.add(new MemoryMapper());
+    mapperList.add(new MemoryMapper(new File("./testjournal"), SyncPolicy.NEVER, 0));
+    mapperList.add(new OffHeapMapper());
+    mapperList.add(new LogMapper(new File("./testlog"), 1024 * 1024, 0));
+    mapperList.add(new LsmMapper(new File("./testlsm"), 4096));
+    mapperList.add(new ShardedMapper(Collections.singletonMap(":testNode", new MemoryMapper()),
+        new MemoryMapper(), new OffHeapMapper()));
+    mapperList.add(new TieredMapper(new MemoryMapper(), 2, 1000, 60000, 1));
+    mapperList.add(new CachingMapper(new MemoryMapper(), 64));
+    mapperList.add(new CoalescingMapper(new MemoryMapper()));
     mapperList.add(new H2SqlMapper("jdbc:h2:./testdb;AUTO_SERVER=TRUE", "sa2", "1234"));
   }
 
@@ -49,6 +83,9 @@ public class TestMapper {
       mapper.close();
       new File("./testdb.mv.db").delete();
     }
+    deleteLog(new File("./testlog"));
+    deleteLog(new File("./testlsm"));
+    deleteLog(new File("./testjournal"));
   }
 
   /**
@@ -269,4 +306,1201 @@ public class TestMapper {
       assertEquals("checking for child node count", 1, storedNode.getChildren().size());
     }
   }
+
+  @Test
+  public void testAddRemoveManyChildren() {
+    for (StorageMapper mapper : mapperList) {
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      Node node = new NodeImpl("testNode1", "");
+      NodeValue nv = new NodeValueImpl("key", "value", "type", "description", 1);
+      nv.setValue("Wert", Locale.GERMAN);
+      node.addValue(nv);
+      mapper.add(node);
+      for (int i = 0; i < 100; i++) {
+        mapper.add(new NodeImpl("child" + i, ":testNode1"));
+      }
+      assertEquals("checking for child node count", 100,
+          mapper.get(":testNode1").getChildren().size());
+
+      // the parent must not be touched by adding or removing children
+      for (int i = 0; i < 100; i += 2) {
+        mapper.remove(":testNode1:child" + i);
+      }
+      Node storedNode = mapper.get(":testNode1");
+      assertEquals("checking for child node count", 50, storedNode.getChildren().size());
+      assertTrue("checking for remaining child", storedNode.getChildren().containsKey("child1"));
+      assertFalse("checking for removed child", storedNode.getChildren().containsKey("child0"));
+      assertEquals("comparing parent value", nv, storedNode.getValue("key"));
+      try {
+        mapper.remove(":testNode1");
+        fail("removing a node with children unexpectedly successful");
+      } catch (StorageException e) {
+        // this should fail
+      }
+    }
+  }
+
+  @Test
+  public void testSearch() {
+    for (StorageMapper mapper : mapperList) {
+      if (mapper instanceof DummyMapper) {
+        // the dummy mapper evaluates the criteria loosely
+        continue;
+      }
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      mapper.add(new NodeImpl("testNode1", ""));
+      mapper.add(new NodeImpl("testNode10", ""));
+      for (int i = 0; i < 5; i++) {
+        Node node = new NodeImpl("child" + i, ":testNode1");
+        node.setOwner(i % 2 == 0 ? "even" : "odd");
+        node.addValue(new NodeValueImpl("key", "value" + i, "type" + (i % 2), "description", 1));
+        node.addValue(new NodeValueImpl("other", "other", "type", "description", 1));
+        mapper.add(node);
+      }
+      mapper.add(new NodeImpl("grandchild", ":testNode1:child0"));
+
+      // path selects a node with its subtree
+      SearchCriteria sc = new SearchCriteria();
+      sc.setNodePath(":testNode1");
+      assertEquals("checking subtree search", 7, mapper.search(sc).size());
+      sc.setNodePath(":testNode1:");
+      assertEquals("checking descendants search", 6, mapper.search(sc).size());
+      sc.setNodePath(":testNode1:child0");
+      List<Node> result = mapper.search(sc);
+      assertEquals("checking subtree search", 2, result.size());
+
+      // results are fully materialized
+      for (Node n : result) {
+        if (":testNode1:child0".equals(n.getPath())) {
+          assertEquals("checking values of search result", 2, n.getValues().size());
+          assertEquals("checking children of search result", 1, n.getChildren().size());
+        }
+      }
+
+      // ordinals are matched as regular expressions
+      sc = new SearchCriteria();
+      sc.setNodePath(":testNode1");
+      sc.setNodeOwner("ev.*");
+      assertEquals("checking owner search", 3, mapper.search(sc).size());
+      sc.setNodeOwner("ev");
+      assertEquals("checking owner search matches whole field", 0, mapper.search(sc).size());
+
+      // values are matched within a single value
+      sc = new SearchCriteria();
+      sc.set(Field.TYPE, "type1");
+      assertEquals("checking value type search", 2, mapper.search(sc).size());
+      sc.set(Field.VALUE, "value[0-3]");
+      assertEquals("checking value search", 2, mapper.search(sc).size());
+      sc.setNodeValueKey("other");
+      assertEquals("checking value key search", 0, mapper.search(sc).size());
+    }
+  }
+
+  @Test
+  public void testRenameSubtree() {
+    for (StorageMapper mapper : mapperList) {
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      mapper.add(new NodeImpl("testNode1", ""));
+      mapper.add(new NodeImpl("testNode2", ""));
+      Node node = new NodeImpl("child", ":testNode1");
+      NodeValue nv = new NodeValueImpl("key", "value", "type", "description", 1);
+      nv.setValue("Wert", Locale.GERMAN);
+      nv.setDescription("Beschreibung", Locale.GERMAN);
+      node.addValue(nv);
+      node.setOwner("owner");
+      mapper.add(node);
+      for (int i = 0; i < 10; i++) {
+        Node grandchild = new NodeImpl("grandchild" + i, ":testNode1:child");
+        grandchild.addValue(new NodeValueImpl("key", "value" + i, "type", "description", 1));
+        mapper.add(grandchild);
+      }
+
+      // move the subtree to a new parent and name
+      mapper.rename(":testNode1:child", ":testNode2:moved");
+      Node moved = mapper.get(":testNode2:moved");
+      assertEquals("comparing moved value", nv, moved.getValue("key"));
+      assertEquals("comparing moved owner", "owner", moved.getOwner());
+      assertEquals("checking moved child count", 10, moved.getChildren().size());
+      assertEquals("comparing moved grandchild value", "value7",
+          mapper.getValue(":testNode2:moved:grandchild7", "key").getValue());
+      assertEquals("checking old parent child count", 0,
+          mapper.get(":testNode1").getChildren().size());
+      assertEquals("checking new parent child count", 1,
+          mapper.get(":testNode2").getChildren().size());
+      try {
+        mapper.get(":testNode1:child:grandchild7");
+        fail("renamed node still retrievable at old path");
+      } catch (StorageException e) {
+        // this should fail
+      }
+
+      // moving a node into its own subtree must fail
+      try {
+        mapper.rename(":testNode2", ":testNode2:moved:testNode2");
+        fail("moving a node into its own subtree unexpectedly successful");
+      } catch (StorageException e) {
+        // this should fail
+      }
+    }
+  }
+
+  @Test
+  public void testRemoveSubtree() {
+    for (StorageMapper mapper : mapperList) {
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      mapper.add(new NodeImpl("testNode1", ""));
+      mapper.add(new NodeImpl("testNode10", ""));
+      Node node = new NodeImpl("child", ":testNode1");
+      node.addValue(new NodeValueImpl("key", "value", "type", "description", 1));
+      mapper.add(node);
+      for (int i = 0; i < 10; i++) {
+        Node grandchild = new NodeImpl("grandchild" + i, ":testNode1:child");
+        NodeValue nv = new NodeValueImpl("key", "value" + i, "type", "description", 1);
+        nv.setValue("Wert", Locale.GERMAN);
+        grandchild.addValue(nv);
+        mapper.add(grandchild);
+      }
+      try {
+        mapper.remove(":testNode1:child", false);
+        fail("removing a node with children unexpectedly successful");
+      } catch (StorageException e) {
+        // this should fail
+      }
+
+      Node removed = mapper.remove(":testNode1:child", true);
+      assertEquals("checking removed node", ":testNode1:child", removed.getPath());
+      assertEquals("checking parent child count", 0,
+          mapper.get(":testNode1").getChildren().size());
+      for (String path : new String[]{":testNode1:child", ":testNode1:child:grandchild7"}) {
+        try {
+          mapper.get(path);
+          fail("removed node " + path + " still retrievable");
+        } catch (StorageException e) {
+          // this should fail
+        }
+      }
+
+      // nodes sharing the path prefix outside the subtree are kept
+      mapper.remove(":testNode1", true);
+      mapper.get(":testNode10");
+    }
+  }
+
+  @Test
+  public void testExists() {
+    for (StorageMapper mapper : mapperList) {
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      Node node = new NodeImpl("testNode1", "");
+      node.addValue(new NodeValueImpl("key", "value", "type", "description", 1));
+      mapper.add(node);
+
+      assertTrue("checking existing node", mapper.exists(":testNode1"));
+      assertFalse("checking missing node", mapper.exists(":testNode2"));
+      assertFalse("checking node sharing a path prefix", mapper.exists(":testNode"));
+      assertTrue("checking existing value", mapper.existsValue(":testNode1", "key"));
+      assertFalse("checking missing value", mapper.existsValue(":testNode1", "key2"));
+      assertFalse("checking value of missing node", mapper.existsValue(":testNode2", "key"));
+      assertTrue("finding existing node", mapper.find(":testNode1").isPresent());
+      assertFalse("finding missing node", mapper.find(":testNode2").isPresent());
+      try {
+        mapper.get(":testNode2");
+        fail("getting a missing node unexpectedly successful");
+      } catch (NodeNotFoundException e) {
+        assertEquals("checking path of missing node", ":testNode2", e.getPath());
+      }
+
+      mapper.remove(":testNode1");
+      assertFalse("checking removed node", mapper.exists(":testNode1"));
+      assertFalse("checking value of removed node", mapper.existsValue(":testNode1", "key"));
+    }
+  }
+
+  @Test
+  public void testUpdateDiff() {
+    for (StorageMapper mapper : mapperList) {
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      Node node = new NodeImpl("testNode1", "");
+      for (int i = 0; i < 3; i++) {
+        NodeValue nv = new NodeValueImpl("key" + i, "value" + i, "type", "description", 1);
+        nv.setValue("Wert" + i, Locale.GERMAN);
+        nv.setValue("valeur" + i, Locale.FRENCH);
+        node.addValue(nv);
+      }
+      mapper.add(node);
+
+      // change a translation, drop a translation, drop a value and add a value
+      node = mapper.get(":testNode1");
+      NodeValue nv = node.getValue("key0");
+      nv.setValue("Wert", Locale.GERMAN);
+      node.updateValue(nv);
+      nv = new NodeValueImpl("key1", "value1", "type", "description", 1);
+      nv.setValue("Wert1", Locale.GERMAN);
+      node.updateValue(nv);
+      node.removeValue("key2");
+      node.addValue(new NodeValueImpl("key3", "value3"));
+      mapper.update(node);
+
+      Node storedNode = mapper.get(":testNode1");
+      assertEquals("checking value count", 3, storedNode.getValues().size());
+      assertEquals("checking changed translation", "Wert",
+          storedNode.getValue("key0").getValue("de"));
+      assertEquals("checking unchanged translation", "valeur0",
+          storedNode.getValue("key0").getValue("fr"));
+      assertFalse("checking removed translation",
+          storedNode.getValue("key1").getAllValueTranslations().containsKey(Locale.FRENCH));
+      assertEquals("checking added value", "value3", storedNode.getValue("key3").getValue());
+
+      if (mapper instanceof H2SqlMapper) {
+        // an unchanged node is checked by a single read and not written at all
+        final H2SqlMapper h2mapper = (H2SqlMapper) mapper;
+        long statements = h2mapper.getStatementCacheHits() + h2mapper.getStatementCacheMisses();
+        mapper.update(storedNode);
+        assertEquals("unchanged node caused writes", statements + 1,
+            h2mapper.getStatementCacheHits() + h2mapper.getStatementCacheMisses());
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentGet() throws Exception {
+    for (StorageMapper mapper : mapperList) {
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      Node node = new NodeImpl("testNode1", "");
+      node.addValue(new NodeValueImpl("key", "value", "type", "description", 1));
+      mapper.add(node);
+      for (int i = 0; i < 10; i++) {
+        mapper.add(new NodeImpl("child" + i, ":testNode1"));
+      }
+
+      // read the same nodes from several threads at once
+      final List<Throwable> errors = new Vector<>();
+      Thread[] readers = new Thread[8];
+      for (int t = 0; t < readers.length; t++) {
+        readers[t] = new Thread(() -> {
+          try {
+            for (int i = 0; i < 50; i++) {
+              Node storedNode = mapper.get(":testNode1");
+              assertEquals("checking for child node count", 10,
+                  storedNode.getChildren().size());
+              assertEquals("comparing concurrently read value", "value",
+                  mapper.getValue(":testNode1", "key").getValue());
+              mapper.get(":testNode1:child" + (i % 10));
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        });
+        readers[t].start();
+      }
+      for (Thread t : readers) {
+        t.join();
+      }
+      assertEquals("errors while reading concurrently " + errors, 0, errors.size());
+    }
+  }
+
+  @Test
+  public void testConcurrentWrite() throws Exception {
+    for (StorageMapper mapper : mapperList) {
+      if (!(mapper instanceof MemoryMapper || mapper instanceof OffHeapMapper
+          || mapper instanceof LogMapper || mapper instanceof LsmMapper)) {
+        continue;
+      }
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+
+      // each writer works in its own subtree while the others read it
+      final List<Throwable> errors = new Vector<>();
+      Thread[] writers = new Thread[8];
+      for (int t = 0; t < writers.length; t++) {
+        final String root = ":testNode" + t;
+        final String other = ":testNode" + ((t + 1) % writers.length);
+        writers[t] = new Thread(() -> {
+          try {
+            mapper.add(new NodeImpl(root));
+            for (int i = 0; i < 50; i++) {
+              Node node = new NodeImpl(root + ":child" + i);
+              node.addValue(new NodeValueImpl("key", "value" + i));
+              mapper.add(node);
+              mapper.add(new NodeImpl(root + ":child" + i + ":grandchild"));
+              mapper.find(other + ":child" + i).ifPresent(n -> {
+                // a node is never seen without its value
+                assertEquals("checking value of concurrently written node", 1,
+                    n.getValues().size());
+              });
+            }
+            mapper.rename(root + ":child0", root + ":moved");
+            mapper.remove(root + ":child1", true);
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        });
+        writers[t].start();
+      }
+      for (Thread t : writers) {
+        t.join();
+      }
+      assertEquals("errors while writing concurrently " + errors, 0, errors.size());
+      for (int t = 0; t < writers.length; t++) {
+        assertEquals("checking child count", 49,
+            mapper.get(":testNode" + t).getChildren().size());
+        assertEquals("checking moved node", 1,
+            mapper.get(":testNode" + t + ":moved").getChildren().size());
+        assertFalse("checking removed subtree",
+            mapper.exists(":testNode" + t + ":child1:grandchild"));
+      }
+    }
+  }
+
+  @Test
+  public void testSnapshot() {
+    for (StorageMapper mapper : mapperList) {
+      if (!(mapper instanceof MemoryMapper)) {
+        continue;
+      }
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      // ":Aa" and ":BB" share their hash code
+      for (String path : new String[]{":Aa", ":BB"}) {
+        Node node = new NodeImpl(path);
+        node.addValue(new NodeValueImpl("key", "value"));
+        mapper.add(node);
+        for (int i = 0; i < 1000; i++) {
+          mapper.add(new NodeImpl(path + ":child" + i));
+        }
+      }
+      MemoryMapper snapshot = ((MemoryMapper) mapper).snapshot();
+
+      // changes of the mapper are not visible in the snapshot
+      Node node = mapper.get(":Aa");
+      node.updateValue(new NodeValueImpl("key", "changed"));
+      mapper.update(node);
+      mapper.rename(":BB", ":Cc");
+      for (int i = 0; i < 1000; i += 2) {
+        mapper.remove(":Aa:child" + i);
+      }
+      assertEquals("checking changed value", "changed", mapper.getValue(":Aa", "key").getValue());
+      assertEquals("checking child count", 500, mapper.get(":Aa").getChildren().size());
+      assertFalse("checking renamed node", mapper.exists(":BB:child7"));
+      assertTrue("checking renamed node", mapper.exists(":Cc:child7"));
+      assertEquals("checking snapshot value", "value", snapshot.getValue(":Aa", "key").getValue());
+      assertEquals("checking snapshot child count", 1000,
+          snapshot.get(":Aa").getChildren().size());
+      assertTrue("checking snapshot node", snapshot.exists(":BB:child7"));
+      assertFalse("checking snapshot node", snapshot.exists(":Cc"));
+
+      // changes of the snapshot are not visible in the mapper
+      snapshot.remove(":BB", true);
+      assertEquals("checking snapshot node count", 1001, snapshot.search(new SearchCriteria())
+          .size());
+      assertEquals("checking node count", 1502, mapper.search(new SearchCriteria()).size());
+    }
+  }
+
+  @Test
+  public void testStatementCache() {
+    for (StorageMapper mapper : mapperList) {
+      if (!(mapper instanceof H2SqlMapper)) {
+        continue;
+      }
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      final H2SqlMapper h2mapper = (H2SqlMapper) mapper;
+      Node node = new NodeImpl("testNode1", "");
+      node.addValue(new NodeValueImpl("key", "value", "type", "description", 1));
+      mapper.add(node);
+
+      // warm up the statement cache
+      mapper.get(":testNode1");
+      long misses = h2mapper.getStatementCacheMisses();
+      long hits = h2mapper.getStatementCacheHits();
+
+      // further reads on the same thread must not prepare statements again
+      for (int i = 0; i < 10; i++) {
+        mapper.get(":testNode1");
+      }
+      assertEquals("statements were prepared again", misses, h2mapper.getStatementCacheMisses());
+      assertTrue("statement cache was not used", h2mapper.getStatementCacheHits() > hits);
+    }
+  }
+
+  @Test
+  public void testFailedAddIsRolledBack() {
+    for (StorageMapper mapper : mapperList) {
+      if (!(mapper instanceof H2SqlMapper)) {
+        continue;
+      }
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      mapper.add(new NodeImpl("testNode1", ""));
+
+      // the value key exceeds the column size; the value insert fails after the node insert
+      Node node = new NodeImpl("testNode1a", ":testNode1");
+      StringBuilder key = new StringBuilder();
+      while (key.length() <= 40) {
+        key.append("key");
+      }
+      node.addValue(new NodeValueImpl(key.toString(), "value", "type", "description", 1));
+      try {
+        mapper.add(node);
+        fail("adding a value with an oversized key unexpectedly successful");
+      } catch (StorageException e) {
+        // this should fail
+      }
+
+      // neither the node nor the reference in the parent may persist
+      try {
+        mapper.get(":testNode1:testNode1a");
+        fail("partially added node was retrievable");
+      } catch (StorageException e) {
+        // this should fail
+      }
+      assertEquals("checking for child node count", 0,
+          mapper.get(":testNode1").getChildren().size());
+    }
+  }
+
+  @Test
+  public void testPathFilter() {
+    for (StorageMapper mapper : mapperList) {
+      if (!(mapper instanceof H2SqlMapper)) {
+        continue;
+      }
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      final H2SqlMapper h2mapper = (H2SqlMapper) mapper;
+      h2mapper.setPathFilter(true);
+
+      // enough nodes to rebuild the filter; no added node may be reported missing
+      mapper.add(new NodeImpl("testNode1", ""));
+      for (int i = 0; i < 1500; i++) {
+        mapper.add(new NodeImpl("child" + i, ":testNode1"));
+      }
+      for (int i = 0; i < 1500; i++) {
+        assertTrue("added node reported missing", mapper.exists(":testNode1:child" + i));
+      }
+
+      // most missing nodes are answered by the filter
+      long filtered = h2mapper.getFilteredLookups();
+      for (int i = 0; i < 1000; i++) {
+        assertFalse("missing node reported", mapper.exists(":testNode1:missing" + i));
+        assertFalse("missing node found", mapper.find(":testNode2:child" + i).isPresent());
+      }
+      assertTrue("filter not used", h2mapper.getFilteredLookups() - filtered > 1800);
+
+      // moved nodes are found at their new path
+      mapper.rename(":testNode1", ":testNode2");
+      assertTrue("moved node reported missing", mapper.exists(":testNode2"));
+      assertTrue("moved node reported missing", mapper.exists(":testNode2:child1499"));
+      assertFalse("removed node reported", mapper.exists(":testNode1:child1499"));
+      mapper.remove(":testNode2", true);
+      assertFalse("removed node reported", mapper.exists(":testNode2"));
+      h2mapper.setPathFilter(false);
+    }
+
+    // the filter is disabled by default; nodes added by another mapper are found
+    String url = "jdbc:h2:./testpathfilter";
+    H2SqlMapper mapper = new H2SqlMapper(url, "sa2", "1234");
+    try {
+      mapper.zap();
+      assertFalse("missing node reported", mapper.exists(":testNode1"));
+      H2SqlMapper other = new H2SqlMapper(url, "sa2", "1234");
+      other.add(new NodeImpl("testNode1", ""));
+      other.add(new NodeImpl("child", ":testNode1"));
+      assertTrue("node of other mapper reported missing", mapper.exists(":testNode1:child"));
+      assertEquals("disabled filter used", 0, mapper.getFilteredLookups());
+      // closing a mapper shuts down the database shared by both
+      mapper.close();
+
+      // the filter is built from the stored nodes when enabled
+      mapper = new H2SqlMapper(url, "sa2", "1234");
+      mapper.setPathFilter(true);
+      assertTrue("stored node reported missing", mapper.exists(":testNode1:child"));
+      long filtered = mapper.getFilteredLookups();
+      assertFalse("missing node reported", mapper.exists(":testNode1:missing"));
+      assertEquals("filter not used", filtered + 1, mapper.getFilteredLookups());
+    } finally {
+      mapper.close();
+      new File("./testpathfilter.mv.db").delete();
+    }
+  }
+
+  @Test
+  public void testSchemaMigration() throws Exception {
+    // a database as written before schema versions were recorded
+    String url = "jdbc:h2:mem:testmigration";
+    try (Connection conn = DriverManager.getConnection(url, "sa2", "1234");
+         Statement st = conn.createStatement()) {
+      st.executeUpdate(""
+          + "CREATE TABLE storage_node (path VARCHAR(1024) NULL PRIMARY KEY, "
+          + "owner VARCHAR(40), name VARCHAR(40) NOT NULL, "
+          + "visibility ENUM('RED', 'AMBER', 'GREEN', 'WHITE') NOT NULL, "
+          + "children VARCHAR(1024) NULL);"
+          + "CREATE TABLE node_value (path VARCHAR(1024) NOT NULL, key VARCHAR(40) NOT NULL, "
+          + "value VARCHAR(16384), type VARCHAR(40), locale VARCHAR(10) NOT NULL, "
+          + "last_modified VARCHAR(20) NOT NULL);"
+          + "CREATE TABLE translation (path VARCHAR(1024) NOT NULL, key VARCHAR(40) NOT NULL, "
+          + "identifier ENUM('VALUE', 'DESCRIPTION') NOT NULL, locale VARCHAR(10) NOT NULL, "
+          + "translation VARCHAR(1024) NOT NULL);"
+          + "ALTER TABLE node_value ADD CONSTRAINT node_value_pk PRIMARY KEY(path,key);"
+          + "ALTER TABLE node_value ADD FOREIGN KEY(path) REFERENCES storage_node(path);"
+          + "ALTER TABLE translation ADD CONSTRAINT translation_pk "
+          + "PRIMARY KEY(path, key, identifier, locale);"
+          + "ALTER TABLE translation ADD FOREIGN KEY(path, key) "
+          + "REFERENCES node_value(path,key);");
+      st.executeUpdate("INSERT INTO storage_node VALUES "
+          + "(':A', 'owner', 'A', 'RED', 'B,C'), "
+          + "(':A:B', NULL, 'B', 'AMBER', 'D'), "
+          + "(':A:C', NULL, 'C', 'RED', ''), "
+          + "(':A:B:D', NULL, 'D', 'GREEN', '')");
+      st.executeUpdate("INSERT INTO node_value VALUES "
+          + "(':A:B', 'key', 'value', 'type', 'en', '1'), "
+          + "(':A:B:D', 'key', 'nested', NULL, 'en', '2')");
+      st.executeUpdate("INSERT INTO translation VALUES "
+          + "(':A:B', 'key', 'VALUE', 'en', 'value'), "
+          + "(':A:B', 'key', 'VALUE', 'de', 'Wert'), "
+          + "(':A:B:D', 'key', 'VALUE', 'en', 'nested')");
+
+      // opening the database upgrades it to the current schema
+      H2SqlMapper mapper = new H2SqlMapper(url, "sa2", "1234");
+      try {
+        try (ResultSet rs = st.executeQuery("SELECT MAX(version) FROM schema_version")) {
+          rs.next();
+          assertEquals("checking schema version", H2SqlMapper.SCHEMA_VERSION, rs.getInt(1));
+        }
+        assertEquals("checking owner", "owner", mapper.get(":A").getOwner());
+        assertEquals("checking top level children", 2, mapper.get(":A").getChildren().size());
+        assertEquals("checking nested children", "D", mapper.get(":A:B").getChildNodesCsv());
+        assertEquals("checking leaf children", "", mapper.get(":A:B:D").getChildNodesCsv());
+        assertEquals("checking visibility", Visibility.AMBER, mapper.get(":A:B").getVisibility());
+        assertEquals("checking value", "value", mapper.getValue(":A:B", "key").getValue());
+        assertEquals("checking translation", "Wert",
+            mapper.getValue(":A:B", "key").getValue("de"));
+        assertEquals("checking nested value", "nested",
+            mapper.getValue(":A:B:D", "key").getValue());
+
+        // the migrated relation is maintained by later writes
+        mapper.rename(":A:B", ":A:E");
+        assertEquals("checking renamed children", "D", mapper.get(":A:E").getChildNodesCsv());
+        assertEquals("checking renamed value", "nested",
+            mapper.getValue(":A:E:D", "key").getValue());
+        mapper.remove(":A:C");
+        assertEquals("checking remaining children", "E", mapper.get(":A").getChildNodesCsv());
+        mapper.remove(":A", true);
+        assertFalse("checking recursive remove", mapper.exists(":A:E:D"));
+      } finally {
+        mapper.close();
+      }
+    }
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    for (StorageMapper mapper : mapperList) {
+      if (!(mapper instanceof H2SqlMapper)) {
+        continue;
+      }
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      final H2SqlMapper h2mapper = (H2SqlMapper) mapper;
+      h2mapper.setGroupCommit(true, 1);
+      try {
+        // write from several threads at once
+        final List<Throwable> errors = new Vector<>();
+        Thread[] writers = new Thread[8];
+        for (int t = 0; t < writers.length; t++) {
+          final int writer = t;
+          writers[t] = new Thread(() -> {
+            try {
+              for (int i = 0; i < 10; i++) {
+                Node node = new NodeImpl("node" + writer + "x" + i, "");
+                node.addValue(new NodeValueImpl("key", "value" + i, "type", "description", 1));
+                mapper.add(node);
+                // committed changes must be visible to readers once add returns
+                assertEquals("comparing value written with group commit", "value" + i,
+                    mapper.getValue(":node" + writer + "x" + i, "key").getValue());
+              }
+            } catch (Throwable e) {
+              errors.add(e);
+            }
+          });
+          writers[t].start();
+        }
+        for (Thread t : writers) {
+          t.join();
+        }
+        assertEquals("errors while writing concurrently " + errors, 0, errors.size());
+
+        // a failing operation must only roll back its own changes
+        try {
+          mapper.add(new NodeImpl("node0x0", ""));
+          fail("duplicate adding unexpectedly successful");
+        } catch (StorageException e) {
+          // this should fail
+        }
+      } finally {
+        h2mapper.setGroupCommit(false, 0);
+      }
+      for (int t = 0; t < 8; t++) {
+        for (int i = 0; i < 10; i++) {
+          assertEquals("comparing value after group commit", "value" + i,
+              mapper.getValue(":node" + t + "x" + i, "key").getValue());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testOffHeapChurn() {
+    for (StorageMapper mapper : mapperList) {
+      if (!(mapper instanceof OffHeapMapper)) {
+        continue;
+      }
+      System.out.println("## Testing mapper " + mapper + " in " + (new Object() {
+      }).getClass().getEnclosingMethod().getName());
+      // enough nodes to grow the index and the child list several times
+      mapper.add(new NodeImpl(":testNode"));
+      for (int i = 0; i < 5000; i++) {
+        Node node = new NodeImpl(":testNode:child" + i);
+        NodeValue value = new NodeValueImpl("key", "value" + i, "type", "description", 0);
+        value.setValue("Wert" + i, Locale.GERMAN);
+        value.setDescription("Beschreibung", Locale.GERMAN);
+        node.addValue(value);
+        mapper.add(node);
+      }
+      for (int i = 0; i < 5000; i += 2) {
+        mapper.remove(":testNode:child" + i);
+      }
+      mapper.rename(":testNode", ":renamed");
+      assertEquals("checking child count", 2500, mapper.get(":renamed").getChildren().size());
+      for (int i = 0; i < 5000; i++) {
+        assertFalse("checking old path", mapper.exists(":testNode:child" + i));
+        assertEquals("checking remaining node", i % 2 == 1,
+            mapper.exists(":renamed:child" + i));
+      }
+      NodeValue value = mapper.getValue(":renamed:child4711", "key");
+      assertEquals("checking value", "value4711", value.getValue());
+      assertEquals("checking translation", "Wert4711", value.getValue("de"));
+      assertEquals("checking type", "type", value.getType());
+      assertEquals("checking description", "description", value.getDescription());
+      assertEquals("checking translated description", "Beschreibung",
+          value.getDescription("de"));
+      mapper.remove(":renamed", true);
+      assertFalse("checking removed subtree", mapper.exists(":renamed:child1"));
+    }
+  }
+
+  private static void deleteLog(File directory) {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testLogRecovery() {
+    File directory = new File("./testlog-recovery");
+    deleteLog(directory);
+    LogMapper mapper = new LogMapper(directory, 16 * 1024, 0);
+    mapper.add(new NodeImpl(":testNode"));
+    for (int i = 0; i < 500; i++) {
+      Node node = new NodeImpl(":testNode:child" + i);
+      node.addValue(new NodeValueImpl("key", "value" + i));
+      mapper.add(node);
+    }
+    mapper.rename(":testNode:child0", ":testNode:renamed");
+    mapper.remove(":testNode:child1");
+    Node node = mapper.get(":testNode:child2");
+    node.updateValue(new NodeValueImpl("key", "updated"));
+    mapper.update(node);
+    assertTrue("checking segment roll over", mapper.getSegmentCount() > 1);
+    mapper.close();
+
+    // the index is rebuilt from the log
+    mapper = new LogMapper(directory, 16 * 1024, 0);
+    assertEquals("checking child count", 499, mapper.get(":testNode").getChildren().size());
+    assertTrue("checking renamed node", mapper.exists(":testNode:renamed"));
+    assertFalse("checking removed node", mapper.exists(":testNode:child1"));
+    assertEquals("checking updated value", "updated",
+        mapper.getValue(":testNode:child2", "key").getValue());
+    assertEquals("checking value", "value499",
+        mapper.getValue(":testNode:child499", "key").getValue());
+    mapper.close();
+    deleteLog(directory);
+  }
+
+  @Test
+  public void testLogCompaction() {
+    File directory = new File("./testlog-compaction");
+    deleteLog(directory);
+    LogMapper mapper = new LogMapper(directory, 64 * 1024, 0);
+    mapper.add(new NodeImpl(":testNode"));
+    for (int i = 0; i < 20; i++) {
+      mapper.add(new NodeImpl(":testNode:child" + i));
+    }
+    // overwrite the same nodes until the log spans many segments
+    for (int round = 0; round < 200; round++) {
+      for (int i = 0; i < 20; i++) {
+        Node node = new NodeImpl(":testNode:child" + i);
+        node.addValue(new NodeValueImpl("key", "value" + round));
+        mapper.update(node);
+      }
+    }
+    int before = mapper.getSegmentCount();
+    mapper.compact();
+    assertTrue("checking reclaimed segments", mapper.getSegmentCount() < before);
+    assertEquals("checking value", "value199",
+        mapper.getValue(":testNode:child7", "key").getValue());
+    mapper.close();
+
+    mapper = new LogMapper(directory, 64 * 1024, 0);
+    assertEquals("checking child count", 20, mapper.get(":testNode").getChildren().size());
+    assertEquals("checking value after recovery", "value199",
+        mapper.getValue(":testNode:child7", "key").getValue());
+    mapper.close();
+    deleteLog(directory);
+  }
+
+  @Test
+  public void testLsmCompaction() {
+    File directory = new File("./testlsm-compaction");
+    deleteLog(directory);
+    // a small memtable forces many flushes and compactions into deeper levels
+    LsmMapper mapper = new LsmMapper(directory, 2048);
+    mapper.add(new NodeImpl(":testNode"));
+    for (int i = 0; i < 1000; i++) {
+      mapper.add(new NodeImpl(":testNode:child" + i));
+      mapper.add(new NodeImpl(":testNode:child" + i + ":grandchild"));
+    }
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 1000; i++) {
+        Node node = new NodeImpl(":testNode:child" + i);
+        node.addValue(new NodeValueImpl("key", "value" + round));
+        mapper.update(node);
+      }
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      mapper.remove(":testNode:child" + i, true);
+    }
+    mapper.rename(":testNode:child1", ":testNode:renamed");
+    mapper.close();
+
+    mapper = new LsmMapper(directory, 2048);
+    assertEquals("checking child count", 500, mapper.get(":testNode").getChildren().size());
+    assertFalse("checking removed node", mapper.exists(":testNode:child2"));
+    assertFalse("checking removed subtree", mapper.exists(":testNode:child2:grandchild"));
+    assertTrue("checking renamed subtree", mapper.exists(":testNode:renamed:grandchild"));
+    assertEquals("checking value", "value2",
+        mapper.getValue(":testNode:child999", "key").getValue());
+    SearchCriteria sc = new SearchCriteria();
+    sc.setNodePath(":testNode:child3");
+    assertEquals("checking subtree search", 2, mapper.search(sc).size());
+    mapper.close();
+    deleteLog(directory);
+  }
+
+  @Test
+  public void testMemoryJournalRecovery() throws IOException {
+    File directory = new File("./testjournal-recovery");
+    deleteLog(directory);
+    MemoryMapper mapper = new MemoryMapper(directory, SyncPolicy.ALWAYS, 0);
+    mapper.add(new NodeImpl(":testNode"));
+    for (int i = 0; i < 100; i++) {
+      Node node = new NodeImpl(":testNode:child" + i);
+      node.addValue(new NodeValueImpl("key", "value" + i));
+      mapper.add(node);
+      mapper.add(new NodeImpl(":testNode:child" + i + ":grandchild"));
+    }
+    mapper.checkpoint();
+    // changes after the checkpoint are recovered from the log
+    mapper.rename(":testNode:child0", ":testNode:renamed");
+    mapper.remove(":testNode:child1", true);
+    Node node = mapper.get(":testNode:child2");
+    node.updateValue(new NodeValueImpl("key", "updated"));
+    mapper.update(node);
+    mapper.add(new NodeImpl(":other"));
+    mapper.close();
+
+    // a torn record at the end of the log is dropped
+    File[] logs = directory.listFiles((dir, name) -> name.endsWith(".log"));
+    assertEquals("checking log count", 1, logs.length);
+    try (FileOutputStream out = new FileOutputStream(logs[0], true)) {
+      out.write(new byte[] {0, 0, 1, 0, 1, 2, 3});
+    }
+
+    mapper = new MemoryMapper(directory, SyncPolicy.ALWAYS, 0);
+    assertEquals("checking child count", 99, mapper.get(":testNode").getChildren().size());
+    assertTrue("checking renamed node", mapper.exists(":testNode:renamed:grandchild"));
+    assertFalse("checking moved node", mapper.exists(":testNode:child0"));
+    assertFalse("checking removed node", mapper.exists(":testNode:child1:grandchild"));
+    assertEquals("checking updated value", "updated",
+        mapper.getValue(":testNode:child2", "key").getValue());
+    assertEquals("checking value", "value0",
+        mapper.getValue(":testNode:renamed", "key").getValue());
+    assertTrue("checking new top level node", mapper.exists(":other"));
+    mapper.add(new NodeImpl(":testNode:child1"));
+    mapper.checkpoint();
+    mapper.close();
+
+    // the second checkpoint replaces all older files
+    assertEquals("checking journal files", 2, directory.listFiles().length);
+    mapper = new MemoryMapper(directory, SyncPolicy.ALWAYS, 0);
+    assertEquals("checking node count", 201, mapper.search(new SearchCriteria()).size());
+    assertTrue("checking recreated node", mapper.exists(":testNode:child1"));
+    mapper.zap();
+    mapper.close();
+    mapper = new MemoryMapper(directory, SyncPolicy.ALWAYS, 0);
+    assertFalse("checking zapped node", mapper.exists(":testNode"));
+    mapper.close();
+    deleteLog(directory);
+  }
+
+  @Test
+  public void testMemoryJournalRootNode() {
+    File directory = new File("./testjournal-root");
+    deleteLog(directory);
+    MemoryMapper mapper = new MemoryMapper(directory, SyncPolicy.ALWAYS, 0);
+    Node root = new NodeImpl("");
+    root.addValue(new NodeValueImpl("key", "rootValue"));
+    mapper.add(root);
+    mapper.add(new NodeImpl(":testNode"));
+    mapper.checkpoint();
+    mapper.close();
+
+    // the root node is recovered from the snapshot
+    mapper = new MemoryMapper(directory, SyncPolicy.ALWAYS, 0);
+    assertTrue("checking root node", mapper.exists(""));
+    assertEquals("checking root value", "rootValue",
+        mapper.get("").getValue("key").getValue());
+    assertTrue("checking top level node", mapper.exists(":testNode"));
+    // the controller finds the root node and does not create it again
+    new GenericController("theOwner", mapper);
+    assertEquals("checking root value after init", "rootValue",
+        mapper.get("").getValue("key").getValue());
+    mapper.close();
+    deleteLog(directory);
+  }
+
+  @Test
+  public void testMemoryJournalFailedWrite() {
+    File directory = new File("./testjournal-failed");
+    deleteLog(directory);
+    MemoryMapper mapper = new MemoryMapper(directory, SyncPolicy.ALWAYS, 0);
+    mapper.add(new NodeImpl(":testNode"));
+    mapper.close();
+    // a change which cannot be logged is not applied
+    try {
+      mapper.add(new NodeImpl(":testNode:child"));
+      fail("write to closed journal succeeded");
+    } catch (StorageException e) {
+      // expected
+    }
+    assertFalse("checking unlogged node", mapper.exists(":testNode:child"));
+    assertTrue("checking child list", mapper.get(":testNode").getChildren().isEmpty());
+    deleteLog(directory);
+  }
+
+  @Test
+  public void testShardedMapper() {
+    StorageMapper devices = new MemoryMapper();
+    StorageMapper[] shards = {new MemoryMapper(), new MemoryMapper()};
+    ShardedMapper mapper = new ShardedMapper(Collections.singletonMap(":Devices", devices),
+        shards);
+    assertEquals("checking shard count", 3, mapper.getShards().size());
+    mapper.add(new NodeImpl(":Devices"));
+    for (int i = 0; i < 20; i++) {
+      mapper.add(new NodeImpl(":Top" + i));
+      Node node = new NodeImpl(":Top" + i + ":child");
+      node.addValue(new NodeValueImpl("key", "value" + i));
+      mapper.add(node);
+    }
+    // subtrees stay within the shard of their top level node
+    assertTrue("checking routed node", devices.exists(":Devices"));
+    int routed = 0;
+    for (int i = 0; i < 20; i++) {
+      StorageMapper shard = mapper.getShard(":Top" + i);
+      assertTrue("checking default shard", shard == shards[0] || shard == shards[1]);
+      assertTrue("checking child in shard of parent", shard.exists(":Top" + i + ":child"));
+      routed += shard == shards[0] ? 1 : 0;
+    }
+    assertTrue("checking distribution", routed > 0 && routed < 20);
+
+    // searches span all shards
+    assertEquals("checking node count", 41, mapper.search(new SearchCriteria()).size());
+    SearchCriteria sc = new SearchCriteria();
+    sc.set(Field.PATH, ":Top3");
+    assertEquals("checking subtree search", 2, mapper.search(sc).size());
+
+    // a move to another shard copies the subtree
+    String from = null;
+    for (int i = 0; i < 20 && from == null; i++) {
+      if (mapper.getShard(":Top" + i) != devices) {
+        from = ":Top" + i;
+      }
+    }
+    mapper.rename(from, ":Devices:moved");
+    assertFalse("checking moved node", mapper.exists(from));
+    assertTrue("checking moved child", devices.exists(":Devices:moved:child"));
+    assertEquals("checking moved value", from.replace(":Top", "value"),
+        mapper.getValue(":Devices:moved:child", "key").getValue());
+    assertEquals("checking node count after move", 41,
+        mapper.search(new SearchCriteria()).size());
+    mapper.close();
+  }
+
+  @Test
+  public void testTieredMapper() throws Exception {
+    MemoryMapper cold = new MemoryMapper();
+    TieredMapper mapper = new TieredMapper(cold, 2, 50, 200, 2);
+    mapper.add(new NodeImpl(":Devices"));
+    for (int i = 0; i < 10; i++) {
+      mapper.add(new NodeImpl(":Devices:device" + i));
+      Node node = new NodeImpl(":Devices:device" + i + ":sensor");
+      node.addValue(new NodeValueImpl("key", "value" + i));
+      mapper.add(node);
+    }
+
+    // a unit is promoted on its second access
+    mapper.get(":Devices:device1:sensor");
+    assertFalse("checking admission", mapper.isHot(":Devices:device1"));
+    mapper.get(":Devices:device1");
+    assertTrue("checking promotion", mapper.isHot(":Devices:device1:sensor"));
+    assertFalse("checking node above units", mapper.isHot(":Devices"));
+    assertEquals("checking hot value", "value1",
+        mapper.getValue(":Devices:device1:sensor", "key").getValue());
+    assertEquals("checking hot children", 1, mapper.get(":Devices:device1").getChildren().size());
+    assertFalse("checking hot negative lookup", mapper.exists(":Devices:device1:other"));
+
+    // writes go through and keep the hot unit consistent
+    Node node = mapper.get(":Devices:device1:sensor");
+    node.updateValue(new NodeValueImpl("key", "updated"));
+    mapper.update(node);
+    mapper.add(new NodeImpl(":Devices:device1:other"));
+    assertTrue("checking unit stays hot", mapper.isHot(":Devices:device1"));
+    assertEquals("checking written through", "updated",
+        cold.getValue(":Devices:device1:sensor", "key").getValue());
+    assertEquals("checking hot update", "updated",
+        mapper.getValue(":Devices:device1:sensor", "key").getValue());
+    assertEquals("checking hot add", 2, mapper.get(":Devices:device1").getChildren().size());
+    SearchCriteria sc = new SearchCriteria();
+    sc.setNodePath(":Devices:device1:");
+    assertEquals("checking hot search", 2, mapper.search(sc).size());
+    mapper.remove(":Devices:device1:other");
+    assertFalse("checking hot remove", mapper.exists(":Devices:device1:other"));
+
+    // a move into a hot unit demotes it
+    mapper.get(":Devices:device2");
+    mapper.get(":Devices:device2");
+    assertTrue("checking promotion", mapper.isHot(":Devices:device2"));
+    mapper.rename(":Devices:device3:sensor", ":Devices:device2:moved");
+    assertFalse("checking demotion on move", mapper.isHot(":Devices:device2"));
+    assertEquals("checking moved value", "value3",
+        mapper.getValue(":Devices:device2:moved", "key").getValue());
+
+    // removing a node above the units demotes all units below
+    mapper.get(":Devices:device4");
+    mapper.get(":Devices:device4");
+    assertTrue("checking promotion", mapper.isHot(":Devices:device4"));
+    mapper.remove(":Devices", true);
+    assertEquals("checking demotion", 0, mapper.getHotUnitCount());
+    assertFalse("checking removed node", mapper.exists(":Devices:device4"));
+
+    // idle units are demoted
+    mapper.add(new NodeImpl(":Users"));
+    mapper.add(new NodeImpl(":Users:user"));
+    mapper.get(":Users:user");
+    mapper.get(":Users:user");
+    assertTrue("checking promotion", mapper.isHot(":Users:user"));
+    Thread.sleep(300);
+    mapper.exists(":Users");
+    mapper.exists(":Users:other");
+    assertFalse("checking idle demotion", mapper.isHot(":Users:user"));
+
+    // the least recently used units are demoted beyond the capacity
+    for (int i = 0; i < 60; i++) {
+      mapper.add(new NodeImpl(":Users:user" + i));
+      mapper.get(":Users:user" + i);
+      mapper.get(":Users:user" + i);
+    }
+    assertTrue("checking capacity", mapper.getHotUnitCount() <= 25);
+    assertTrue("checking recent unit", mapper.isHot(":Users:user59"));
+    assertFalse("checking eldest unit", mapper.isHot(":Users:user0"));
+    mapper.close();
+  }
+
+  @Test
+  public void testCachingMapper() {
+    AtomicInteger reads = new AtomicInteger();
+    MemoryMapper backend = new MemoryMapper() {
+      @Override
+      public Optional<Node> find(String path) {
+        reads.incrementAndGet();
+        return super.find(path);
+      }
+
+      @Override
+      public NodeValue getValue(String path, String key) {
+        reads.incrementAndGet();
+        return super.getValue(path, key);
+      }
+    };
+    CachingMapper mapper = new CachingMapper(backend, 100);
+    GenericController controller = new GenericController("owner", mapper);
+    Node node = new NodeImpl(":Sensors");
+    node.addValue(new NodeValueImpl("key", "value"));
+    controller.add(node);
+
+    // repeated reads are answered by the cache
+    reads.set(0);
+    long hits = mapper.getHitCount();
+    for (int i = 0; i < 10; i++) {
+      assertEquals("checking cached value", "value",
+          controller.get(":Sensors").getValue("key").getValue());
+      assertFalse("checking cached missing node", controller.find(":Scores").isPresent());
+    }
+    assertEquals("checking backend reads", 2, reads.get());
+    assertEquals("checking hits", hits + 18, mapper.getHitCount());
+    assertTrue("checking hit rate", mapper.getHitRate() > 0.5);
+    controller.get(":Sensors").getValue("key").setValue("changed");
+    assertEquals("checking cached copy", "value", mapper.getValue(":Sensors", "key").getValue());
+    hits = mapper.getHitCount();
+    assertFalse("checking value of missing node", mapper.existsValue(":Scores", "key"));
+    assertEquals("checking cached missing node", hits + 1, mapper.getHitCount());
+
+    // writes invalidate the affected entries only
+    controller.add(new NodeImpl(":Scores"));
+    assertTrue("checking added node", controller.find(":Scores").isPresent());
+    controller.add(new NodeImpl(":Sensors:device"));
+    assertEquals("checking parent children", 1, controller.get(":Sensors").getChildren().size());
+    node = controller.get(":Sensors:device");
+    node.addValue(new NodeValueImpl("key", "value"));
+    controller.update(node);
+    reads.set(0);
+    mapper.get(":Scores");
+    assertEquals("checking unaffected entry", 0, reads.get());
+    assertEquals("checking updated node", "value",
+        mapper.getValue(":Sensors:device", "key").getValue());
+    controller.rename(":Sensors:device", ":Scores:device");
+    assertFalse("checking renamed node", mapper.exists(":Sensors:device"));
+    assertEquals("checking moved value", "value",
+        mapper.getValue(":Scores:device", "key").getValue());
+    mapper.remove(":Scores", true);
+    assertFalse("checking removed subtree", mapper.exists(":Scores:device"));
+
+    // frequently read nodes survive a scan of rarely read ones
+    for (int i = 0; i < 10; i++) {
+      controller.add(new NodeImpl(":Sensors:hot" + i));
+    }
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 10; i++) {
+        mapper.get(":Sensors:hot" + i);
+      }
+    }
+    for (int i = 0; i < 500; i++) {
+      mapper.find(":Sensors:cold" + i);
+    }
+    assertTrue("checking evictions", mapper.getEvictionCount() > 0);
+    assertTrue("checking size bound", mapper.getSize() <= 100);
+    reads.set(0);
+    for (int i = 0; i < 10; i++) {
+      mapper.get(":Sensors:hot" + i);
+    }
+    assertEquals("checking frequent entries kept", 0, reads.get());
+    mapper.close();
+  }
+
+  @Test
+  public void testCoalescingMapper() throws Exception {
+    // the first read of ":Sensors" after arming blocks until released
+    final AtomicBoolean armed = new AtomicBoolean(false);
+    final AtomicReference<CountDownLatch> release = new AtomicReference<>();
+    MemoryMapper backend = new MemoryMapper() {
+      @Override
+      public Optional<Node> find(String path) {
+        if (":Sensors".equals(path) && armed.compareAndSet(true, false)) {
+          try {
+            release.get().await();
+          } catch (InterruptedException e) {
+            throw new StorageException("interrupted", e);
+          }
+        }
+        return super.find(path);
+      }
+    };
+    CoalescingMapper mapper = new CoalescingMapper(backend);
+    GenericController controller = new GenericController("owner", mapper);
+    Node node = new NodeImpl(":Sensors");
+    node.addValue(new NodeValueImpl("key", "value"));
+    controller.add(node);
+
+    // concurrent reads share a single fetch
+    release.set(new CountDownLatch(1));
+    armed.set(true);
+    long fetches = mapper.getFetchCount();
+    long coalesced = mapper.getCoalescedCount();
+    final Node[] results = new Node[8];
+    final List<Throwable> errors = new Vector<>();
+    Thread[] readers = new Thread[results.length];
+    for (int t = 0; t < readers.length; t++) {
+      final int index = t;
+      readers[t] = new Thread(() -> {
+        try {
+          results[index] = controller.get(":Sensors");
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      });
+      readers[t].start();
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    while (mapper.getCoalescedCount() - coalesced < readers.length - 1
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    release.get().countDown();
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    assertTrue("errors while reading: " + errors, errors.isEmpty());
+    assertEquals("checking fetches", fetches + 1, mapper.getFetchCount());
+    assertEquals("checking shared reads", coalesced + readers.length - 1,
+        mapper.getCoalescedCount());
+
+    // every reader got a copy of its own
+    results[0].removeValue("key");
+    for (int i = 1; i < results.length; i++) {
+      assertTrue("checking copy", results[i] != results[0]);
+      assertEquals("checking value", "value", results[i].getValue("key").getValue());
+    }
+
+    // reads starting after a write do not join a fetch started before it
+    release.set(new CountDownLatch(1));
+    armed.set(true);
+    fetches = mapper.getFetchCount();
+    Thread reader = new Thread(() -> mapper.get(":Sensors"));
+    reader.start();
+    while (armed.get()) {
+      Thread.sleep(10);
+    }
+    node = backend.get(":Sensors");
+    node.removeValue("key");
+    node.addValue(new NodeValueImpl("key", "changed"));
+    mapper.update(node);
+    assertEquals("checking written value", "changed",
+        mapper.get(":Sensors").getValue("key").getValue());
+    release.get().countDown();
+    reader.join();
+    assertEquals("checking fetches", fetches + 2, mapper.getFetchCount());
+    mapper.close();
+  }
 }
@@ -0,0 +1,659 @@
+package ch.fhnw.geiger.localstorage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+import ch.fhnw.geiger.localstorage.db.GenericController;
+import ch.fhnw.geiger.localstorage.db.StorageMapper;
+import ch.fhnw.geiger.localstorage.db.data.Field;
+import ch.fhnw.geiger.localstorage.db.data.Node;
+import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import ch.fhnw.geiger.localstorage.db.data.NodeValueImpl;
+import ch.fhnw.geiger.localstorage.db.mapper.CachingMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.CoalescingMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.H2SqlMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.LogMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.LsmMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.MemoryMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.OffHeapMapper;
+import ch.fhnw.geiger.localstorage.db.mapper.SyncPolicy;
+import ch.fhnw.geiger.localstorage.db.mapper.TieredMapper;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/***
+ * <p>Benchmarks of the mapper implementations.</p>
+ *
+ * <p>The benchmarks print their timings for comparison only and do not assert on them.</p>
+ */
+public class TestMapperPerformance {
+
+  private static final String JDBC_URL = "jdbc:h2:mem:performance;DB_CLOSE_DELAY=-1";
+
+  private static final int ITERATIONS = 200;
+
+  /* enables the benchmarks of large stores which take minutes (-Dbenchmark.large=true) */
+  private static final String LARGE = "benchmark.large";
+
+  private static H2SqlMapper mapper;
+
+  private static Connection connection;
+
+  /* holds the files of the benchmarks writing to disk; deleted after each benchmark */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * <p>Creates the mapper under test and a raw connection for reference implementations.</p>
+   *
+   * @throws SQLException if the reference connection cannot be opened
+   */
+  @BeforeClass
+  public static void setupClass() throws SQLException {
+    mapper = new H2SqlMapper(JDBC_URL, "sa", "");
+    connection = DriverManager.getConnection(JDBC_URL, "sa", "");
+  }
+
+  /**
+   * <p>Closes the mapper and the reference connection.</p>
+   *
+   * @throws SQLException if the reference connection cannot be closed
+   */
+  @AfterClass
+  public static void tearDownClass() throws SQLException {
+    connection.close();
+    mapper.close();
+  }
+
+  @Before
+  public void setupTest() {
+    mapper.zap();
+  }
+
+  private static void report(String benchmark, String variant, long nanos, int iterations) {
+    System.out.println(String.format("## %-40s %-24s %10.1f us/op", benchmark, variant,
+        nanos / 1000.0 / iterations));
+  }
+
+  /**
+   * <p>Runs an operation repeatedly and reports its time and the bytes it allocates.</p>
+   *
+   * @param benchmark  the name of the benchmark
+   * @param variant    the name of the operation
+   * @param iterations the number of runs to be measured after as many warm up runs
+   * @param operation  the operation
+   */
+  private static void reportAllocation(String benchmark, String variant, int iterations,
+                                       Runnable operation) {
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    for (int i = 0; i < iterations; i++) {
+      operation.run();
+    }
+    long bytes = bean.getThreadAllocatedBytes(thread);
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      operation.run();
+    }
+    long nanos = System.nanoTime() - start;
+    bytes = bean.getThreadAllocatedBytes(thread) - bytes;
+    System.out.println(String.format("## %-40s %-24s %10.1f us/op %10d bytes/op", benchmark,
+        variant, nanos / 1000.0 / iterations, bytes / iterations));
+  }
+
+  /**
+   * <p>Loads a node the way H2SqlMapper did before materializing nodes in a single query.</p>
+   *
+   * <p>One query fetches the node, one its values and one more query per value fetches the
+   * translations.</p>
+   */
+  private static Node getNodeOneQueryPerValue(String path) throws SQLException {
+    NodeImpl res;
+    try (PreparedStatement ps = connection.prepareStatement(
+        "SELECT path, owner, name, visibility FROM storage_node WHERE path = ?")) {
+      ps.setString(1, path);
+      try (ResultSet rs = ps.executeQuery()) {
+        rs.next();
+        res = new NodeImpl(rs.getString("path"));
+        res.setVisibility(Visibility.valueOf(rs.getString("visibility")));
+      }
+    }
+    try (PreparedStatement ps = connection.prepareStatement(
+        "SELECT path,key,value,type,locale,last_modified FROM node_value WHERE path = ?")) {
+      ps.setString(1, path);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          NodeValue value = new NodeValueImpl(rs.getString("key"), rs.getString("value"),
+              rs.getString("type"), "", Long.parseLong(rs.getString("last_modified")));
+          try (PreparedStatement psTranslations = connection.prepareStatement(
+              "SELECT path,key,identifier,locale,translation FROM translation "
+                  + "WHERE (path = ? AND key = ?)")) {
+            psTranslations.setString(1, path);
+            psTranslations.setString(2, value.getKey());
+            try (ResultSet rsTranslations = psTranslations.executeQuery()) {
+              while (rsTranslations.next()) {
+                Locale locale = Locale.forLanguageTag(rsTranslations.getString("locale"));
+                if ("VALUE".equals(rsTranslations.getString("identifier"))) {
+                  value.setValue(rsTranslations.getString("translation"), locale);
+                } else {
+                  value.setDescription(rsTranslations.getString("translation"), locale);
+                }
+              }
+            }
+          }
+          res.addValue(value);
+        }
+      }
+    }
+    return res;
+  }
+
+  @Test
+  public void testNodeMaterialization() throws SQLException {
+    for (int valueCount : new int[]{1, 10, 100}) {
+      String path = ":materialization" + valueCount;
+      Node node = new NodeImpl(path);
+      for (int i = 0; i < valueCount; i++) {
+        NodeValue nv = new NodeValueImpl("key" + i, "value" + i, "type", "description", 1);
+        nv.setValue("Wert" + i, Locale.GERMAN);
+        node.addValue(nv);
+      }
+      mapper.add(node);
+
+      // warm up both variants
+      for (int i = 0; i < 10 * ITERATIONS; i++) {
+        mapper.get(path);
+        getNodeOneQueryPerValue(path);
+      }
+
+      long joined = 0;
+      long perValue = 0;
+      for (int round = 0; round < 4; round++) {
+        // alternate the order so that neither variant profits from running second
+        for (int variant = 0; variant < 2; variant++) {
+          boolean measureJoined = (round + variant) % 2 == 0;
+          long start = System.nanoTime();
+          for (int i = 0; i < ITERATIONS; i++) {
+            Node read = measureJoined ? mapper.get(path) : getNodeOneQueryPerValue(path);
+            assertEquals("value count mismatch", valueCount, read.getValues().size());
+          }
+          if (measureJoined) {
+            joined += System.nanoTime() - start;
+          } else {
+            perValue += System.nanoTime() - start;
+          }
+        }
+      }
+      report("get node with " + valueCount + " values", "joined query", joined,
+          4 * ITERATIONS);
+      report("get node with " + valueCount + " values", "one query per value", perValue,
+          4 * ITERATIONS);
+    }
+  }
+
+  @Test
+  public void testSearch() {
+    final int nodeCount = 10000;
+    mapper.add(new NodeImpl(":search"));
+    for (int i = 0; i < nodeCount / 100; i++) {
+      mapper.add(new NodeImpl(":search:group" + i));
+      for (int j = 0; j < 100; j++) {
+        Node node = new NodeImpl(":search:group" + i + ":node" + j);
+        node.addValue(new NodeValueImpl("key", "value" + j, "type" + (j % 10), "description", 1));
+        mapper.add(node);
+      }
+    }
+
+    SearchCriteria subtree = new SearchCriteria();
+    subtree.setNodePath(":search:group42");
+    SearchCriteria value = new SearchCriteria();
+    value.setNodePath(":search");
+    value.set(Field.TYPE, "type7");
+    value.set(Field.VALUE, "value1.");
+
+    // warm up
+    for (int i = 0; i < 10; i++) {
+      mapper.search(subtree);
+      mapper.search(value);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      assertEquals("subtree size mismatch", 101, mapper.search(subtree).size());
+    }
+    report("search subtree in " + nodeCount + " nodes", "database", System.nanoTime() - start,
+        10);
+
+    start = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      assertEquals("value hits mismatch", nodeCount / 100, mapper.search(value).size());
+    }
+    report("search values in " + nodeCount + " nodes", "database", System.nanoTime() - start,
+        10);
+  }
+
+  @Test
+  public void testRenameSubtree() {
+    for (int nodeCount : new int[]{100, 1000, 10000}) {
+      String path = ":rename" + nodeCount;
+      mapper.add(new NodeImpl(path));
+      for (int i = 0; i < nodeCount / 100; i++) {
+        mapper.add(new NodeImpl(path + ":group" + i));
+        for (int j = 0; j < 99; j++) {
+          Node node = new NodeImpl(path + ":group" + i + ":node" + j);
+          node.addValue(new NodeValueImpl("key", "value", "type", "description", 1));
+          mapper.add(node);
+        }
+      }
+
+      long start = System.nanoTime();
+      mapper.rename(path, path + "moved");
+      report("rename subtree of " + nodeCount + " nodes", "set based",
+          System.nanoTime() - start, nodeCount);
+      assertEquals("child count mismatch", nodeCount / 100,
+          mapper.get(path + "moved").getChildren().size());
+    }
+  }
+
+  /* builds a search criteria on a single field which matches group i of the indexed nodes */
+  private static SearchCriteria getIndexedCriteria(Field field, int i) {
+    final Visibility[] rare = new Visibility[]{Visibility.WHITE, Visibility.GREEN,
+        Visibility.AMBER};
+    SearchCriteria criteria = new SearchCriteria();
+    switch (field) {
+      case OWNER:
+        criteria.setNodeOwner("owner" + (i % 1000));
+        break;
+      case VISIBILITY:
+        criteria.set(Field.VISIBILITY, rare[i % rare.length].toString());
+        break;
+      case TYPE:
+        criteria.set(Field.TYPE, "type" + (i % 1000));
+        break;
+      default:
+        criteria.setNodeValueLastModified(String.valueOf(i % 1000));
+        break;
+    }
+    return criteria;
+  }
+
+  @Test
+  public void testIndexedSearch() {
+    final int nodeCount = 10000;
+    mapper.add(new NodeImpl(":indexed"));
+    for (int i = 0; i < nodeCount; i++) {
+      Node node = new NodeImpl(":indexed:node" + i);
+      node.setOwner("owner" + (i % 1000));
+      node.setVisibility(i % 1000 < 3 ? Visibility.values()[3 - i % 1000] : Visibility.RED);
+      node.addValue(new NodeValueImpl("key", "value", "type" + (i % 1000), "description", i));
+      mapper.add(node);
+    }
+
+    Field[] fields = new Field[]{Field.OWNER, Field.VISIBILITY, Field.TYPE, Field.LAST_MODIFIED};
+    int[] hits = new int[]{nodeCount / 1000, nodeCount / 1000, nodeCount / 1000, 1};
+    for (int f = 0; f < fields.length; f++) {
+      // warm up; criteria vary as H2 reuses the result of repeated identical queries
+      for (int i = 0; i < 100; i++) {
+        mapper.search(getIndexedCriteria(fields[f], i));
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < 100; i++) {
+        assertEquals("hits mismatch", hits[f],
+            mapper.search(getIndexedCriteria(fields[f], i)).size());
+      }
+      report("search by " + fields[f] + " in " + nodeCount + " nodes", "database",
+          System.nanoTime() - start, 100);
+    }
+  }
+
+  @Test
+  public void testMissingNode() {
+    final int lookups = 5000;
+    mapper.setPathFilter(true);
+    // distinct paths; H2 would otherwise answer repeated queries from its result cache
+    for (int i = 0; i < lookups; i++) {
+      mapper.add(new NodeImpl(":hit" + i));
+    }
+    for (int i = 0; i < lookups; i++) {
+      mapper.get(":hit" + i);
+      mapper.find(":warmup" + i);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < lookups; i++) {
+      mapper.get(":hit" + i);
+    }
+    report("missing node", "get (hit)", System.nanoTime() - start, lookups);
+
+    start = System.nanoTime();
+    for (int i = 0; i < lookups; i++) {
+      try {
+        if (!mapper.find(":miss" + i).isPresent()) {
+          // reference: how get() reported missing nodes before
+          throw new StorageException("Node does not exist");
+        }
+      } catch (StorageException e) {
+        // expected
+      }
+    }
+    report("missing node", "exception with stack", System.nanoTime() - start, lookups);
+
+    start = System.nanoTime();
+    for (int i = 0; i < lookups; i++) {
+      try {
+        mapper.get(":missed" + i);
+      } catch (NodeNotFoundException e) {
+        // expected
+      }
+    }
+    report("missing node", "stackless exception", System.nanoTime() - start, lookups);
+
+    start = System.nanoTime();
+    for (int i = 0; i < lookups; i++) {
+      assertFalse(mapper.find(":absent" + i).isPresent());
+    }
+    report("missing node", "find", System.nanoTime() - start, lookups);
+
+    start = System.nanoTime();
+    for (int i = 0; i < lookups; i++) {
+      assertFalse(mapper.exists(":unknown" + i));
+    }
+    report("missing node", "exists", System.nanoTime() - start, lookups);
+    System.out.println(String.format("## %-40s %-24s %10d", "missing node", "filtered lookups",
+        mapper.getFilteredLookups()));
+    mapper.setPathFilter(false);
+  }
+
+  @Test
+  public void testMemorySubtreeSearch() {
+    // the searched subtree has the same size in every store
+    for (int subtrees : new int[]{10, 1000}) {
+      MemoryMapper memoryMapper = new MemoryMapper();
+      for (int t = 0; t < subtrees; t++) {
+        memoryMapper.add(new NodeImpl(":subtree" + t));
+        for (int i = 0; i < 100; i++) {
+          memoryMapper.add(new NodeImpl(":subtree" + t + ":node" + i));
+        }
+      }
+      SearchCriteria sc = new SearchCriteria();
+      sc.setNodePath(":subtree0");
+      for (int i = 0; i < 100; i++) {
+        memoryMapper.search(sc);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        assertEquals("hits mismatch", 101, memoryMapper.search(sc).size());
+      }
+      report("memory subtree search of 101 nodes", "store of " + subtrees * 101,
+          System.nanoTime() - start, ITERATIONS);
+    }
+  }
+
+  @Test
+  public void testOffHeapFootprint() {
+    // heap retained by 100000 nodes with one value each
+    MemoryMapper memoryMapper = new MemoryMapper();
+    long heap = fill(memoryMapper);
+    System.out.println(String.format("## %-40s %-24s %10d bytes", "heap per node",
+        "memory mapper", heap / 100000));
+    memoryMapper.zap();
+
+    OffHeapMapper offHeapMapper = new OffHeapMapper();
+    heap = fill(offHeapMapper);
+    System.out.println(String.format("## %-40s %-24s %10d bytes", "heap per node",
+        "off-heap mapper", heap / 100000));
+    System.out.println(String.format("## %-40s %-24s %10d bytes", "off-heap reserved",
+        "off-heap mapper", offHeapMapper.getReservedBytes()));
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      assertEquals("value mismatch", "value" + i,
+          offHeapMapper.get(":devices:device" + i).getValue("key").getValue());
+    }
+    report("off-heap get", "store of 100001", System.nanoTime() - start, ITERATIONS);
+    offHeapMapper.close();
+  }
+
+  private static long fill(StorageMapper mapper) {
+    long before = usedHeap();
+    mapper.add(new NodeImpl(":devices"));
+    for (int i = 0; i < 100000; i++) {
+      Node node = new NodeImpl(":devices:device" + i);
+      node.addValue(new NodeValueImpl("key", "value" + i));
+      mapper.add(node);
+    }
+    return usedHeap() - before;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  @Test
+  public void testSensorWrites() {
+    // all mappers write to disk
+    File log = new File(folder.getRoot(), "log");
+    File lsm = new File(folder.getRoot(), "lsm");
+    File journal = new File(folder.getRoot(), "journal");
+    String url = "jdbc:h2:" + new File(folder.getRoot(), "perfdb").getAbsolutePath();
+    StorageMapper[] mappers = {
+        new H2SqlMapper(url, "sa", ""),
+        new LogMapper(log, LogMapper.DEFAULT_SEGMENT_SIZE, 0),
+        new LsmMapper(lsm),
+        new MemoryMapper(journal, SyncPolicy.PERIODIC, 0)
+    };
+    for (StorageMapper m : mappers) {
+      m.zap();
+      m.add(new NodeImpl(":sensors"));
+      for (int i = 0; i < 100; i++) {
+        m.add(new NodeImpl(":sensors:sensor" + i));
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < 20 * ITERATIONS; i++) {
+        Node node = new NodeImpl(":sensors:sensor" + (i % 100));
+        node.addValue(new NodeValueImpl("reading", String.valueOf(i)));
+        m.update(node);
+      }
+      m.flush();
+      report("sensor update", m.getClass().getSimpleName(), System.nanoTime() - start,
+          20 * ITERATIONS);
+      m.close();
+    }
+
+    long start = System.nanoTime();
+    StorageMapper m = new H2SqlMapper(url, "sa", "");
+    m.get(":sensors:sensor7");
+    report("reopen", "H2SqlMapper", System.nanoTime() - start, 1);
+    m.close();
+
+    start = System.nanoTime();
+    m = new LogMapper(log, LogMapper.DEFAULT_SEGMENT_SIZE, 0);
+    m.get(":sensors:sensor7");
+    report("reopen", "LogMapper", System.nanoTime() - start, 1);
+    m.close();
+
+    start = System.nanoTime();
+    m = new LsmMapper(lsm);
+    m.get(":sensors:sensor7");
+    report("reopen", "LsmMapper", System.nanoTime() - start, 1);
+    m.close();
+
+    start = System.nanoTime();
+    m = new MemoryMapper(journal, SyncPolicy.PERIODIC, 0);
+    m.get(":sensors:sensor7");
+    report("reopen", "MemoryMapper", System.nanoTime() - start, 1);
+    m.close();
+  }
+
+  @Test
+  public void testJournalRecovery() {
+    assumeTrue("large benchmarks disabled", Boolean.getBoolean(LARGE));
+    // 1000 devices with 1000 sensors each and one value per node
+    File journal = new File(folder.getRoot(), "journal");
+    MemoryMapper m = new MemoryMapper(journal, SyncPolicy.NEVER, 0);
+    m.add(new NodeImpl(":devices"));
+    for (int i = 0; i < 1000; i++) {
+      m.add(new NodeImpl(":devices:device" + i));
+      for (int j = 0; j < 1000; j++) {
+        Node node = new NodeImpl(":devices:device" + i + ":sensor" + j);
+        node.addValue(new NodeValueImpl("reading", String.valueOf(j)));
+        m.add(node);
+      }
+    }
+    long start = System.nanoTime();
+    m.checkpoint();
+    report("checkpoint", "store of 1001001", System.nanoTime() - start, 1);
+    // a log tail of 100000 changes written after the checkpoint
+    for (int i = 0; i < 100000; i++) {
+      Node node = new NodeImpl(":devices:device" + (i % 1000) + ":sensor" + (i / 1000));
+      node.addValue(new NodeValueImpl("reading", "updated"));
+      m.update(node);
+    }
+    m.close();
+    m = null;
+    usedHeap();
+
+    start = System.nanoTime();
+    m = new MemoryMapper(journal, SyncPolicy.NEVER, 0);
+    report("recovery", "store of 1001001", System.nanoTime() - start, 1);
+    assertEquals("value mismatch", "updated",
+        m.getValue(":devices:device7:sensor42", "reading").getValue());
+    m.close();
+  }
+
+  @Test
+  public void testTieredReads() {
+    // 1000 devices with 10 sensors each; a working set of 20 devices is read repeatedly
+    mapper.add(new NodeImpl(":Devices"));
+    for (int i = 0; i < 1000; i++) {
+      mapper.add(new NodeImpl(":Devices:device" + i));
+      for (int j = 0; j < 10; j++) {
+        Node node = new NodeImpl(":Devices:device" + i + ":sensor" + j);
+        node.addValue(new NodeValueImpl("reading", String.valueOf(j)));
+        mapper.add(node);
+      }
+    }
+    TieredMapper tiered = new TieredMapper(mapper);
+    StorageMapper[] mappers = {mapper, tiered};
+    for (StorageMapper m : mappers) {
+      for (int i = 0; i < 20; i++) {
+        m.get(":Devices:device" + i + ":sensor0");
+        m.get(":Devices:device" + i + ":sensor0");
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < 20 * ITERATIONS; i++) {
+        m.get(":Devices:device" + (i % 20) + ":sensor" + (i % 10));
+      }
+      report("working set get", m.getClass().getSimpleName(), System.nanoTime() - start,
+          20 * ITERATIONS);
+    }
+    // the cold mapper is shared with the other benchmarks and not closed here
+  }
+
+  @Test
+  public void testCachedReads() {
+    // 100 nodes read repeatedly through the cache
+    mapper.add(new NodeImpl(":Scores"));
+    for (int i = 0; i < 100; i++) {
+      Node node = new NodeImpl(":Scores:score" + i);
+      node.addValue(new NodeValueImpl("value", String.valueOf(i)));
+      mapper.add(node);
+    }
+    CachingMapper cached = new CachingMapper(mapper);
+    StorageMapper[] mappers = {mapper, cached};
+    for (StorageMapper m : mappers) {
+      for (int i = 0; i < 100; i++) {
+        m.get(":Scores:score" + i);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < 20 * ITERATIONS; i++) {
+        m.get(":Scores:score" + (i % 100));
+      }
+      report("repeated get", m.getClass().getSimpleName(), System.nanoTime() - start,
+          20 * ITERATIONS);
+    }
+    System.out.println(String.format("## %-40s %-24s %10.3f", "hit rate", "CachingMapper",
+        cached.getHitRate()));
+    // the wrapped mapper is shared with the other benchmarks and not closed here
+  }
+
+  @Test
+  public void testCoalescedReads() throws InterruptedException {
+    // many threads reading the same hot node with some values
+    Node hot = new NodeImpl(":Local");
+    for (int i = 0; i < 20; i++) {
+      hot.addValue(new NodeValueImpl("key" + i, "value" + i));
+    }
+    mapper.add(hot);
+    CoalescingMapper coalescing = new CoalescingMapper(mapper);
+    StorageMapper[] mappers = {mapper, coalescing};
+    final int threads = 16;
+    for (StorageMapper m : mappers) {
+      Thread[] readers = new Thread[threads];
+      for (int t = 0; t < threads; t++) {
+        readers[t] = new Thread(() -> {
+          for (int i = 0; i < 5 * ITERATIONS; i++) {
+            m.get(":Local");
+          }
+        });
+      }
+      long start = System.nanoTime();
+      for (Thread reader : readers) {
+        reader.start();
+      }
+      for (Thread reader : readers) {
+        reader.join();
+      }
+      report("concurrent get of one node", m.getClass().getSimpleName(),
+          System.nanoTime() - start, threads * 5 * ITERATIONS);
+    }
+    System.out.println(String.format("## %-40s %-24s %10d of %d", "concurrent get of one node",
+        "fetches", coalescing.getFetchCount(), threads * 5 * ITERATIONS));
+    // the wrapped mapper is shared with the other benchmarks and not closed here
+  }
+
+  @Test
+  public void testNodeAllocation() {
+    // a node with 20 values and 10 children held by an in-memory mapper
+    GenericController controller = new GenericController("owner", new MemoryMapper());
+    Node stored = new NodeImpl(":Sensors");
+    for (int i = 0; i < 20; i++) {
+      stored.addValue(new NodeValueImpl("key" + i, "value" + i, "type", "description", i));
+    }
+    controller.add(stored);
+    for (int i = 0; i < 10; i++) {
+      controller.add(new NodeImpl(":Sensors:child" + i));
+    }
+    final Node node = controller.get(":Sensors");
+    final int iterations = 50 * ITERATIONS;
+    reportAllocation("node allocation", "deepClone", iterations, node::deepClone);
+    reportAllocation("node allocation", "getValue", iterations, () -> node.getValue("key0"));
+    reportAllocation("node allocation", "getChildren", iterations, node::getChildren);
+    reportAllocation("node allocation", "controller get", iterations,
+        () -> controller.get(":Sensors"));
+    int[] round = {0};
+    reportAllocation("node allocation", "controller updateValue", iterations,
+        () -> controller.updateValue(":Sensors",
+            new NodeValueImpl("key0", "value" + round[0]++)));
+    controller.close();
+  }
+}
@@ -1,10 +1,16 @@
 package ch.fhnw.geiger.localstorage;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import ch.fhnw.geiger.localstorage.db.data.Node;
 import ch.fhnw.geiger.localstorage.db.data.NodeImpl;
+import ch.fhnw.geiger.localstorage.db.data.NodeValue;
+import ch.fhnw.geiger.localstorage.db.data.NodeValueImpl;
+import ch.fhnw.geiger.localstorage.db.mapper.DummyMapper;
+import java.util.Map;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -43,4 +49,58 @@ public class TestNode {
     Assert.assertNotEquals("test children unequal detected", node, node2);
   }
 
+  @Test
+  public void testNodeCopyOnWrite() {
+    NodeImpl node = new NodeImpl("name", "path");
+    NodeValue value = new NodeValueImpl("key", "value");
+    node.addValue(value);
+    node.addChild(new NodeImpl("child", ":path:name"));
+    Node clone = node.deepClone();
+    Map<String, NodeValue> snapshot = node.getValues();
+
+    // changes of the clone do not affect the original and vice versa
+    clone.setOwner("newOwner");
+    clone.removeValue("key");
+    clone.addValue(new NodeValueImpl("key2", "value2"));
+    clone.removeChild("child");
+    node.addChild(new NodeImpl("child2", ":path:name"));
+    assertNull("checking original owner", node.getOwner());
+    assertEquals("checking original value", "value", node.getValue("key").getValue());
+    assertNull("checking original values", node.getValue("key2"));
+    assertEquals("checking original children", 2, node.getChildren().size());
+    assertEquals("checking clone children", "", clone.getChildNodesCsv());
+
+    // neither added values nor handed out copies are shared with the node
+    value.setValue("changed");
+    node.getValue("key").setValue("changed");
+    node.getChildren().get("child").setOwner("newOwner");
+    assertEquals("checking added value", "value", node.getValue("key").getValue());
+    assertNull("checking child", node.getChild("child").getOwner());
+
+    // a map of values is a snapshot
+    node.removeValue("key");
+    assertTrue("checking snapshot", snapshot.containsKey("key"));
+    assertFalse("checking values", node.getValues().containsKey("key"));
+  }
+
+  @Test
+  public void testNodeValueIsolation() throws StorageException {
+    NodeImpl node = new NodeImpl(":name");
+    node.addValue(new NodeValueImpl("key", "value"));
+    Node clone = node.deepClone();
+
+    // values handed out by a clone are copies not shared with the original
+    clone.getValues().get("key").setValue("changed");
+    clone.getValue("key").setValue("changed");
+    assertEquals("checking original value", "value",
+        node.getValues().get("key").getValue());
+    assertEquals("checking clone value", "value", clone.getValues().get("key").getValue());
+
+    // nor with a node stored in a mapper
+    DummyMapper mapper = new DummyMapper();
+    mapper.add(node);
+    mapper.get(node.getPath()).getValues().get("key").setValue("changed");
+    assertEquals("checking stored value", "value",
+        mapper.get(node.getPath()).getValue("key").getValue());
+  }
 }
@@ -64,4 +64,21 @@ public class TestNodeValue {
     assertNotEquals("test unequal nodes", nodeValue, nodeValue2);
 
   }
+
+  @Test
+  public void testNodeValueClone() {
+    NodeValue nodeValue = new NodeValueImpl("key", "value", "type", "description", 42);
+    nodeValue.setValue("Wert", Locale.GERMAN);
+    NodeValue clone = nodeValue.deepClone();
+    assertEquals("test clone", nodeValue, clone);
+    assertEquals("test last modified of clone", nodeValue.getLastModified(),
+        clone.getLastModified());
+
+    // changes of the clone do not affect the original
+    clone.setValue("neuer Wert", Locale.GERMAN);
+    clone.setDescription("Beschreibung", Locale.GERMAN);
+    assertEquals("test original value", "Wert", nodeValue.getValue("de"));
+    assertEquals("test original description", "description", nodeValue.getDescription("de"));
+    assertNotEquals("test changed clone", nodeValue, clone);
+  }
 }